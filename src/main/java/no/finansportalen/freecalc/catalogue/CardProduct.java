@@ -0,0 +1,156 @@
+package no.finansportalen.freecalc.catalogue;
+
+import no.finansportalen.freecalc.freecard.calc.FreeCard;
+
+/**
+ * <p>
+ * The terms of a credit card in the catalogue: The interest rates, the fixed fees and the minimum payment. The use of
+ * the card - the amounts and the transaction fees - is set on the FreeCard afterwards.
+ * </p>
+ * 
+ * <p>
+ * The registry keeps its own copy of the product when it is published.
+ * </p>
+ */
+public class CardProduct {
+
+    /**
+     * OBLIGATORY: Interest rate for cash withdrawals
+     */
+    private Double rateCash;
+
+    /**
+     * OBLIGATORY: Interest rate for purchases
+     */
+    private Double ratePurchase;
+
+    /**
+     * The initial interest-free period (only applied to purchases) in number of days
+     */
+    private int interestFreeDays = 0;
+
+    private double feeOrigination = 0;
+
+    private double feeAnnual = 0;
+
+    private double feePeriod = 0;
+
+    private Double minpayPerc;
+
+    private Double minpayUnits;
+
+    /**
+     * A copy of the product
+     */
+    CardProduct copy() {
+        CardProduct copy = new CardProduct();
+        copy.rateCash = rateCash;
+        copy.ratePurchase = ratePurchase;
+        copy.interestFreeDays = interestFreeDays;
+        copy.feeOrigination = feeOrigination;
+        copy.feeAnnual = feeAnnual;
+        copy.feePeriod = feePeriod;
+        copy.minpayPerc = minpayPerc;
+        copy.minpayUnits = minpayUnits;
+        return copy;
+    }
+
+    /**
+     * @return The interest rates are the same
+     */
+    boolean samePrices(CardProduct other) {
+        return same(rateCash, other.rateCash) && same(ratePurchase, other.ratePurchase);
+    }
+
+    /**
+     * @return All terms but the interest rates are the same
+     */
+    boolean sameFees(CardProduct other) {
+        return interestFreeDays == other.interestFreeDays && feeOrigination == other.feeOrigination
+                && feeAnnual == other.feeAnnual && feePeriod == other.feePeriod && same(minpayPerc, other.minpayPerc)
+                && same(minpayUnits, other.minpayUnits);
+    }
+
+    private static boolean same(Double a, Double b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Sets the terms of the product on 'card'
+     */
+    void configure(FreeCard card) {
+        card.setRateCash(rateCash);
+        card.setRatePurchase(ratePurchase);
+        card.setInterestFreeDays(interestFreeDays);
+        card.setFeeOrigination(feeOrigination);
+        card.setFeeAnnual(feeAnnual);
+        card.setFeePeriod(feePeriod);
+        card.setMinpayPerc(minpayPerc);
+        card.setMinpayUnits(minpayUnits);
+    }
+
+    public Double getRateCash() {
+        return rateCash;
+    }
+
+    public void setRateCash(Double rateCash) {
+        this.rateCash = rateCash;
+    }
+
+    public Double getRatePurchase() {
+        return ratePurchase;
+    }
+
+    public void setRatePurchase(Double ratePurchase) {
+        this.ratePurchase = ratePurchase;
+    }
+
+    public int getInterestFreeDays() {
+        return interestFreeDays;
+    }
+
+    public void setInterestFreeDays(int interestFreeDays) {
+        this.interestFreeDays = interestFreeDays;
+    }
+
+    public double getFeeOrigination() {
+        return feeOrigination;
+    }
+
+    public void setFeeOrigination(double feeOrigination) {
+        this.feeOrigination = feeOrigination;
+    }
+
+    public double getFeeAnnual() {
+        return feeAnnual;
+    }
+
+    public void setFeeAnnual(double feeAnnual) {
+        this.feeAnnual = feeAnnual;
+    }
+
+    public double getFeePeriod() {
+        return feePeriod;
+    }
+
+    public void setFeePeriod(double feePeriod) {
+        this.feePeriod = feePeriod;
+    }
+
+    public Double getMinpayPerc() {
+        return minpayPerc;
+    }
+
+    public void setMinpayPerc(Double minpayPerc) {
+        this.minpayPerc = minpayPerc;
+    }
+
+    public Double getMinpayUnits() {
+        return minpayUnits;
+    }
+
+    public void setMinpayUnits(Double minpayUnits) {
+        this.minpayUnits = minpayUnits;
+    }
+
+}
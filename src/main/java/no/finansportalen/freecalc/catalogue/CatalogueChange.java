@@ -0,0 +1,68 @@
+package no.finansportalen.freecalc.catalogue;
+
+/**
+ * <p>
+ * One product that differs between two versions of the catalogue.
+ * </p>
+ */
+public class CatalogueChange {
+
+    public static enum Kind {
+        LOAN, CARD
+    }
+
+    public static enum Type {
+        ADDED, CHANGED, REMOVED
+    }
+
+    private final Kind kind;
+
+    private final Type type;
+
+    private final String id;
+
+    /**
+     * The price list (loans) or the interest rates (cards) differ
+     */
+    private final boolean pricesChanged;
+
+    /**
+     * Any of the other terms - fees, capitalization frequency etc. - differ
+     */
+    private final boolean feesChanged;
+
+    CatalogueChange(Kind kind, Type type, String id, boolean pricesChanged, boolean feesChanged) {
+        this.kind = kind;
+        this.type = type;
+        this.id = id;
+        this.pricesChanged = pricesChanged;
+        this.feesChanged = feesChanged;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return The price list (loans) or the interest rates (cards) differ. true for added and removed products.
+     */
+    public boolean isPricesChanged() {
+        return pricesChanged;
+    }
+
+    /**
+     * @return Any of the other terms differ. true for added and removed products.
+     */
+    public boolean isFeesChanged() {
+        return feesChanged;
+    }
+
+}
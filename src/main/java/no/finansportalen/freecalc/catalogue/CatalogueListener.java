@@ -0,0 +1,22 @@
+package no.finansportalen.freecalc.catalogue;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Told about each new version of the catalogue, and what differs from the previous one. Called by the thread
+ * publishing the version, before the next version is made, so the versions arrive in order.
+ * </p>
+ */
+public interface CatalogueListener {
+
+    /**
+     * @param snapshot
+     *            The new version
+     * @param changes
+     *            The products that differ from the previous version. Never empty: A publication that changes nothing
+     *            makes no new version.
+     */
+    void catalogueChanged(CatalogueSnapshot snapshot, List<CatalogueChange> changes);
+
+}
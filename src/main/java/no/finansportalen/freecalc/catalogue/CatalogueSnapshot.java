@@ -0,0 +1,99 @@
+package no.finansportalen.freecalc.catalogue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import no.finansportalen.freecalc.freecard.calc.FreeCard;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+
+/**
+ * <p>
+ * One version of the product catalogue. A snapshot is never changed after it is made: A new version of the catalogue
+ * is a new snapshot. A quote that has taken a snapshot thus sees the same products all the way through, however many
+ * versions are published meanwhile, and the snapshot might be read by any number of threads without locks.
+ * </p>
+ */
+public class CatalogueSnapshot {
+
+    /**
+     * Rising by one for each version published. The first version is 1.
+     */
+    private final long version;
+
+    private final Map<String, LoanProduct> loanProducts;
+
+    private final Map<String, CardProduct> cardProducts;
+
+    /**
+     * @param loanProducts
+     *            Owned by the snapshot from now on - nobody else may keep a reference to the map or the products
+     */
+    CatalogueSnapshot(long version, Map<String, LoanProduct> loanProducts, Map<String, CardProduct> cardProducts) {
+        this.version = version;
+        this.loanProducts = Collections.unmodifiableMap(loanProducts);
+        this.cardProducts = Collections.unmodifiableMap(cardProducts);
+    }
+
+    /**
+     * Sets the terms of the loan product 'id' on 'calc', and tags its results with the version of this snapshot
+     * 
+     * @return false: There is no such product in this version
+     */
+    public boolean configureLoan(String id, FreeLoan calc) {
+
+        LoanProduct product = loanProducts.get(id);
+
+        if (product == null) {
+            return false;
+        }
+
+        product.configure(calc);
+        calc.setCatalogueVersion(version);
+
+        return true;
+    }
+
+    /**
+     * Sets the terms of the card product 'id' on 'card', and tags its result with the version of this snapshot
+     * 
+     * @return false: There is no such product in this version
+     */
+    public boolean configureCard(String id, FreeCard card) {
+
+        CardProduct product = cardProducts.get(id);
+
+        if (product == null) {
+            return false;
+        }
+
+        product.configure(card);
+        card.setCatalogueVersion(version);
+
+        return true;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Set<String> getLoanProductIds() {
+        return loanProducts.keySet();
+    }
+
+    public Set<String> getCardProductIds() {
+        return cardProducts.keySet();
+    }
+
+    /**
+     * The maps themselves, for the registry making the next version
+     */
+    Map<String, LoanProduct> getLoanProducts() {
+        return loanProducts;
+    }
+
+    Map<String, CardProduct> getCardProducts() {
+        return cardProducts;
+    }
+
+}
@@ -0,0 +1,205 @@
+package no.finansportalen.freecalc.catalogue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.PriceStorageStep;
+
+/**
+ * <p>
+ * The terms of a loan product in the catalogue: The price list and the fees. What the borrower chooses - the amount,
+ * the number of periods etc. - is set on the FreeLoan afterwards.
+ * </p>
+ * 
+ * <p>
+ * The registry keeps its own copy of the product when it is published, so the product might be changed and published
+ * again as a new version.
+ * </p>
+ */
+public class LoanProduct {
+
+    /**
+     * OBLIGATORY: The price list, the lowest segment first
+     */
+    private List<PriceStorageStep> priceStorage = new ArrayList<PriceStorageStep>();
+
+    /**
+     * Capitalizations per year
+     */
+    private int capitalizationFreq = 12;
+
+    /**
+     * The maximum number of interest-only periods the bank allows
+     */
+    private int interestonlyPeriodsMax = 0;
+
+    private double feeProcessing = 0;
+
+    private double feeDocument = 0;
+
+    private double feePercentage = 0;
+
+    private double feePeriodPerc = 0;
+
+    private boolean rateThresholds = false;
+
+    private boolean rateSegments = false;
+
+    public LoanProduct() {}
+
+    /**
+     * @param priceStorage
+     *            The price list, the lowest segment first
+     */
+    public LoanProduct(List<PriceStorageStep> priceStorage) {
+        this.priceStorage = priceStorage;
+    }
+
+    /**
+     * A copy of the product with copies of the steps of the price list
+     */
+    LoanProduct copy() {
+
+        LoanProduct copy = new LoanProduct();
+
+        for (PriceStorageStep step : priceStorage) {
+            copy.priceStorage.add(new PriceStorageStep(step.getAnnualInterest(), step.getPeriodicalFee(), step
+                    .getLowerLimit(), step.getUpperLimit()));
+        }
+
+        copy.capitalizationFreq = capitalizationFreq;
+        copy.interestonlyPeriodsMax = interestonlyPeriodsMax;
+        copy.feeProcessing = feeProcessing;
+        copy.feeDocument = feeDocument;
+        copy.feePercentage = feePercentage;
+        copy.feePeriodPerc = feePeriodPerc;
+        copy.rateThresholds = rateThresholds;
+        copy.rateSegments = rateSegments;
+
+        return copy;
+    }
+
+    /**
+     * @return The price lists have the same steps, with the same limits, rates and periodical fees
+     */
+    boolean samePrices(LoanProduct other) {
+
+        if (priceStorage.size() != other.priceStorage.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < priceStorage.size(); i++) {
+
+            PriceStorageStep step = priceStorage.get(i);
+            PriceStorageStep otherStep = other.priceStorage.get(i);
+
+            if (step.getAnnualInterest() != otherStep.getAnnualInterest()
+                    || step.getPeriodicalFee() != otherStep.getPeriodicalFee()
+                    || step.getLowerLimit() != otherStep.getLowerLimit()
+                    || step.getUpperLimit() != otherStep.getUpperLimit()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return All terms but the price list are the same
+     */
+    boolean sameFees(LoanProduct other) {
+        return capitalizationFreq == other.capitalizationFreq && interestonlyPeriodsMax == other.interestonlyPeriodsMax
+                && feeProcessing == other.feeProcessing && feeDocument == other.feeDocument
+                && feePercentage == other.feePercentage && feePeriodPerc == other.feePeriodPerc
+                && rateThresholds == other.rateThresholds && rateSegments == other.rateSegments;
+    }
+
+    /**
+     * Sets the terms of the product on 'calc'. The steps of the price list are shared - FreeLoan only reads them.
+     */
+    void configure(FreeLoan calc) {
+        calc.setPriceStorage(new ArrayList<PriceStorageStep>(priceStorage));
+        calc.setCapitalizationFreq(capitalizationFreq);
+        calc.setInterestonlyPeriodsMax(interestonlyPeriodsMax);
+        calc.setFeeProcessing(feeProcessing);
+        calc.setFeeDocument(feeDocument);
+        calc.setFeePercentage(feePercentage);
+        calc.setFeePeriodPerc(feePeriodPerc);
+        calc.setRateThresholds(rateThresholds);
+        calc.setRateSegments(rateSegments);
+    }
+
+    public List<PriceStorageStep> getPriceStorage() {
+        return priceStorage;
+    }
+
+    public void setPriceStorage(List<PriceStorageStep> priceStorage) {
+        this.priceStorage = priceStorage;
+    }
+
+    public int getCapitalizationFreq() {
+        return capitalizationFreq;
+    }
+
+    public void setCapitalizationFreq(int capitalizationFreq) {
+        this.capitalizationFreq = capitalizationFreq;
+    }
+
+    public int getInterestonlyPeriodsMax() {
+        return interestonlyPeriodsMax;
+    }
+
+    public void setInterestonlyPeriodsMax(int interestonlyPeriodsMax) {
+        this.interestonlyPeriodsMax = interestonlyPeriodsMax;
+    }
+
+    public double getFeeProcessing() {
+        return feeProcessing;
+    }
+
+    public void setFeeProcessing(double feeProcessing) {
+        this.feeProcessing = feeProcessing;
+    }
+
+    public double getFeeDocument() {
+        return feeDocument;
+    }
+
+    public void setFeeDocument(double feeDocument) {
+        this.feeDocument = feeDocument;
+    }
+
+    public double getFeePercentage() {
+        return feePercentage;
+    }
+
+    public void setFeePercentage(double feePercentage) {
+        this.feePercentage = feePercentage;
+    }
+
+    public double getFeePeriodPerc() {
+        return feePeriodPerc;
+    }
+
+    public void setFeePeriodPerc(double feePeriodPerc) {
+        this.feePeriodPerc = feePeriodPerc;
+    }
+
+    public boolean isRateThresholds() {
+        return rateThresholds;
+    }
+
+    public void setRateThresholds(boolean rateThresholds) {
+        this.rateThresholds = rateThresholds;
+    }
+
+    public boolean isRateSegments() {
+        return rateSegments;
+    }
+
+    public void setRateSegments(boolean rateSegments) {
+        this.rateSegments = rateSegments;
+    }
+
+}
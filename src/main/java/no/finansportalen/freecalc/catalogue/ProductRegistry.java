@@ -0,0 +1,216 @@
+package no.finansportalen.freecalc.catalogue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The loan and card products quoted, as the banks change them during the day.
+ * </p>
+ * 
+ * <p>
+ * The catalogue is copy-on-write: Every change makes a new CatalogueSnapshot with the next version number, from copies
+ * of the products, and then replaces the current snapshot in one write of a volatile field. Quote threads read the
+ * current snapshot with getSnapshot() - one volatile read, no locks - and keep it for the whole quote. A publication
+ * therefore never waits for quotes in progress, and a quote never sees half a publication. Results computed from a
+ * snapshot are tagged with its version (FreeLoanResult.getCatalogueVersion()), so anything kept from them, like
+ * cached quotes, might be checked against the current version.
+ * </p>
+ * 
+ * <p>
+ * The updaters are serialized among themselves, so two changes made at the same time both end up in the catalogue.
+ * Publishing is meant to be rare compared to quoting: Each change copies the maps of the catalogue.
+ * </p>
+ * 
+ * <p>
+ * Each publication is compared with the current version, product by product, down to the steps of the price lists
+ * and the fees. Only if something differs is a new version made, and the listeners are told what differs (see
+ * CatalogueChange), so they might recompute only what depends on the products changed - see QuoteCache.
+ * </p>
+ */
+public class ProductRegistry {
+
+    private volatile CatalogueSnapshot snapshot = new CatalogueSnapshot(0, new HashMap<String, LoanProduct>(),
+            new HashMap<String, CardProduct>());
+
+    private final List<CatalogueListener> listeners = new ArrayList<CatalogueListener>();
+
+    /**
+     * @return The current version of the catalogue. Version 0 is empty.
+     */
+    public CatalogueSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public synchronized void addListener(CatalogueListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(CatalogueListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Replaces the whole catalogue
+     * 
+     * @return The new version. The current one if nothing differs.
+     */
+    public synchronized CatalogueSnapshot publish(Map<String, LoanProduct> loanProducts,
+            Map<String, CardProduct> cardProducts) {
+
+        Map<String, LoanProduct> loans = new HashMap<String, LoanProduct>();
+        Map<String, CardProduct> cards = new HashMap<String, CardProduct>();
+
+        for (Map.Entry<String, LoanProduct> entry : loanProducts.entrySet()) {
+            loans.put(entry.getKey(), entry.getValue().copy());
+        }
+
+        for (Map.Entry<String, CardProduct> entry : cardProducts.entrySet()) {
+            cards.put(entry.getKey(), entry.getValue().copy());
+        }
+
+        return swap(loans, cards);
+    }
+
+    /**
+     * Adds or replaces one loan product
+     * 
+     * @return The new version. The current one if nothing differs.
+     */
+    public synchronized CatalogueSnapshot putLoanProduct(String id, LoanProduct product) {
+        Map<String, LoanProduct> loans = new HashMap<String, LoanProduct>(snapshot.getLoanProducts());
+        loans.put(id, product.copy());
+        return swap(loans, new HashMap<String, CardProduct>(snapshot.getCardProducts()));
+    }
+
+    /**
+     * Adds or replaces one card product
+     * 
+     * @return The new version. The current one if nothing differs.
+     */
+    public synchronized CatalogueSnapshot putCardProduct(String id, CardProduct product) {
+        Map<String, CardProduct> cards = new HashMap<String, CardProduct>(snapshot.getCardProducts());
+        cards.put(id, product.copy());
+        return swap(new HashMap<String, LoanProduct>(snapshot.getLoanProducts()), cards);
+    }
+
+    /**
+     * @return The new version. The current one if there was no such product.
+     */
+    public synchronized CatalogueSnapshot removeLoanProduct(String id) {
+
+        if (!snapshot.getLoanProducts().containsKey(id)) {
+            return snapshot;
+        }
+
+        Map<String, LoanProduct> loans = new HashMap<String, LoanProduct>(snapshot.getLoanProducts());
+        loans.remove(id);
+        return swap(loans, new HashMap<String, CardProduct>(snapshot.getCardProducts()));
+    }
+
+    /**
+     * @return The new version. The current one if there was no such product.
+     */
+    public synchronized CatalogueSnapshot removeCardProduct(String id) {
+
+        if (!snapshot.getCardProducts().containsKey(id)) {
+            return snapshot;
+        }
+
+        Map<String, CardProduct> cards = new HashMap<String, CardProduct>(snapshot.getCardProducts());
+        cards.remove(id);
+        return swap(new HashMap<String, LoanProduct>(snapshot.getLoanProducts()), cards);
+    }
+
+    /**
+     * <p>
+     * Makes the next version from 'loans' and 'cards', if they differ from the current version, and tells the
+     * listeners. The products of the new version are complete before the snapshot is visible to the quote threads.
+     * </p>
+     * 
+     * <p>
+     * A product with the same terms as in the current version is replaced by the current object, so products that
+     * are not changed are shared by the versions.
+     * </p>
+     */
+    private CatalogueSnapshot swap(Map<String, LoanProduct> loans, Map<String, CardProduct> cards) {
+
+        List<CatalogueChange> changes = new ArrayList<CatalogueChange>();
+
+        Map<String, LoanProduct> old_loans = snapshot.getLoanProducts();
+
+        for (Map.Entry<String, LoanProduct> entry : loans.entrySet()) {
+
+            LoanProduct old = old_loans.get(entry.getKey());
+
+            if (old == null) {
+                changes.add(new CatalogueChange(CatalogueChange.Kind.LOAN, CatalogueChange.Type.ADDED, entry.getKey(),
+                        true, true));
+            } else if (old != entry.getValue()) {
+
+                boolean prices_changed = !old.samePrices(entry.getValue());
+                boolean fees_changed = !old.sameFees(entry.getValue());
+
+                if (prices_changed || fees_changed) {
+                    changes.add(new CatalogueChange(CatalogueChange.Kind.LOAN, CatalogueChange.Type.CHANGED, entry
+                            .getKey(), prices_changed, fees_changed));
+                } else {
+                    entry.setValue(old);
+                }
+            }
+        }
+
+        for (String id : old_loans.keySet()) {
+            if (!loans.containsKey(id)) {
+                changes.add(new CatalogueChange(CatalogueChange.Kind.LOAN, CatalogueChange.Type.REMOVED, id, true,
+                        true));
+            }
+        }
+
+        Map<String, CardProduct> old_cards = snapshot.getCardProducts();
+
+        for (Map.Entry<String, CardProduct> entry : cards.entrySet()) {
+
+            CardProduct old = old_cards.get(entry.getKey());
+
+            if (old == null) {
+                changes.add(new CatalogueChange(CatalogueChange.Kind.CARD, CatalogueChange.Type.ADDED, entry.getKey(),
+                        true, true));
+            } else if (old != entry.getValue()) {
+
+                boolean prices_changed = !old.samePrices(entry.getValue());
+                boolean fees_changed = !old.sameFees(entry.getValue());
+
+                if (prices_changed || fees_changed) {
+                    changes.add(new CatalogueChange(CatalogueChange.Kind.CARD, CatalogueChange.Type.CHANGED, entry
+                            .getKey(), prices_changed, fees_changed));
+                } else {
+                    entry.setValue(old);
+                }
+            }
+        }
+
+        for (String id : old_cards.keySet()) {
+            if (!cards.containsKey(id)) {
+                changes.add(new CatalogueChange(CatalogueChange.Kind.CARD, CatalogueChange.Type.REMOVED, id, true,
+                        true));
+            }
+        }
+
+        if (changes.isEmpty()) {
+            return snapshot;
+        }
+
+        CatalogueSnapshot next = new CatalogueSnapshot(snapshot.getVersion() + 1, loans, cards);
+        snapshot = next;
+
+        for (CatalogueListener listener : listeners) {
+            listener.catalogueChanged(next, changes);
+        }
+
+        return next;
+    }
+
+}
@@ -0,0 +1,170 @@
+package no.finansportalen.freecalc.catalogue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+
+/**
+ * <p>
+ * The results of one quote - one borrower's loan or card use - for every product of one kind in the catalogue, and
+ * the products ranked by the results, the cheapest first.
+ * </p>
+ * 
+ * <p>
+ * Registered as a listener on the ProductRegistry, the cache follows the catalogue: When a version is published, only
+ * the products that changed are quoted again and moved in the ranking. The results of the other products are carried
+ * over from the previous version - they were computed from the same terms.
+ * </p>
+ * 
+ * <p>
+ * A subclass quotes one product with quote(), and tells what to rank by with rankingKey(). A product that fails to
+ * quote - for instance because the loan is outside its price list - has no result and is not ranked. The methods are
+ * synchronized, so the cache might be read while the catalogue is published.
+ * </p>
+ */
+public abstract class QuoteCache<R> implements CatalogueListener {
+
+    private final CatalogueChange.Kind kind;
+
+    private final Map<String, R> results = new HashMap<String, R>();
+
+    private final Map<String, Double> keys = new HashMap<String, Double>();
+
+    /**
+     * The ids of the products with results, by rising key
+     */
+    private final List<String> ranking = new ArrayList<String>();
+
+    /**
+     * The version of the catalogue the cache is up to date with
+     */
+    private long version = 0;
+
+    /**
+     * The number of quotes computed since the cache was made
+     */
+    private int quotes = 0;
+
+    public QuoteCache(CatalogueChange.Kind kind) {
+        this.kind = kind;
+    }
+
+    /**
+     * The result of the quote for product 'id' in 'snapshot'
+     */
+    protected abstract R quote(CatalogueSnapshot snapshot, String id) throws FreeLoanException;
+
+    /**
+     * What the products are ranked by, the lowest first - normally the effective interest rate
+     */
+    protected abstract double rankingKey(R result);
+
+    /**
+     * Quotes all products of 'snapshot', as when the cache is made
+     */
+    public synchronized void load(CatalogueSnapshot snapshot) {
+
+        results.clear();
+        keys.clear();
+        ranking.clear();
+
+        for (String id : kind == CatalogueChange.Kind.LOAN ? snapshot.getLoanProductIds() : snapshot
+                .getCardProductIds()) {
+            update(snapshot, id);
+        }
+
+        version = snapshot.getVersion();
+    }
+
+    public synchronized void catalogueChanged(CatalogueSnapshot snapshot, List<CatalogueChange> changes) {
+
+        for (CatalogueChange change : changes) {
+
+            if (change.getKind() != kind) {
+                continue;
+            }
+
+            remove(change.getId());
+
+            if (change.getType() != CatalogueChange.Type.REMOVED) {
+                update(snapshot, change.getId());
+            }
+        }
+
+        version = snapshot.getVersion();
+    }
+
+    /**
+     * Quotes product 'id' and places it in the ranking
+     */
+    private void update(CatalogueSnapshot snapshot, String id) {
+
+        R result;
+
+        try {
+            quotes++;
+            result = quote(snapshot, id);
+        } catch (FreeLoanException e) {
+            return;
+        }
+
+        double key = rankingKey(result);
+
+        // Binary search for the first product with a higher key
+        int low = 0;
+        int high = ranking.size();
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys.get(ranking.get(mid)) <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        ranking.add(low, id);
+        results.put(id, result);
+        keys.put(id, key);
+    }
+
+    private void remove(String id) {
+        if (results.remove(id) != null) {
+            keys.remove(id);
+            ranking.remove(id);
+        }
+    }
+
+    /**
+     * @return null: There is no such product, or it failed to quote
+     */
+    public synchronized R getResult(String id) {
+        return results.get(id);
+    }
+
+    /**
+     * @return The ids of the products with results, the cheapest first. A copy.
+     */
+    public synchronized List<String> getRanking() {
+        return Collections.unmodifiableList(new ArrayList<String>(ranking));
+    }
+
+    /**
+     * @return The version of the catalogue the cache is up to date with
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The number of quotes computed since the cache was made
+     */
+    public synchronized int getQuotes() {
+        return quotes;
+    }
+
+}
@@ -0,0 +1,311 @@
+package no.finansportalen.freecalc.common;
+
+/**
+ * <p>
+ * The internal rate of return of a stream of payments: The discount factor 'k' per period that makes the present value
+ * of the payments equal to the amount received. The effective rate of FreeLoan's annuity and serial loans and of
+ * FreeCard is found here, each calculator only describing its payments.
+ * </p>
+ *
+ * <p>
+ * The payments are kept as runs in primitive arrays: 'count' equal payments of 'amount', one period apart, the first at
+ * time 'start' (in periods). An annuity interval of 'numberOfTerms' payments is one run, and consecutive equal payments
+ * added one by one are joined into one run. The present value of a run is the sum of a geometric series:
+ * </p>
+ *
+ * <p>
+ * PV = amount / (1 - k) * (k^a - k^b), where a = start and b = start + count
+ * </p>
+ *
+ * <p>
+ * Differentiated with respect to 'k' by the product rule and the power rule:
+ * </p>
+ *
+ * <p>
+ * PV_dif = PV / (1 - k) + amount / (1 - k) * (a * k^a - b * k^b) / k
+ * </p>
+ *
+ * <p>
+ * A run of one payment is discounted directly, amount * k^a. The powers of 'k' for the start and end of all runs are
+ * computed together by DiscountPowers, without Math.pow() when the times are whole numbers. A stream of runs thus costs
+ * the same whether the runs are long or short.
+ * </p>
+ *
+ * <p>
+ * solve() is Newton's method on 'k'. It stops early when the deadline has passed, and the calculator asks
+ * isDeadlineExceeded() and gives up with its own error. Like FreeLoan, an object must only be used by one thread at a time. It can be
+ * cleared and reused.
+ * </p>
+ */
+public class CashflowIrr {
+
+    private double[] starts = new double[16];
+
+    private double[] counts = new double[16];
+
+    private double[] amounts = new double[16];
+
+    private int size = 0;
+
+    /**
+     * k raised to the start of run 'i' at 2 * i and to its end at 2 * i + 1. null: Runs added since it was made.
+     */
+    private DiscountPowers powers = null;
+
+    /**
+     * The derivative of the present value last computed
+     */
+    private double derivative;
+
+    /**
+     * The number of iterations of the last solve()
+     */
+    private int rounds;
+
+    /**
+     * The last solve() stopped because the deadline had passed
+     */
+    private boolean deadlineExceeded;
+
+    /**
+     * solve() stops when the present value is this close to the amount received
+     */
+    private double tolerance = 0.000001;
+
+    /**
+     * The largest error accepted in the effective rate, in basis points. Set: solve() stops at the step in 'k' instead
+     * of the tolerance.
+     */
+    private Double maxRateError = null;
+
+    /**
+     * Periods per year, for 'maxRateError'
+     */
+    private int periodsPerYear = 12;
+
+    private Deadline deadline = null;
+
+    /**
+     * Removes all payments
+     */
+    public void clear() {
+        size = 0;
+        powers = null;
+    }
+
+    /**
+     * One payment at time 'time'. Joined with the last run when it has the same amount and ends at 'time'.
+     */
+    public void add(double time, double amount) {
+
+        if (size > 0 && amounts[size - 1] == amount && starts[size - 1] + counts[size - 1] == time) {
+            counts[size - 1]++;
+            powers = null;
+            return;
+        }
+
+        addRun(time, 1, amount);
+    }
+
+    /**
+     * 'count' payments of 'amount', at 'start', 'start' + 1, .. 'start' + 'count' - 1. Runs of no payments are left out.
+     */
+    public void addRun(double start, double count, double amount) {
+
+        if (count == 0) {
+            return;
+        }
+
+        if (size == starts.length) {
+            starts = copy(starts, 2 * size);
+            counts = copy(counts, 2 * size);
+            amounts = copy(amounts, 2 * size);
+        }
+
+        starts[size] = start;
+        counts[size] = count;
+        amounts[size] = amount;
+        size++;
+
+        powers = null;
+    }
+
+    /**
+     * All payments moved 'periods' later. The runs stay as they are.
+     */
+    public void shift(double periods) {
+
+        for (int i = 0; i < size; i++) {
+            starts[i] += periods;
+        }
+
+        powers = null;
+    }
+
+    /**
+     * @return The present value of all payments, discounted by 'k' per period. The derivative is kept for
+     *         getDerivative().
+     */
+    public double presentValue(double k) {
+
+        if (powers == null) {
+            double[] exponents = new double[2 * size];
+            for (int i = 0; i < size; i++) {
+                exponents[2 * i] = starts[i];
+                exponents[2 * i + 1] = starts[i] + counts[i];
+            }
+            powers = new DiscountPowers(exponents);
+        }
+
+        powers.compute(k);
+
+        double PV = 0;
+        double PV_dif = 0;
+
+        double one_minus_k = 1 - k;
+
+        for (int i = 0; i < size; i++) {
+
+            double power_start = powers.get(2 * i);
+
+            if (counts[i] == 1) {
+                double value = amounts[i] * power_start;
+                PV += value;
+                PV_dif += value * starts[i] / k;
+            } else {
+                double power_end = powers.get(2 * i + 1);
+                double end = starts[i] + counts[i];
+
+                double series = amounts[i] / one_minus_k * (power_start - power_end);
+
+                PV += series;
+                PV_dif += series / one_minus_k + amounts[i] / one_minus_k * (starts[i] * power_start - end * power_end)
+                        / k;
+            }
+        }
+
+        derivative = PV_dif;
+
+        return PV;
+    }
+
+    /**
+     * @return The derivative with respect to 'k' of the present value last computed
+     */
+    public double getDerivative() {
+        return derivative;
+    }
+
+    /**
+     * @param received
+     *            The amount the present value shall equal
+     * @param k
+     *            The discount factor to start from
+     * @return The discount factor per period. At most 100 iterations. Unfinished if isDeadlineExceeded().
+     */
+    public double solve(double received, double k) {
+
+        double comp = maxRateError == null ? tolerance : 0;
+
+        // 'y' is the function value that we want to make close to '0'
+        double y = comp + 1;
+
+        rounds = 0;
+        deadlineExceeded = false;
+
+        while (Math.abs(y) > comp && rounds < 100) {
+
+            if (deadline != null && deadline.isExpired()) {
+                deadlineExceeded = true;
+                break;
+            }
+
+            y = presentValue(k) - received;
+
+            // The increase in 'k' necessary at the tangent's intersection with the PV-axis
+            double delta = -y / derivative;
+
+            // The annuity function crashes at k = 1
+            if (k + delta != 1) {
+                k += delta;
+            }
+
+            rounds++;
+
+            if (maxRateError != null
+                    && Math.abs(delta) <= Utils.discountFactorTolerance(maxRateError, k, periodsPerYear)) {
+                break;
+            }
+        }
+
+        return k;
+    }
+
+    /**
+     * @return The number of iterations of the last solve()
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return The last solve() stopped because the deadline had passed or the calculation was cancelled
+     */
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    /**
+     * @return The number of runs
+     */
+    public int size() {
+        return size;
+    }
+
+    public double getStart(int i) {
+        return starts[i];
+    }
+
+    public double getCount(int i) {
+        return counts[i];
+    }
+
+    public double getAmount(int i) {
+        return amounts[i];
+    }
+
+    /**
+     * @param tolerance
+     *            solve() stops when the present value is this close to the amount received. Default: 0.000001
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param maxRateError
+     *            The largest error accepted in the effective rate, in basis points. null: 'tolerance' decides.
+     */
+    public void setMaxRateError(Double maxRateError) {
+        this.maxRateError = maxRateError;
+    }
+
+    /**
+     * @param periodsPerYear
+     *            Periods per year, for 'maxRateError'. Default: 12
+     */
+    public void setPeriodsPerYear(int periodsPerYear) {
+        this.periodsPerYear = periodsPerYear;
+    }
+
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    private static double[] copy(double[] array, int length) {
+        double[] copy = new double[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+}
@@ -0,0 +1,40 @@
+package no.finansportalen.freecalc.common;
+
+/**
+ * <p>
+ * How the time between two dates is measured in years, for discounting dated payments.
+ * </p>
+ *
+ * <p>
+ * ACT_365: The actual number of days divided by 365, as in the calculation of the effective rate (APR) of the
+ * consumer credit directive (2008/48/EC, annex I). Leap years give a year of 366/365.
+ * </p>
+ *
+ * <p>
+ * THIRTY_360: Every month has 30 days and the year 360 (30E/360, the Eurobond basis): The 31st counts as the 30th. Equal
+ * monthly payments then come at exactly 1/12 year apart, as in the calculations without dates.
+ * </p>
+ */
+public enum DayCount {
+
+    ACT_365, THIRTY_360;
+
+    /**
+     * @return The time from 'startDay' to 'endDay', epoch days, in years
+     */
+    public double yearFraction(int startDay, int endDay) {
+
+        if (this == ACT_365) {
+            return (endDay - startDay) / 365.0;
+        }
+
+        int[] start = EpochDays.toDate(startDay);
+        int[] end = EpochDays.toDate(endDay);
+
+        int days = 360 * (end[0] - start[0]) + 30 * (end[1] - start[1]) + Math.min(end[2], 30)
+                - Math.min(start[2], 30);
+
+        return days / 360.0;
+    }
+
+}
@@ -0,0 +1,63 @@
+package no.finansportalen.freecalc.common;
+
+/**
+ * <p>
+ * The latest time a calculation may go on, and a flag to stop it before that. The calculators check the deadline
+ * between iterations and every so many periods, and give up with DEADLINE_EXCEEDED when it has passed or the
+ * calculation is cancelled. The check is cooperative: A calculation is not interrupted in the middle of a step, so it
+ * might run somewhat past the deadline.
+ * </p>
+ * 
+ * <p>
+ * A deadline might be shared by several calculations - for instance all quotes of one request - and cancelled from
+ * another thread.
+ * </p>
+ */
+public class Deadline {
+
+    /**
+     * The deadline, as System.currentTimeMillis()
+     */
+    private final long end;
+
+    private volatile boolean cancelled = false;
+
+    private Deadline(long end) {
+        this.end = end;
+    }
+
+    /**
+     * @param millis
+     *            From now
+     */
+    public static Deadline after(long millis) {
+        long now = System.currentTimeMillis();
+        return new Deadline(millis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + millis);
+    }
+
+    /**
+     * A deadline that never passes, and only stops the calculation when cancelled
+     */
+    public static Deadline never() {
+        return new Deadline(Long.MAX_VALUE);
+    }
+
+    /**
+     * Stops the calculations at their next check
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return The deadline has passed, or the calculation is cancelled
+     */
+    public boolean isExpired() {
+        return cancelled || (end != Long.MAX_VALUE && System.currentTimeMillis() >= end);
+    }
+
+}
@@ -0,0 +1,98 @@
+package no.finansportalen.freecalc.common;
+
+/**
+ * <p>
+ * Dates as the number of days since 1970-01-01 (the epoch day), in the proleptic Gregorian calendar. A date is a plain
+ * int: The number of days between two dates is a subtraction, and a payment plan of dates is an int array.
+ * </p>
+ *
+ * <p>
+ * Conversion to and from year, month and day uses the integer algorithms of Howard Hinnant ("chrono-Compatible
+ * Low-Level Date Algorithms"): Eras of 400 years, years starting on 1 March so that the leap day is the last day of the
+ * year. No tables, no branches on the month, and no java.util.Calendar, which is neither fast nor available in the
+ * browser.
+ * </p>
+ */
+public class EpochDays {
+
+    private EpochDays() {
+    }
+
+    /**
+     * @param month
+     *            1 - 12
+     * @param day
+     *            1 - 31
+     * @return The epoch day of the date
+     */
+    public static int of(int year, int month, int day) {
+
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+
+        // Year of era [0, 399]
+        int yoe = y - era * 400;
+
+        // Day of year [0, 365], counted from 1 March
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+
+        // Day of era [0, 146096]
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * @return {year, month, day} of 'epochDay'
+     */
+    public static int[] toDate(int epochDay) {
+
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = z - era * 146097;
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+
+        // Month counted from March [0, 11]
+        int mp = (5 * doy + 2) / 153;
+
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        return new int[] {year, month, day};
+    }
+
+    public static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    /**
+     * @param month
+     *            1 - 12
+     */
+    public static int lengthOfMonth(int year, int month) {
+        if (month == 2) {
+            return isLeapYear(year) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * @return The same day of the month 'months' months later. If that month is shorter, its last day: 31 January plus
+     *         one month is 28 or 29 February.
+     */
+    public static int plusMonths(int epochDay, int months) {
+
+        int[] date = toDate(epochDay);
+
+        // Months since year 0, counted from 0
+        int total = date[0] * 12 + date[1] - 1 + months;
+
+        int year = total >= 0 ? total / 12 : (total - 11) / 12;
+        int month = total - year * 12 + 1;
+
+        return of(year, month, Math.min(date[2], lengthOfMonth(year, month)));
+    }
+
+}
@@ -0,0 +1,192 @@
+package no.finansportalen.freecalc.common;
+
+/**
+ * <p>
+ * Quantiles of a stream of numbers, without storing the numbers (a "DDSketch", after Masson, Rim and Lee). The numbers
+ * are counted in buckets growing geometrically by the factor 'gamma' = (1 + accuracy) / (1 - accuracy). Every quantile
+ * returned is then within the relative error 'accuracy' of the true quantile, no matter how many numbers are added.
+ * </p>
+ *
+ * <p>
+ * Positive and negative numbers are counted in separate buckets, zero by itself. The buckets are arrays of counts
+ * covering the bucket numbers seen so far, so only a new, far larger or smaller number makes the arrays grow.
+ * </p>
+ *
+ * <p>
+ * Sketches with the same accuracy can be merged, for instance when parts of a simulation are run separately.
+ * </p>
+ */
+public class QuantileSketch {
+
+    /**
+     * The relative accuracy of the quantiles, for instance 0.01 = 1%
+     */
+    private final double accuracy;
+
+    /**
+     * The natural logarithm of the bucket growth factor
+     */
+    private final double logGamma;
+
+    private final Buckets positive = new Buckets();
+
+    private final Buckets negative = new Buckets();
+
+    private long zeroCount = 0;
+
+    private long count = 0;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch(double accuracy) {
+        this.accuracy = accuracy;
+        this.logGamma = Math.log((1 + accuracy) / (1 - accuracy));
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             If 'value' is NaN, which has no place among the buckets and would make the minimum and maximum NaN
+     */
+    public void add(double value) {
+
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("NaN");
+        }
+
+        if (value > 0) {
+            positive.add(bucket(value), 1);
+        } else if (value < 0) {
+            negative.add(bucket(-value), 1);
+        } else {
+            zeroCount++;
+        }
+
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds all numbers counted in 'other', which must have the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+
+        if (other.accuracy != accuracy) {
+            throw new IllegalArgumentException("Sketches with different accuracy");
+        }
+
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param probability
+     *            Between 0 and 1
+     * @return The number that the share 'probability' of the numbers are below or equal to. NaN when nothing is added.
+     */
+    public double quantile(double probability) {
+
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        long rank = (long) Math.floor(probability * (count - 1));
+
+        double value;
+
+        // The negative numbers from the largest bucket, the zeros, then the positive numbers from the smallest bucket
+        if (rank < negative.total) {
+            value = -negative.value(negative.total - 1 - rank, this);
+        } else if (rank < negative.total + zeroCount) {
+            value = 0;
+        } else {
+            value = positive.value(rank - negative.total - zeroCount, this);
+        }
+
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    private int bucket(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    /**
+     * The number in the middle of bucket 'index', by relative distance to its limits
+     */
+    private double bucketValue(int index) {
+        return 2 * Math.exp(index * logGamma) / (1 + Math.exp(logGamma));
+    }
+
+    /**
+     * Counts per bucket number, from bucket number 'offset' and up
+     */
+    private static class Buckets {
+
+        private long[] counts = new long[0];
+
+        private int offset = 0;
+
+        private long total = 0;
+
+        void add(int index, long number) {
+
+            if (counts.length == 0) {
+                counts = new long[64];
+                offset = index - 32;
+            } else if (index < offset || index >= offset + counts.length) {
+                int low = Math.min(index, offset);
+                int high = Math.max(index, offset + counts.length - 1);
+                long[] grown = new long[2 * (high - low + 1)];
+                int new_offset = low - (grown.length - (high - low + 1)) / 2;
+                System.arraycopy(counts, 0, grown, offset - new_offset, counts.length);
+                counts = grown;
+                offset = new_offset;
+            }
+
+            counts[index - offset] += number;
+            total += number;
+        }
+
+        void merge(Buckets other) {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] > 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        /**
+         * The number with rank 'rank', from the smallest
+         */
+        double value(long rank, QuantileSketch sketch) {
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen > rank) {
+                    return sketch.bucketValue(offset + i);
+                }
+            }
+            return sketch.bucketValue(offset + counts.length - 1);
+        }
+
+    }
+
+}
@@ -0,0 +1,190 @@
+package no.finansportalen.freecalc.common;
+
+import no.finansportalen.freecalc.common.Utils.RoundDirection;
+
+/**
+ * <p>
+ * How the payments of a loan or a card are rounded: To the minor unit of the currency (1/100 for NOK, EUR and most
+ * others, whole units for JPY and ISK), or to a larger cash step such as 0.05, up, down or after normal rules.
+ * </p>
+ *
+ * <p>
+ * The factor an amount is multiplied with before it is rounded to a whole number - 100 for cents, 20 for 0.05 steps, 1
+ * for whole units - is computed once, when the policy is made. round() then does the same multiplication, rounding and
+ * division as Utils.roundoff() did, so a policy of two decimals gives exactly the same payments as 'roundToInteger' =
+ * false, and a policy of no decimals the same as 'roundToInteger' = true.
+ * </p>
+ *
+ * <p>
+ * All amounts of a calculation - principal, fees and payments - are in the currency of the policy. There is no
+ * conversion between currencies. Policies are immutable and may be shared.
+ * </p>
+ */
+public class RoundingPolicy {
+
+    /**
+     * Currencies with a minor unit other than 1/100 (ISO 4217)
+     */
+    private static final String[] ZERO_DECIMAL_CURRENCIES = {"CLP", "ISK", "JPY", "KRW", "PYG", "UGX", "VND"};
+
+    private static final String[] THREE_DECIMAL_CURRENCIES = {"BHD", "IQD", "JOD", "KWD", "LYD", "OMR", "TND"};
+
+    /**
+     * Two decimals, normal rounding - the default of FreeLoan and FreeCard
+     */
+    public static final RoundingPolicy DEFAULT = new RoundingPolicy("NOK", 2, 1, RoundDirection.NORMAL);
+
+    private final String currency;
+
+    private final int decimals;
+
+    /**
+     * The cash step in minor units: 1 rounds to the minor unit, 5 to 0.05 with two decimals
+     */
+    private final int increment;
+
+    private final RoundDirection direction;
+
+    /**
+     * The number of steps per whole currency unit: 10^decimals / increment
+     */
+    private final double factor;
+
+    /**
+     * @param currency
+     *            ISO 4217 code. Only kept for reference: The rounding is given by the other parameters.
+     * @param decimals
+     *            The number of decimals of the minor unit: 2 for 1/100
+     * @param increment
+     *            The cash step in minor units. 1: No cash rounding.
+     * @param direction
+     *            NORMAL: Normal rounding rules apply UP: Rounds up DOWN: Rounds down
+     */
+    public RoundingPolicy(String currency, int decimals, int increment, RoundDirection direction) {
+
+        if (decimals < 0 || increment < 1 || direction == null) {
+            throw new IllegalArgumentException("Invalid rounding: " + decimals + " decimals, increment " + increment);
+        }
+
+        this.currency = currency;
+        this.decimals = decimals;
+        this.increment = increment;
+        this.direction = direction;
+
+        double scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+
+        this.factor = scale / increment;
+    }
+
+    /**
+     * @return The policy for 'currency': Its minor unit, no cash rounding, normal rounding
+     */
+    public static RoundingPolicy forCurrency(String currency) {
+        return new RoundingPolicy(currency, minorUnitDecimals(currency), 1, RoundDirection.NORMAL);
+    }
+
+    /**
+     * @return The number of decimals of the minor unit of 'currency'. 2 when the currency is not known.
+     */
+    public static int minorUnitDecimals(String currency) {
+        for (String code : ZERO_DECIMAL_CURRENCIES) {
+            if (code.equals(currency)) {
+                return 0;
+            }
+        }
+        for (String code : THREE_DECIMAL_CURRENCIES) {
+            if (code.equals(currency)) {
+                return 3;
+            }
+        }
+        return 2;
+    }
+
+    /**
+     * @return The policy that Utils.roundoff(number, direction, roundToInteger) rounds by
+     */
+    public static RoundingPolicy of(RoundDirection direction, boolean roundToInteger) {
+        return DEFAULT.withDirection(direction).withDecimals(roundToInteger ? 0 : 2);
+    }
+
+    /**
+     * @return This policy rounding in 'direction'
+     */
+    public RoundingPolicy withDirection(RoundDirection direction) {
+        return direction == this.direction ? this : new RoundingPolicy(currency, decimals, increment, direction);
+    }
+
+    /**
+     * @return This policy rounding to 'decimals' decimals, without cash rounding
+     */
+    public RoundingPolicy withDecimals(int decimals) {
+        return decimals == this.decimals && increment == 1 ? this : new RoundingPolicy(currency, decimals, 1,
+                direction);
+    }
+
+    /**
+     * @return This policy rounding to the minor unit of its currency. Unchanged, cash rounding included, if it already
+     *         does.
+     */
+    public RoundingPolicy withCurrencyDecimals() {
+        int currencyDecimals = minorUnitDecimals(currency);
+        return currencyDecimals == decimals ? this : withDecimals(currencyDecimals);
+    }
+
+    /**
+     * @param increment
+     *            The cash step in minor units: 5 for 0.05 with two decimals
+     * @return This policy rounding to steps of 'increment'
+     */
+    public RoundingPolicy withIncrement(int increment) {
+        return increment == this.increment ? this : new RoundingPolicy(currency, decimals, increment, direction);
+    }
+
+    /**
+     * @return 'number' rounded to a whole step in the direction of the policy
+     */
+    public double round(double number) {
+        if (direction == RoundDirection.UP) {
+            return Math.ceil(number * factor) / factor;
+        } else if (direction == RoundDirection.DOWN) {
+            return Math.floor(number * factor) / factor;
+        } else {
+            return Math.round(number * factor) / factor;
+        }
+    }
+
+    /**
+     * @return 'number' rounded to the nearest whole step, whatever the direction of the policy. Used for residues and
+     *         remainders, which are not payments.
+     */
+    public double roundNearest(double number) {
+        return Math.round(number * factor) / factor;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public int getDecimals() {
+        return decimals;
+    }
+
+    public int getIncrement() {
+        return increment;
+    }
+
+    public RoundDirection getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return true: Payments are rounded to whole currency units
+     */
+    public boolean isWholeUnits() {
+        return factor == 1;
+    }
+
+}
@@ -0,0 +1,28 @@
+package no.finansportalen.freecalc.common;
+
+/**
+ * <p>
+ * Receives the periods of a payment plan one by one, as the calculator computes them, instead of an array of period
+ * objects in the result. See FreeLoan.serialLoan(ScheduleSink).
+ * </p>
+ */
+public interface ScheduleSink {
+
+    /**
+     * @param period
+     *            The number of the period, from 0 (interest in advance) or 1
+     * @param payment
+     *            The whole rounded payment, included installment and fees
+     * @param interest
+     *            The interest part of the payment
+     * @param installment
+     *            The installment part of the payment, after rounding
+     * @param periodicFee
+     *            The fee part of the payment
+     * @param remainingPrincipal
+     *            The principal remaining after the payment
+     */
+    void period(int period, double payment, double interest, double installment, double periodicFee,
+            double remainingPrincipal);
+
+}
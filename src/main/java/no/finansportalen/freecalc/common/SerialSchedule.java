@@ -0,0 +1,273 @@
+package no.finansportalen.freecalc.common;
+
+/**
+ * <p>
+ * The payment plan of a serial loan as runs of periods instead of one row per period. See
+ * FreeLoan.setEncodeSchedule().
+ * </p>
+ *
+ * <p>
+ * Within a segment of the loan, the installment and the fee are constant and the interest declines linearly with the
+ * remaining principal. A run is such a stretch of periods: The same segment, rate, fixed interest, installment and fee.
+ * A new run starts when the loan passes a segment limit, when the interest-only periods end, and for the period without
+ * interest at the end of a loan with interest in advance. A loan of 240 periods in three segments is thus three or four
+ * runs, whatever the number of periods.
+ * </p>
+ *
+ * <p>
+ * The payments are rounded, and the rounding is added to / subtracted from the principal. The rounded rows are
+ * therefore not exactly an arithmetic series, and a run keeps what is needed to compute them again: The remaining
+ * principal at its start and the terms of the period. expand() repeats the calculation of FreeLoan.serialLoan() with the
+ * same operations in the same order, and gives the same rows to the last decimal.
+ * </p>
+ *
+ * <p>
+ * The runs are kept in primitive arrays, as in CashflowIrr.
+ * </p>
+ */
+public class SerialSchedule {
+
+    private int[] firsts = new int[4];
+
+    private int[] counts = new int[4];
+
+    /**
+     * The remaining principal before the first period of the run
+     */
+    private double[] principals = new double[4];
+
+    /**
+     * The part of the principal in the segments below, subtracted to find the principal of the segment
+     */
+    private double[] floors = new double[4];
+
+    /**
+     * The periodic rate of the segment, in decimal fraction
+     */
+    private double[] rates = new double[4];
+
+    /**
+     * The interest amount of the segments below, where no installments are paid
+     */
+    private double[] fixedInterests = new double[4];
+
+    /**
+     * false: No interest is paid. The last period of a loan with interest in advance.
+     */
+    private boolean[] interests = new boolean[4];
+
+    /**
+     * false: Interest only
+     */
+    private boolean[] installmentsPaid = new boolean[4];
+
+    private double[] installments = new double[4];
+
+    private double[] fees = new double[4];
+
+    private int size = 0;
+
+    private final RoundingPolicy roundingPolicy;
+
+    /**
+     * @param roundingPolicy
+     *            How the payments were rounded
+     */
+    public SerialSchedule(RoundingPolicy roundingPolicy) {
+        this.roundingPolicy = roundingPolicy;
+    }
+
+    /**
+     * Period 'period' of the loan, with the remaining principal 'principal' before it. Joined with the last run when it
+     * follows it and has the same terms.
+     */
+    public void add(int period, double principal, double floor, double rate, double fixedInterest, boolean interest,
+            boolean installmentPaid, double installment, double fee) {
+
+        int last = size - 1;
+
+        if (size > 0 && firsts[last] + counts[last] == period && floors[last] == floor && rates[last] == rate
+                && fixedInterests[last] == fixedInterest && interests[last] == interest
+                && installmentsPaid[last] == installmentPaid && installments[last] == installment
+                && fees[last] == fee) {
+            counts[last]++;
+            return;
+        }
+
+        if (size == firsts.length) {
+            grow(2 * size);
+        }
+
+        firsts[size] = period;
+        counts[size] = 1;
+        principals[size] = principal;
+        floors[size] = floor;
+        rates[size] = rate;
+        fixedInterests[size] = fixedInterest;
+        interests[size] = interest;
+        installmentsPaid[size] = installmentPaid;
+        installments[size] = installment;
+        fees[size] = fee;
+        size++;
+    }
+
+    /**
+     * Writes the rows of all runs to 'sink', as FreeLoan.serialLoan(ScheduleSink) does
+     */
+    public void expand(ScheduleSink sink) {
+        for (int i = 0; i < size; i++) {
+            expand(i, sink, null);
+        }
+    }
+
+    /**
+     * @return The rows, indexed by period as the periods of SerialLoanResult. Row 0 is null unless interest is paid in
+     *         advance.
+     */
+    public SerialLoanPeriod[] expand() {
+
+        SerialLoanPeriod[] rows = new SerialLoanPeriod[size == 0 ? 0 : getLastPeriod() + 1];
+
+        for (int i = 0; i < size; i++) {
+            expand(i, null, rows);
+        }
+
+        return rows;
+    }
+
+    /**
+     * Computes the periods of run 'run' from the principal at its start, to 'sink' or 'rows'
+     */
+    private void expand(int run, ScheduleSink sink, SerialLoanPeriod[] rows) {
+
+        double rem_princ = principals[run];
+
+        int end = firsts[run] + counts[run];
+
+        for (int i = firsts[run]; i < end; i++) {
+
+            double rem_segm = rem_princ - floors[run];
+
+            double int_per = interests[run] ? fixedInterests[run] + rem_segm * rates[run] : 0;
+
+            double paym_per = installmentsPaid[run] ? int_per + installments[run] : int_per;
+
+            paym_per += fees[run];
+
+            double payment = roundingPolicy.round(paym_per);
+
+            double adj_inst = payment - int_per - fees[run];
+
+            rem_princ -= adj_inst;
+
+            if (sink != null) {
+                sink.period(i, payment, int_per, adj_inst, fees[run], rem_princ);
+            } else {
+                SerialLoanPeriod row = new SerialLoanPeriod();
+                row.setPayment(payment);
+                row.setInstallment(adj_inst);
+                row.setPeriodicFee(fees[run]);
+                rows[i] = row;
+            }
+        }
+    }
+
+    /**
+     * @return The number of runs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The first period of run 'i'
+     */
+    public int getFirst(int i) {
+        return firsts[i];
+    }
+
+    /**
+     * @return The number of periods of run 'i'
+     */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    /**
+     * @return The remaining principal before the first period of run 'i'
+     */
+    public double getPrincipal(int i) {
+        return principals[i];
+    }
+
+    /**
+     * @return The installment of run 'i' before rounding, 0 in interest-only periods
+     */
+    public double getInstallment(int i) {
+        return installmentsPaid[i] ? installments[i] : 0;
+    }
+
+    /**
+     * @return The periodic fee of run 'i'
+     */
+    public double getPeriodicFee(int i) {
+        return fees[i];
+    }
+
+    /**
+     * @return The interest of the first period of run 'i'
+     */
+    public double getFirstInterest(int i) {
+        return interests[i] ? fixedInterests[i] + (principals[i] - floors[i]) * rates[i] : 0;
+    }
+
+    /**
+     * @return The decline of the interest from one period of run 'i' to the next, before rounding
+     */
+    public double getInterestDecline(int i) {
+        return interests[i] ? getInstallment(i) * rates[i] : 0;
+    }
+
+    /**
+     * @return The last period of the loan
+     */
+    public int getLastPeriod() {
+        return firsts[size - 1] + counts[size - 1] - 1;
+    }
+
+    public RoundingPolicy getRoundingPolicy() {
+        return roundingPolicy;
+    }
+
+    private void grow(int length) {
+        firsts = copy(firsts, length);
+        counts = copy(counts, length);
+        principals = copy(principals, length);
+        floors = copy(floors, length);
+        rates = copy(rates, length);
+        fixedInterests = copy(fixedInterests, length);
+        interests = copy(interests, length);
+        installmentsPaid = copy(installmentsPaid, length);
+        installments = copy(installments, length);
+        fees = copy(fees, length);
+    }
+
+    private static int[] copy(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static double[] copy(double[] array, int length) {
+        double[] copy = new double[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static boolean[] copy(boolean[] array, int length) {
+        boolean[] copy = new boolean[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+}
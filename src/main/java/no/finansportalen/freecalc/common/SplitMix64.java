@@ -0,0 +1,59 @@
+package no.finansportalen.freecalc.common;
+
+/**
+ * <p>
+ * A small, fast pseudo-random generator (SplitMix64, after Steele, Lea and Flood). The state is a single counter, and
+ * every number is the counter mixed through a bit-scrambling function.
+ * </p>
+ *
+ * <p>
+ * The generator is splittable: 'stream(seed, index)' gives the seed of an independent stream number 'index'. When
+ * every path of a simulation gets the stream of its own number, the results are the same no matter how the paths are
+ * divided between threads or computers.
+ * </p>
+ */
+public class SplitMix64 {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+    private long state;
+
+    public SplitMix64(long seed) {
+        this.state = seed;
+    }
+
+    /**
+     * Starts the generator over again from 'seed', without making a new object
+     */
+    public void reset(long seed) {
+        this.state = seed;
+    }
+
+    /**
+     * @return The seed of stream number 'index' of the generator started with 'seed'
+     */
+    public static long stream(long seed, long index) {
+        return mix(seed + (index + 1) * GOLDEN_GAMMA);
+    }
+
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    /**
+     * @return Uniformly distributed in [0, 1)
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
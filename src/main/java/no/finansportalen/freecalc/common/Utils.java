@@ -11,6 +11,34 @@ public class Utils {
         FAST, NORMAL, EXTREMELY_ACCURATE
     }
 
+    /**
+     * <p>
+     * The largest error in the discount factor 'k' per period that gives an error of at most 'maxRateError' basis
+     * points in the effective annual interest rate er = ((1/k)^periodsPerYear - 1) * 100.
+     * </p>
+     * 
+     * <p>
+     * der/dk = -100 * periodsPerYear * k^(-periodsPerYear - 1), and a basis point is 0.01 percentage points, so:
+     * </p>
+     * 
+     * <p>
+     * |dk| = maxRateError / 10000 * k^(periodsPerYear + 1) / periodsPerYear
+     * </p>
+     * 
+     * <p>
+     * The solvers stop when their last step in 'k' is this small. Newton's method and the secant method converge
+     * faster than linearly close to the solution, so the error left after the step is smaller than the step.
+     * </p>
+     * 
+     * <p>
+     * The tolerance grows fast with 'k'. Above k = 1 (negative rates) the tolerance at k = 1 is used: Far from the
+     * solution, the iterations may jump to a huge 'k' (a rate close to -100%), where any step would pass.
+     * </p>
+     */
+    public static double discountFactorTolerance(double maxRateError, double k, int periodsPerYear) {
+        return maxRateError / 10000 * Math.pow(Math.min(k, 1), periodsPerYear + 1) / periodsPerYear;
+    }
+
     public static AnnuityLoanPeriod[] copyArray(AnnuityLoanPeriod[] origin, int length) {
         int howMatchToTakeFromOrigin = origin == null ? 0 : Math.min(origin.length, length);
         AnnuityLoanPeriod[] res = new AnnuityLoanPeriod[length];
@@ -27,6 +55,8 @@ public class Utils {
      * @param number number to round
      * @param direction NORMAL: Normal rounding rules apply UP: Rounds up DOWN: Rounds down
      * @param roundToInteger false: Rounds to two decimals 1: Rounds to integer
+     * @see RoundingPolicy RoundingPolicy.of(direction, roundToInteger).round(number) gives the same, with the factor
+     *      computed once
      */
     public static double roundoff(double number, RoundDirection direction, boolean roundToInteger) {
     
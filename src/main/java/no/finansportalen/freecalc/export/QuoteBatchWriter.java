@@ -0,0 +1,300 @@
+package no.finansportalen.freecalc.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+import no.finansportalen.freecalc.freecard.result.FreeCardResult;
+import no.finansportalen.freecalc.freeloan.result.AnnuityLoanResult;
+import no.finansportalen.freecalc.freeloan.result.FreeLoanResult;
+import no.finansportalen.freecalc.freeloan.result.SerialLoanResult;
+
+/**
+ * <p>
+ * Writes the results of a sweep over products, amounts and loan periods to a file (or any channel) in a columnar
+ * layout, one row per quote, while the sweep runs. The rows are collected in one direct (off-heap) buffer, which is
+ * written as a batch when it is full, so no list of results is kept.
+ * </p>
+ * 
+ * <p>
+ * <b>THE FILE</b>
+ * </p>
+ * 
+ * <p>
+ * All numbers are little-endian. The file starts with a header:
+ * </p>
+ * 
+ * <p>
+ * "FLQB", int version (1), int number of columns, and for each column: int type (TYPE_INT, TYPE_LONG or TYPE_DOUBLE),
+ * int length of the name, the name in ASCII
+ * </p>
+ * 
+ * <p>
+ * Then the batches follow. A batch is an int 'rows', followed by each column as 'rows' values after each other - the
+ * layout of a record batch in Arrow, without null values. The file ends with a batch of 0 rows.
+ * </p>
+ * 
+ * <p>
+ * Loans: product (int), amount (double), periods (int), effectiveRate (double), residue (double - the residue of an
+ * annuity loan, the remainder of a serial loan), paybackPeriodCount (double), rounds (int), catalogueVersion (long)
+ * </p>
+ * 
+ * <p>
+ * Cards: product (int), amount (double), months (int), effectiveRate (double), governmentEffectiveRate (double),
+ * monthlyPayment (double), remainder (double), catalogueVersion (long)
+ * </p>
+ * 
+ * <p>
+ * An IOException stops the writing, and is thrown by the next add, flush() or close(). The writer is not thread
+ * safe: One writer per thread. Uses java.nio, and is thus not part of the GWT module.
+ * </p>
+ */
+public class QuoteBatchWriter {
+
+    public static final int TYPE_INT = 0;
+    public static final int TYPE_LONG = 1;
+    public static final int TYPE_DOUBLE = 2;
+
+    private static final int VERSION = 1;
+
+    private static final String[] LOAN_COLUMNS = { "product", "amount", "periods", "effectiveRate", "residue",
+            "paybackPeriodCount", "rounds", "catalogueVersion" };
+
+    private static final String[] CARD_COLUMNS = { "product", "amount", "months", "effectiveRate",
+            "governmentEffectiveRate", "monthlyPayment", "remainder", "catalogueVersion" };
+
+    /**
+     * The types of the columns. Cards have a double in column 6 (remainder) instead of rounds.
+     */
+    private static final int[] TYPES = { TYPE_INT, TYPE_DOUBLE, TYPE_INT, TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE,
+            TYPE_INT, TYPE_LONG };
+
+    private final WritableByteChannel channel;
+
+    /**
+     * false: Loan results. true: Card results
+     */
+    private final boolean cards;
+
+    private final int batchRows;
+
+    /**
+     * Each column has room for 'batchRows' values, from 'columnStarts[c]'
+     */
+    private final ByteBuffer buffer;
+
+    private final int[] columnStarts = new int[TYPES.length];
+
+    /**
+     * Rows in the buffer
+     */
+    private int rows = 0;
+
+    private long written = 0;
+
+    private boolean headerWritten = false;
+
+    private IOException error = null;
+
+    /**
+     * @param channel
+     *            For instance a FileChannel. Not closed by the writer.
+     * @param cards
+     *            false: Loan results. true: Card results
+     * @param batchRows
+     *            The number of rows per batch
+     */
+    public QuoteBatchWriter(WritableByteChannel channel, boolean cards, int batchRows) {
+
+        this.channel = channel;
+        this.cards = cards;
+        this.batchRows = batchRows;
+
+        int start = 0;
+
+        for (int c = 0; c < TYPES.length; c++) {
+            columnStarts[c] = start;
+            start += width(c) * batchRows;
+        }
+
+        buffer = ByteBuffer.allocateDirect(start).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * One loan quote
+     * 
+     * @param product
+     *            The number of the product in the sweep
+     * @param amount
+     *            The amount received
+     * @param periods
+     *            The number of periods of the loan
+     */
+    public void addLoan(int product, double amount, int periods, FreeLoanResult<?> result) throws IOException {
+
+        double residue = 0;
+
+        if (result instanceof AnnuityLoanResult) {
+            residue = ((AnnuityLoanResult) result).getResidue();
+        } else if (result instanceof SerialLoanResult) {
+            residue = ((SerialLoanResult) result).getRemainder();
+        }
+
+        add(product, amount, periods, result.getEffectiveInterestRate(), residue, result.getPaybackPeriodCount(),
+                result.getRounds(), result.getCatalogueVersion());
+    }
+
+    /**
+     * One card quote
+     * 
+     * @param product
+     *            The number of the product in the sweep
+     * @param amount
+     *            The amount used, purchases and cash
+     * @param months
+     *            The number of months
+     */
+    public void addCard(int product, double amount, int months, FreeCardResult result) throws IOException {
+        add(product, amount, months, result.getEffectiveRate(), result.getGovernmentEffectiveRate(),
+                result.getMonthlyPayment(), result.getRemainder(), result.getCatalogueVersion());
+    }
+
+    /**
+     * The row for either kind. The columns 4, 5 and 6 depend on the kind: 'a' and 'b' are doubles, 'c' the
+     * rounds (int) of a loan or the remainder (double) of a card.
+     */
+    private void add(int product, double amount, int periods, double rate, double a, double b, double c,
+            long catalogueVersion) throws IOException {
+
+        if (error != null) {
+            throw error;
+        }
+
+        buffer.putInt(columnStarts[0] + 4 * rows, product);
+        buffer.putDouble(columnStarts[1] + 8 * rows, amount);
+        buffer.putInt(columnStarts[2] + 4 * rows, periods);
+        buffer.putDouble(columnStarts[3] + 8 * rows, rate);
+        buffer.putDouble(columnStarts[4] + 8 * rows, a);
+        buffer.putDouble(columnStarts[5] + 8 * rows, b);
+
+        if (cards) {
+            buffer.putDouble(columnStarts[6] + 8 * rows, c);
+        } else {
+            buffer.putInt(columnStarts[6] + 4 * rows, (int) c);
+        }
+
+        buffer.putLong(columnStarts[7] + 8 * rows, catalogueVersion);
+
+        rows++;
+        written++;
+
+        if (rows == batchRows) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Bytes per value of column 'c'
+     */
+    private int width(int c) {
+        return type(c) == TYPE_INT ? 4 : 8;
+    }
+
+    /**
+     * The type of column 'c' for this kind
+     */
+    private int type(int c) {
+        return cards && c == 6 ? TYPE_DOUBLE : TYPES[c];
+    }
+
+    private void writeHeader() throws IOException {
+
+        String[] names = cards ? CARD_COLUMNS : LOAN_COLUMNS;
+
+        int length = 12;
+        for (String name : names) {
+            length += 8 + name.length();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'F').put((byte) 'L').put((byte) 'Q').put((byte) 'B');
+        header.putInt(VERSION);
+        header.putInt(names.length);
+
+        for (int c = 0; c < names.length; c++) {
+            header.putInt(type(c));
+            header.putInt(names[c].length());
+            for (int i = 0; i < names[c].length(); i++) {
+                header.put((byte) names[c].charAt(i));
+            }
+        }
+
+        header.flip();
+        write(header);
+
+        headerWritten = true;
+    }
+
+    private void writeBatch() throws IOException {
+
+        try {
+            if (!headerWritten) {
+                writeHeader();
+            }
+
+            ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            count.putInt(0, rows);
+            write(count);
+
+            // Each column up to the rows used
+            for (int c = 0; c < columnStarts.length; c++) {
+                ByteBuffer column = buffer.duplicate();
+                column.limit(columnStarts[c] + width(c) * rows);
+                column.position(columnStarts[c]);
+                write(column);
+            }
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            rows = 0;
+        }
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Writes the rows collected as a batch
+     */
+    public void flush() throws IOException {
+
+        if (error != null) {
+            throw error;
+        }
+
+        if (rows > 0) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Writes the rows collected, and the end of the file. The channel is left open.
+     */
+    public void close() throws IOException {
+        flush();
+        writeBatch();
+    }
+
+    /**
+     * @return The number of rows added
+     */
+    public long getRows() {
+        return written;
+    }
+
+}
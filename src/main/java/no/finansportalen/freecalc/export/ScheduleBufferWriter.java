@@ -0,0 +1,211 @@
+package no.finansportalen.freecalc.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+import no.finansportalen.freecalc.common.ScheduleSink;
+
+/**
+ * <p>
+ * Writes the periods of payment plans to a file (or any channel) as fixed-width binary records, for bulk export of
+ * many loans. The records are collected in one direct (off-heap) buffer, which is written to the channel when it is
+ * full. The heap used is thus the same however many periods are exported.
+ * </p>
+ * 
+ * <p>
+ * A record is, in little-endian byte order:
+ * </p>
+ * 
+ * <p>
+ * int loan, int period, double payment, double interest, double installment, double periodicFee, double
+ * remainingPrincipal - 48 bytes
+ * </p>
+ * 
+ * <p>
+ * 'loan' is set with setLoan() before each loan is calculated - for instance the number of the product and scenario.
+ * </p>
+ * 
+ * <p>
+ * <b>ROWS OR COLUMNS</b>
+ * </p>
+ * 
+ * <p>
+ * In the row layout, the records follow each other. In the columnar layout, the file is a sequence of blocks of
+ * 'blockRecords' records. A block starts with the int 'count' - the number of records in it - followed by each field
+ * as a column of 'blockRecords' values: First all the loans, then all the periods, then all the payments and so on. A
+ * column is always 'blockRecords' values long, so the last block is padded after 'count'. A query reading only a few
+ * fields reads only their columns.
+ * </p>
+ * 
+ * <p>
+ * A ScheduleSink cannot throw checked exceptions. An IOException stops the writing, and is thrown by flush() or
+ * close(). The writer is not thread safe: One writer per thread.
+ * </p>
+ * 
+ * <p>
+ * Uses java.nio, and is thus not part of the GWT module.
+ * </p>
+ */
+public class ScheduleBufferWriter implements ScheduleSink {
+
+    /**
+     * Bytes per record
+     */
+    public static final int RECORD_BYTES = 48;
+
+    /**
+     * The width of each field, in the order of the record
+     */
+    private static final int[] FIELD_BYTES = { 4, 4, 8, 8, 8, 8, 8 };
+
+    private final WritableByteChannel channel;
+
+    private final ByteBuffer buffer;
+
+    private final boolean columnar;
+
+    /**
+     * Records per buffer (per block in the columnar layout)
+     */
+    private final int blockRecords;
+
+    /**
+     * Columnar layout: The position of each column in the buffer
+     */
+    private final int[] columnStarts = new int[FIELD_BYTES.length];
+
+    /**
+     * Records in the buffer
+     */
+    private int count = 0;
+
+    private int loan = 0;
+
+    private long records = 0;
+
+    /**
+     * The first error writing to the channel
+     */
+    private IOException error = null;
+
+    /**
+     * @param channel
+     *            For instance a FileChannel. Not closed by the writer.
+     * @param blockRecords
+     *            The number of records in the buffer
+     * @param columnar
+     *            false: Row layout. true: Columnar layout
+     */
+    public ScheduleBufferWriter(WritableByteChannel channel, int blockRecords, boolean columnar) {
+
+        this.channel = channel;
+        this.blockRecords = blockRecords;
+        this.columnar = columnar;
+
+        int header = columnar ? 4 : 0;
+
+        buffer = ByteBuffer.allocateDirect(header + blockRecords * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        int start = header;
+
+        for (int f = 0; f < FIELD_BYTES.length; f++) {
+            columnStarts[f] = start;
+            start += FIELD_BYTES[f] * blockRecords;
+        }
+    }
+
+    /**
+     * The loan the following periods belong to
+     */
+    public void setLoan(int loan) {
+        this.loan = loan;
+    }
+
+    public void period(int period, double payment, double interest, double installment, double periodicFee,
+            double remainingPrincipal) {
+
+        if (error != null) {
+            return;
+        }
+
+        if (columnar) {
+            buffer.putInt(columnStarts[0] + 4 * count, loan);
+            buffer.putInt(columnStarts[1] + 4 * count, period);
+            buffer.putDouble(columnStarts[2] + 8 * count, payment);
+            buffer.putDouble(columnStarts[3] + 8 * count, interest);
+            buffer.putDouble(columnStarts[4] + 8 * count, installment);
+            buffer.putDouble(columnStarts[5] + 8 * count, periodicFee);
+            buffer.putDouble(columnStarts[6] + 8 * count, remainingPrincipal);
+        } else {
+            int start = RECORD_BYTES * count;
+            buffer.putInt(start, loan);
+            buffer.putInt(start + 4, period);
+            buffer.putDouble(start + 8, payment);
+            buffer.putDouble(start + 16, interest);
+            buffer.putDouble(start + 24, installment);
+            buffer.putDouble(start + 32, periodicFee);
+            buffer.putDouble(start + 40, remainingPrincipal);
+        }
+
+        count++;
+        records++;
+
+        if (count == blockRecords) {
+            writeBuffer();
+        }
+    }
+
+    /**
+     * Writes the records in the buffer to the channel. In the columnar layout, this ends a block.
+     */
+    public void flush() throws IOException {
+
+        if (count > 0) {
+            writeBuffer();
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * flush(). The channel is left open.
+     */
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void writeBuffer() {
+
+        if (columnar) {
+            buffer.putInt(0, count);
+            buffer.limit(buffer.capacity());
+        } else {
+            buffer.limit(RECORD_BYTES * count);
+        }
+
+        buffer.position(0);
+
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        buffer.clear();
+        count = 0;
+    }
+
+    /**
+     * @return The number of records written, or waiting in the buffer
+     */
+    public long getRecords() {
+        return records;
+    }
+
+}
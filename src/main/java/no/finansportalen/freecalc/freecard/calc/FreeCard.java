@@ -1,9 +1,12 @@
 package no.finansportalen.freecalc.freecard.calc;
 
 import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
-import no.finansportalen.freecalc.common.Utils;
+import no.finansportalen.freecalc.common.CashflowIrr;
+import no.finansportalen.freecalc.common.Deadline;
+import no.finansportalen.freecalc.common.RoundingPolicy;
 import no.finansportalen.freecalc.common.Utils.RoundDirection;
 import no.finansportalen.freecalc.freecard.result.FreeCardResult;
+import no.finansportalen.freecalc.freecard.result.MinimumPaymentResult;
 import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
 import no.finansportalen.freecalc.freeloan.calc.FreeLoanException.FreeLoanExceptionType;
 
@@ -209,14 +212,14 @@ public class FreeCard {
     private int interestFreeDays = 0;
     
     /**
-     * Round direction for annuities
+     * Number of days from the first day in the month until the bill is due
      */
-    private RoundDirection roundDirection = RoundDirection.NORMAL;
-    
+    private int dueDays = 45;
+
     /**
-     * false: Payment rounded to nearest 1/100 true: ..rounded to nearest integer
+     * How the annuities are rounded: The minor unit or cash step of the currency, and the direction
      */
-    private boolean roundToInteger = false;
+    private RoundingPolicy roundingPolicy = RoundingPolicy.DEFAULT;
     
     /**
      * false: The "global" remainder at the end of the loan period is payed / compensated with the last payment<br>
@@ -269,11 +272,41 @@ public class FreeCard {
      */
     private Double minpayUnits;
     
+    /**
+     * The largest error accepted in the effective interest rates, in basis points. null: Fixed tolerances of the present value
+     */
+    private Double maxRateError;
+    
+    /**
+     * The version of the product catalogue the card terms were taken from, passed on to the result. 0: Not from a catalogue
+     */
+    private long catalogueVersion = 0;
+    
+    /**
+     * Checked between the iterations. null: No deadline
+     */
+    private Deadline deadline;
+    
+    /**
+     * minimumPayments(): The longest time accepted to pay the debt with minimum payments, in months
+     */
+    private int maxMonths = 1200;
+    
+    /**
+     * The minimum payments of the last minimumPayments(), kept to be cleared and reused by the next one
+     */
+    private CashflowIrr minimumCashflows = null;
+    
+    /**
+     * How often minimumPayments() checks the deadline, in months. A power of two.
+     */
+    private static final int DEADLINE_CHECK_MONTHS = 64;
+    
     
     
     public FreeCardResult calculate() throws FreeLoanException {
     
-        checkMandatoryFields();
+        checkMandatoryFields(true);
         
         /*
          * 1) PREPARATION AND ADAPTION OF DATA:
@@ -377,7 +410,7 @@ public class FreeCard {
 
         double sumAnnuity = cashAnnuity + purchaseAnnuity + annualAnnuity + feePeriod;
 
-        double roundedAnnuity = Utils.roundoff(sumAnnuity, roundDirection, roundToInteger);
+        double roundedAnnuity = roundingPolicy.round(sumAnnuity);
 
 
         /*
@@ -460,6 +493,8 @@ public class FreeCard {
         rateAnnuityCalc.setCapitalizationFreq(12);
         rateAnnuityCalc.setGuessrate(rateGuess);
         rateAnnuityCalc.setAdvance(false);
+        rateAnnuityCalc.setMaxRateError(maxRateError);
+        rateAnnuityCalc.setDeadline(deadline);
 
         double er = rateAnnuityCalc.calculate();
 
@@ -685,14 +720,7 @@ public class FreeCard {
          */
 
         
-        int dueDays = 45; // Normal number of days from the first day in the month until the bill is due? HARDCODED!
-        int extraDays;
-
-        if (interestFreeDays > 30) {
-            extraDays = interestFreeDays - 30;
-        } else {
-            extraDays = dueDays - 30;
-        }
+        int extraDays = extraDays();
 
         // Applying the formula for annuities in advance
         double annuPurch = loanPurchase * (1 - kp) / (1 - Math.pow(kp, numberOfMonths));
@@ -717,7 +745,7 @@ public class FreeCard {
         double annuUnrounded = annuPurch + annuOtherInc + feePeriod;
 
         // The monthly annuity, taking 30 interest free days for purchases into account
-        double annu = Utils.roundoff(annuUnrounded, roundDirection, roundToInteger);
+        double annu = roundingPolicy.round(annuUnrounded);
 
         // CONTROLLING FOR THE MINIMUM MONTHLY PAYMENT:
         if (minpayUnits > annu) {
@@ -774,8 +802,7 @@ public class FreeCard {
              * round to the nearest number, as we assume the intention of this remainder is to correct rounding errors
              * done previously.
              */
-            remainder = Utils.roundoff(Utils.roundoff(annuUnrounded + remainderFV, roundDirection, roundToInteger) - annu,
-                    roundDirection, roundToInteger);
+            remainder = roundingPolicy.round(roundingPolicy.round(annuUnrounded + remainderFV) - annu);
 
             /*
              * Now, we have found the actually paid/rounded remainder in the last term. The present value of it is will
@@ -812,50 +839,27 @@ public class FreeCard {
 
         // THE ITERATIONS
 
-        int rounds = 0; // Counts the number of iterations
-
-        // 'y' is the function value that we want to make close to '0'. Given av positive value here, so we can enter the 'while'-loop.
-        double y = 1;
-
-        // 'y' differentiated
-        double yDif; 
-
-        // Here, we set the accuracy we want.
-        while (Math.abs(y) > 0.00001 && rounds < 100) 
-        {
-
-            y = (annu * (k - Math.pow(k, plusMonth)) / (1 - k)) * Math.pow(k, extraDays / 30.0) - received;
-
-            // We add the present value of the remainder 'remainderPV':
-            y += remainder * Math.pow(k, exp);
-
-            yDif = (
-                    (annu * (1 - plusMonth * Math.pow(k, numberOfMonths)) * (1 - k) + annu * (k - Math.pow(k, plusMonth))) /
-                    Math.pow(1 - k, 2) *
-                    Math.pow(1 / k, extraDays / 30.0)
-                    +
-                    annu *
-                    (k - Math.pow(k, plusMonth)) /
-                    (1 - k) *
-                    extraDays /
-                    30.0 *
-                    Math.pow(1 / k, (extraDays / 30.0) - 1) /
-                    Math.pow(k, 2)
-                    ) /
-                    
-                    Math.pow(1 / k, extraDays / 15.0);
-
-            // We add the differentiated of the present value of the remainder 'remainderPVDif':
-            yDif += remainder * exp * Math.pow(k, exp - 1);
+        /*
+         * The annuities are paid 'extraDays' later than at the end of each month: 'numberOfMonths' equal payments from
+         * month 1 + extraDays/30, one run for CashflowIrr, and the remainder with the last one. Newton's method on
+         * 'k' then gives the same present value as the formula:
+         * 
+         * y = (annu * (k - Math.pow(k,plusMonth)) / (1 - k)) * Math.pow(k,extraDays/30) + remainder * Math.pow(k,exp) - received
+         */
+        CashflowIrr cashflows = new CashflowIrr();
 
-            double delta = -y / yDif; // The increase in 'k' necessary at the tangent's intersection with the PV-axis
+        cashflows.addRun(1 + extraDays / 30.0, numberOfMonths, annu);
+        cashflows.add(exp, remainder);
 
-            if (k + delta != 1) {
-                k += delta; // We increase/decrease 'k' (the annuity function crashes at j==1)
-            }
+        // Here, we set the accuracy we want. With an error budget for the rate, the step in 'k' decides instead.
+        cashflows.setTolerance(0.00001);
+        cashflows.setMaxRateError(maxRateError);
+        cashflows.setDeadline(deadline);
 
-            rounds++;
+        k = cashflows.solve(received, k);
 
+        if (cashflows.isDeadlineExceeded()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
         }
 
         // The effective, annual interest rate with the "advanced" model
@@ -877,19 +881,202 @@ public class FreeCard {
         result.setEffectiveRate(erAdvanced);
         result.setMonthlyPayment(annu);
         result.setRemainder(remainder);
+        result.setCatalogueVersion(catalogueVersion);
 
         return result;
 
     }
     
     
-    private void checkMandatoryFields() throws FreeLoanException {
+    /**
+     * <p>
+     * The cost of paying only the minimum payment each month, instead of the annuities of calculate(). 'numberOfMonths'
+     * is not used: The debt runs until the minimum payments have paid it.
+     * </p>
+     * 
+     * <p>
+     * All charges are made the first day, as in calculate(). Month by month:
+     * </p>
+     * 
+     * <ol>
+     * <li>The annual fee is added to the cash withdrawals at the start of every year, as calculate() discounts it with
+     * the rate for cash.</li>
+     * <li>Cash withdrawals bear interest from the first day. Purchases bear no interest for the first
+     * 'interestFreeDays' days, and the interest of a month is for the days after them, by the 'bank-method':
+     * ratePurchase / 36000 per day.</li>
+     * <li>The bill is the debt plus the interest and the periodic fee. The minimum payment is 'minpayPerc' percent of
+     * it, but not below 'minpayUnits', rounded by the rounding policy. When that is the whole bill, it is paid and the
+     * simulation ends.</li>
+     * <li>The payment covers the fee and the interest first, then the balance with the higher rate - cash on equal
+     * rates.</li>
+     * </ol>
+     * 
+     * <p>
+     * The bill is made at the end of each month and paid 'extraDays' later, as in calculate(): When the bill is due,
+     * or when the interest-free period ends if that is later. The balances are reduced when the bill is made, so the
+     * days until it is paid bear no interest. The effective rate discounts the payments from when they are paid to
+     * what is received, with equal payments - the long tail of 'minpayUnits' - joined into one run. The loop keeps its
+     * state in local variables and the payments in a CashflowIrr that is reused by the next call, so a month allocates
+     * nothing. A FreeCard is used by one thread at a time; catalogues are evaluated in parallel with one FreeCard per
+     * thread.
+     * </p>
+     * 
+     * @throws FreeLoanException
+     *             PAYMENT_TOO_SMALL: The minimum payment does not cover the interest and the fee after the interest-free
+     *             period, so the debt is never paid. TOO_MANY_PERIODS: It takes longer than 'maxMonths'.
+     */
+    public MinimumPaymentResult minimumPayments() throws FreeLoanException {
+        
+        checkMandatoryFields(false);
+        
+        // The fees are added to the debt, the origination fee to the cash withdrawals. See calculate().
+        double cash = receivedCash + feeCashTransaction + feeOrigination;
+        
+        double purchase = receivedPurchase + feePurcTransaction;
+        
+        double monthlyCash = rateCash / 1200;
+        
+        double dailyPurchase = ratePurchase / 36000;
+        
+        // The payment goes to the dearer balance first
+        boolean cashFirst = rateCash >= ratePurchase;
+        
+        if (minimumCashflows == null) {
+            minimumCashflows = new CashflowIrr();
+        }
+        minimumCashflows.clear();
+        
+        double firstPayment = 0;
+        double totalPaid = 0;
+        double totalInterest = 0;
+        double totalFees = 0;
+        
+        int month = 0;
+        
+        boolean paid = false;
+        
+        while (!paid) {
+            
+            month++;
+            
+            if (month > maxMonths) {
+                throw new FreeLoanException(FreeLoanExceptionType.TOO_MANY_PERIODS);
+            }
+            
+            if ((month & (DEADLINE_CHECK_MONTHS - 1)) == 0) {
+                checkDeadline();
+            }
+            
+            // 1. The annual fee, at the start of every year
+            if (month % 12 == 1) {
+                cash += feeAnnual;
+                totalFees += feeAnnual;
+            }
+            
+            // 2. The interest of the month. Purchases: Only for the days after the interest-free period.
+            int interestDays = Math.max(0, Math.min(30, 30 * month - interestFreeDays));
+            
+            double interest = cash * monthlyCash + purchase * dailyPurchase * interestDays;
+            
+            // 3. The bill, and the minimum payment of it
+            double bill = cash + purchase + interest + feePeriod;
+            
+            double payment = roundingPolicy.round(Math.max(minpayPerc / 100 * bill, minpayUnits));
+            
+            if (payment >= bill) {
+                payment = roundingPolicy.roundNearest(bill);
+                paid = true;
+            } else {
+                
+                // 4. What is left for the balances when the fee and the interest are paid
+                double installment = payment - feePeriod - interest;
+                
+                if (installment <= 0 && interestDays == 30) {
+                    throw new FreeLoanException(FreeLoanExceptionType.PAYMENT_TOO_SMALL);
+                }
+                
+                if (cashFirst) {
+                    double toCash = Math.min(installment, cash);
+                    cash -= toCash;
+                    purchase -= installment - toCash;
+                } else {
+                    double toPurchase = Math.min(installment, purchase);
+                    purchase -= toPurchase;
+                    cash -= installment - toPurchase;
+                }
+            }
+            
+            if (month == 1) {
+                firstPayment = payment;
+            }
+            
+            totalPaid += payment;
+            totalInterest += interest;
+            totalFees += feePeriod;
+            
+            minimumCashflows.add(month, payment);
+        }
+        
+        // Paid when the bill is due, not at the end of the month
+        minimumCashflows.shift(extraDays() / 30.0);
+        
+        // The effective rate, from the nominal rate for purchases
+        minimumCashflows.setTolerance(0.00001);
+        minimumCashflows.setMaxRateError(maxRateError);
+        minimumCashflows.setDeadline(deadline);
+        
+        double k = minimumCashflows.solve(receivedCash + receivedPurchase, 1 / (1 + ratePurchase / 1200));
+
+        if (minimumCashflows.isDeadlineExceeded()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
+        }
+        
+        double er = (Math.pow(1 / k, 12) - 1) * 100;
+        
+        if (Double.isNaN(er)) {
+            throw new FreeLoanException(FreeLoanExceptionType.EFFECTIVE_RATE_WAS_NAN);
+        }
+        
+        MinimumPaymentResult result = new MinimumPaymentResult();
+        result.setMonths(month);
+        result.setFirstPayment(firstPayment);
+        result.setTotalPaid(totalPaid);
+        result.setTotalInterest(totalInterest);
+        result.setTotalFees(totalFees);
+        result.setEffectiveRate(er);
+        result.setCatalogueVersion(catalogueVersion);
+        
+        return result;
+    }
+    
+    
+    /**
+     * The number of days after the end of the month the bill is paid: Until it is due, or until the interest-free
+     * period ends if that is later
+     */
+    private int extraDays() {
+        return interestFreeDays > 30 ? interestFreeDays - 30 : dueDays - 30;
+    }
+    
+    
+    private void checkDeadline() throws FreeLoanException {
+        if (deadline != null && deadline.isExpired()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
+        }
+    }
+    
+    
+    /**
+     * @param months
+     *            false: 'numberOfMonths' is not needed, as by minimumPayments()
+     */
+    private void checkMandatoryFields(boolean months) throws FreeLoanException {
         
         if(receivedCash == 0 && receivedPurchase == 0) {
             throw new FreeLoanException("receivedCash and/or receivedPurchase");
         }
         
-        if(numberOfMonths == null) {
+        if(months && numberOfMonths == null) {
             throw new FreeLoanException("numberOfMonths");
         }
         
@@ -939,18 +1126,34 @@ public class FreeCard {
         this.interestFreeDays = interestFreeDays;
     }
 
+    /**
+     * Number of days from the first day in the month until the bill is due. Default: 45
+     */
+    public void setDueDays(int dueDays) {
+        this.dueDays = dueDays;
+    }
+
     /**
      * Round direction for annuities
      */
     public void setRoundDirection(RoundDirection roundDirection) {
-        this.roundDirection = roundDirection;
+        this.roundingPolicy = roundingPolicy.withDirection(roundDirection);
     }
 
     /**
-     * false: Payment rounded to nearest 1/100 true: ..rounded to nearest integer
+     * false: Payment rounded to the minor unit of the currency of the rounding policy, 1/100 by default true: ..rounded
+     * to nearest integer
      */
     public void setRoundToInteger(boolean roundToInteger) {
-        this.roundToInteger = roundToInteger;
+        this.roundingPolicy = roundToInteger ? roundingPolicy.withDecimals(0) : roundingPolicy.withCurrencyDecimals();
+    }
+
+    /**
+     * How the annuities are rounded. Replaces what setRoundDirection() and setRoundToInteger() have set. All amounts,
+     * fees included, are in the currency of the policy.
+     */
+    public void setRoundingPolicy(RoundingPolicy roundingPolicy) {
+        this.roundingPolicy = roundingPolicy;
     }
 
     /**
@@ -1023,5 +1226,36 @@ public class FreeCard {
     public void setMinpayUnits(Double minpayUnits) {
         this.minpayUnits = minpayUnits;
     }
+
+    /**
+     * The largest error accepted in the effective interest rates, in basis points (hundredths of a percentage point).
+     * The iterations stop as soon as the rates are known this accurately. Default: null - fixed tolerances of the present value
+     */
+    public void setMaxRateError(Double maxRateError) {
+        this.maxRateError = maxRateError;
+    }
+
+    /**
+     * The version of the product catalogue the card terms were taken from. Set by CatalogueSnapshot.configureCard()
+     */
+    public void setCatalogueVersion(long catalogueVersion) {
+        this.catalogueVersion = catalogueVersion;
+    }
+
+    /**
+     * Checked between the iterations. The calculation gives up with DEADLINE_EXCEEDED when it has passed or is
+     * cancelled. Default: null - no deadline
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * The longest time accepted to pay the debt in minimumPayments(), in months. Longer gives TOO_MANY_PERIODS.
+     * Default: 1200 (100 years)
+     */
+    public void setMaxMonths(int maxMonths) {
+        this.maxMonths = maxMonths;
+    }
     
 }
@@ -3,7 +3,11 @@ package no.finansportalen.freecalc.freecard.calc;
 import java.util.List;
 
 import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
+import no.finansportalen.freecalc.common.CashflowIrr;
+import no.finansportalen.freecalc.common.Deadline;
+import no.finansportalen.freecalc.common.DiscountPowers;
 import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException.FreeLoanExceptionType;
 
 
 /**
@@ -438,6 +442,16 @@ class RateAnnuityCalc {
      */
     private Boolean advance;
     
+    /**
+     * The largest error accepted in the effective interest rate, in basis points. null: A fixed tolerance of the present value
+     */
+    private Double maxRateError;
+    
+    /**
+     * Checked between the iterations. null: No deadline
+     */
+    private Deadline deadline;
+    
 
     public double calculate() throws FreeLoanException {
         
@@ -446,9 +460,9 @@ class RateAnnuityCalc {
         /*
          * ITERATIONS:
          * 
-         * We have two, pretty much identical, alternative while-loops for computing annuity-due and annuity-immediate,
-         * respectively. Instead, we could have performed frequent if-test inside the loops, but this would probably
-         * have impaired performance more.
+         * Annuity-due and annuity-immediate differ only in the times of the payments: In annuity-immediate, every
+         * payment is made one period later. Each interval is one run of equal payments for CashflowIrr, which sums
+         * the geometric series of the run in closed form and runs Newton's method on 'k'.
          * 
          * When the function is called, at least one nominal interest rate will be among the parameters - the rate in
          * the lowest segment. We skal use this rate as our first guess as to what the effective interest rate might be.
@@ -456,180 +470,35 @@ class RateAnnuityCalc {
          * THe function does not use interest rate directly, only via the discount factor 'k'
          */
         double k = 1 / (1+guessrate/100);
-        int rounds = 0; // Counts the number of iterations
-        double PV = 0; // The present value
-        double PVDif = 0; // the differiented of the present value
-        double payment;
-        double y = 1;  // 'y' is the function value that we want to make close to '0'. Given av value so we can enter the 'while'-loop.
-
-        int intervalStart; // The number of payments from the start of the loan period until the interval starts
-        int intervalEnd; // The number of payments from the start of the loan period until the interval ends
-
-
-        // ANNUITIES IN ADVANCE: Annuities paid at the beginning of each period - annuity-due:
-        if (advance) {
-
-            // Here, we set the accuracy we want.
-            while (Math.abs(y) > 0.000001 && rounds < 100) { 
-
-                PV = 0; // The present value of the payments
-                PVDif = 0; // The differentiated of the present value
-
-                intervalStart = 0;
-                intervalEnd = 0;
-
-                /*
-                 * Now, we compute the present value 'PV' and the corresponding differetiated 'PVDif' for each interval
-                 * of the loan, given the current guess for the discount factor 'k.
-                 * 
-                 * In the case where the loan runse with different interest rates in succeeding intervals, we sum the
-                 * present value for each. We also sum their differentiated values.
-                 */
-                for (int i = highestSegment - 1; i >= 0; i--) {
-
-                    AnnuityLoanPeriod curPeriod = payments.get(i);
-
-                    /*
-                     * In order to compute the effective interest rate, we must compare all we pay with all we receive.
-                     * Hence, we must include eventual fees in the periodic payments.
-                     */
-                    payment = curPeriod.getPayment() + curPeriod.getPeriodicFee();
-
-                    intervalStart = intervalEnd; // The end of the former interval is the start of this
-
-                    intervalEnd += curPeriod.getNumberOfTerms(); // The upper limit of this interval
-
-                    PV += payment / (1 - k) * (Math.pow(k, intervalStart) - Math.pow(k, intervalEnd));
-
-                    /*
-                     * The sum of the differentiated of two functions is the sum of the difrentiated. Hence, we simply
-                     * sum the differentiated in each interval
-                     */
-                    PVDif += (payment / Math.pow(1 - k, 2))
-                            * (Math.pow(k, intervalStart) - Math.pow(k, intervalEnd))
-                            + (payment / (1 - k))
-                            * (intervalStart * Math.pow(k, intervalStart - 1) - intervalEnd
-                                    * Math.pow(k, intervalEnd - 1));
-
-                }
-
-                /*
-                 * One payment - the residue - is so far missing. We add the present value of the residue to the present
-                 * value of the other payments. If it is paid in the last period, it must be discounted to find the
-                 * present value. The residue is already rounded. In annuity-due (annuities in advance) the last payment
-                 * is in period 'calculationPeriods-1':
-                 */
-                PV += residue * Math.pow(k, calculationPeriods - 1);
-
-                /*
-                 * We also want to add the differentiated of the residue to the differiented of the other payments.
-                 * 
-                 * The residue is a function of 'k', and we use the Power rule
-                 * (http://en.wikipedia.org/wiki/Power_rule):
-                 * 
-                 * y = x^n => y' = n*x^(n-1):
-                 * 
-                 * PVRes = residue*Math.pow(k,calculationPeriods-1) => PVResDif =
-                 * residue*(calculationPeriods-1)*Math.pow(k, calculationPeriods-2);
-                 */
-                PVDif += residue * (calculationPeriods - 1) * Math.pow(k, calculationPeriods - 2);
-
-                y = PV - received; // Searching for a 'k' making y = 0. Since 'received' is a constant y' = PV'
-
-                double delta = -y / PVDif; // The increase in 'k' necessary at the tangent's intersection with the PV-axis
-
-                if (k + delta != 1) {
-                    k += delta; // We increase/decrease 'k' (the annuity function crashes at k=1)
-                }
 
-                rounds++;
+        int shift = advance ? 0 : 1;
 
-            }
+        CashflowIrr cashflows = new CashflowIrr();
 
-        // "NORMAL" ANNUITIES: Annuities paid at the end of each period - annuity-immediate:
-        } else {
+        // The number of payments from the start of the loan period until the interval starts
+        double intervalStart = 0;
 
-            while (Math.abs(y) > 0.000001 && rounds < 100) // Here, we set the accuracy we are looking at.
-            {
-
-                PV = 0; // The present value of the payments
-                PVDif = 0; // The differentiated of the present value
-
-                intervalStart = 0;
-                intervalEnd = 0;
-
-                /*
-                 * Now, we compute the present value 'PV' and the corresponding differetiated 'PVDif' for each interval
-                 * of the loan, given the current guess for the discount factor 'k.
-                 * 
-                 * In the case where the loan runse with different interest rates in succeeding intervals, we sum the
-                 * present value for each. We also sum their differentiated values.
-                 */
-                for (int i = highestSegment - 1; i >= 0; i--) {
-
-                    AnnuityLoanPeriod curPeriod = payments.get(i);
-
-                    /*
-                     * In order to compute the effective interesT rate, we must compare all we pay with all we receive.
-                     * Hence, we must include eventual fees in the periodic payments.
-                     */
-                    payment = curPeriod.getPayment() + curPeriod.getPeriodicFee();
-
-                    intervalStart = intervalEnd; // The end of the former interval is the start og this
-
-                    intervalEnd += curPeriod.getNumberOfTerms(); // The upper limit of this interval
-
-                    PV += payment / (1 - k) * (Math.pow(k, intervalStart + 1) - Math.pow(k, intervalEnd + 1));
-
-                    /*
-                     * The sum of the differentiated of two functions is the sum of the difrentiated. Hence, we simply
-                     * sum the differentiated in each interval
-                     */
-                    PVDif += (payment / Math.pow(1 - k, 2))
-                            * (Math.pow(k, intervalStart + 1) - Math.pow(k, intervalEnd + 1))
-                            + (payment / (1 - k))
-                            * ((intervalStart + 1) * Math.pow(k, intervalStart) - (intervalEnd + 1)
-                                    * Math.pow(k, intervalEnd));
-
-                }
-
-                /*
-                 * One payment - the residue - is so far missing. We add the present value of the residue to the present
-                 * value of the other paymen. If it is paid in the last period, it must be discounted to find the
-                 * present value.
-                 * 
-                 * The residue was rounded when we computed it earlier:
-                 */
-                PV += residue * Math.pow(k, calculationPeriods);
-
-                /*
-                 * We also want to add the differentiated of the residue to the differiented of the other payments.
-                 * 
-                 * The residue is a function of 'k', and we use the Power rule
-                 * (http://en.wikipedia.org/wiki/Power_rule):
-                 * 
-                 * y = x^n => y' = n*x^(n-1):
-                 * 
-                 * PVRes = residue*Math.pow(k,calculationPeriods) => PVResDif =
-                 * residue*calculationPeriods*Math.pow(k, calculationPeriods-1);
-                 */
-                PVDif += residue * calculationPeriods * Math.pow(k, calculationPeriods - 1);
-
-                y = PV - received; // Searching for a 'k' making y = 0. Since 'received' is a constant y' = PV'
-
-                double delta = -y / PVDif; // The increase in 'k' necessary at the tangent's intersection with the PV-axis
+        for (int i = highestSegment - 1; i >= 0; i--) {
+            AnnuityLoanPeriod curPeriod = payments.get(i);
+            cashflows.addRun(intervalStart + shift, curPeriod.getNumberOfTerms(),
+                    curPeriod.getPayment() + curPeriod.getPeriodicFee());
+            intervalStart += curPeriod.getNumberOfTerms();
+        }
 
-                if (k + delta != 1) {
-                    k += delta; // We increase/decrease 'k' (the annuity function crashes at k=1)
-                }
+        // The residue is paid with the last payment
+        cashflows.add(calculationPeriods - 1 + shift, residue);
 
-                rounds++;
+        // With an error budget for the rate, the step in 'k' decides when to stop instead of the present value
+        cashflows.setMaxRateError(maxRateError);
+        cashflows.setPeriodsPerYear(capitalizationFreq);
+        cashflows.setDeadline(deadline);
 
-            }
+        k = cashflows.solve(received, k);
 
+        if (cashflows.isDeadlineExceeded()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
         }
 
-
         /*
          * 'k' is a discouting factor that was defined as k = 1/(1+e) where 'e' is the periodic, effective interest rate
          * as decimal fraction. (1+e) is the growth rate for each period. Hence, the growth rate for a year is (1+e)^12
@@ -637,7 +506,7 @@ class RateAnnuityCalc {
          * ((1+e)^12)-1. In percentage: er = (((1+e)^12)-1)*100. Since k = 1/(1+e) => (1+e) = 1/k, we substiute and get
          * er = ((1/k)^12-1)*100:
          */
-        return (Math.pow(1 / k, capitalizationFreq) - 1) * 100; // the effective annual interest rate - the principal result of freeLoan
+        return (DiscountPowers.power(1 / k, capitalizationFreq) - 1) * 100; // the effective annual interest rate - the principal result of freeLoan
 
     }
     
@@ -732,5 +601,19 @@ class RateAnnuityCalc {
     public void setAdvance(Boolean advance) {
         this.advance = advance;
     }
+
+    /**
+     * The largest error accepted in the effective interest rate, in basis points. null: A fixed tolerance of the present value
+     */
+    public void setMaxRateError(Double maxRateError) {
+        this.maxRateError = maxRateError;
+    }
+
+    /**
+     * Checked between the iterations. null: No deadline
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
     
 }
@@ -7,6 +7,7 @@ public class FreeCardResult {
     Double effectiveRate;
     Double monthlyPayment;
     Double remainder;
+    long catalogueVersion;
 
     
     /**
@@ -79,4 +80,19 @@ public class FreeCardResult {
     }
     
     
+    /**
+     * The version of the product catalogue the card terms were taken from. 0: Not from a catalogue
+     */
+    public long getCatalogueVersion() {
+        return catalogueVersion;
+    }
+    
+    /**
+     * The version of the product catalogue the card terms were taken from. 0: Not from a catalogue
+     */
+    public void setCatalogueVersion(long catalogueVersion) {
+        this.catalogueVersion = catalogueVersion;
+    }
+    
+    
 }
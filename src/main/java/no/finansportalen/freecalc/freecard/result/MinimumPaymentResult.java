@@ -0,0 +1,101 @@
+package no.finansportalen.freecalc.freecard.result;
+
+/**
+ * The outcome of paying only the minimum payment each month. See FreeCard.minimumPayments().
+ */
+public class MinimumPaymentResult {
+
+    int months;
+    double firstPayment;
+    double totalPaid;
+    double totalInterest;
+    double totalFees;
+    double effectiveRate;
+    long catalogueVersion;
+
+
+    /**
+     * The number of months until the debt is paid
+     */
+    public int getMonths() {
+        return months;
+    }
+
+    public void setMonths(int months) {
+        this.months = months;
+    }
+
+
+    /**
+     * The minimum payment of the first month, the largest one unless the annual fee raises a later one
+     */
+    public double getFirstPayment() {
+        return firstPayment;
+    }
+
+    public void setFirstPayment(double firstPayment) {
+        this.firstPayment = firstPayment;
+    }
+
+
+    /**
+     * The sum of all payments
+     */
+    public double getTotalPaid() {
+        return totalPaid;
+    }
+
+    public void setTotalPaid(double totalPaid) {
+        this.totalPaid = totalPaid;
+    }
+
+
+    /**
+     * The interest on cash withdrawals and purchases
+     */
+    public double getTotalInterest() {
+        return totalInterest;
+    }
+
+    public void setTotalInterest(double totalInterest) {
+        this.totalInterest = totalInterest;
+    }
+
+
+    /**
+     * The periodic and annual fees charged while the debt was paid
+     */
+    public double getTotalFees() {
+        return totalFees;
+    }
+
+    public void setTotalFees(double totalFees) {
+        this.totalFees = totalFees;
+    }
+
+
+    /**
+     * Effective, annual interest rate of the minimum payments
+     */
+    public double getEffectiveRate() {
+        return effectiveRate;
+    }
+
+    public void setEffectiveRate(double effectiveRate) {
+        this.effectiveRate = effectiveRate;
+    }
+
+
+    /**
+     * The version of the product catalogue the card terms were taken from. 0: Not from a catalogue
+     */
+    public long getCatalogueVersion() {
+        return catalogueVersion;
+    }
+
+    public void setCatalogueVersion(long catalogueVersion) {
+        this.catalogueVersion = catalogueVersion;
+    }
+
+
+}
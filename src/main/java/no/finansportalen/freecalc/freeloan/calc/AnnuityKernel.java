@@ -0,0 +1,50 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
+import no.finansportalen.freecalc.common.CashflowIrr;
+
+/**
+ * <p>
+ * The payments of an annuity loan as runs for CashflowIrr - what section 6) of FreeLoan.annuityLoan() iterates on.
+ * </p>
+ *
+ * <p>
+ * The payment plan is flattened once, when the kernel is made: Each interval is one run of its payment, fees included,
+ * and the global residue is one payment with the last ordinary payment. Annuity-immediate and annuity-due then differ
+ * only in when the payments are made - one period later in annuity-immediate - so the times are shifted when the kernel
+ * is made, and the same solver serves both. The solver has no branches on the loan model or the mode.
+ * </p>
+ */
+class AnnuityKernel {
+
+    private final CashflowIrr cashflows = new CashflowIrr();
+
+    AnnuityKernel(AnnuitySchedule schedule, boolean annuityDue) {
+
+        AnnuityLoanPeriod[] interval_data = schedule.getIntervals();
+        int highest_segment = schedule.getHighestSegment();
+
+        // Annuity-immediate: The first payment is made at the end of the first period
+        double time = annuityDue ? 0 : 1;
+
+        // 'interval_data' is stored backwards - the first interval in time has the highest index
+        for (int j = highest_segment; j >= 1; j--) {
+            AnnuityLoanPeriod curIntervalData = interval_data[j];
+            cashflows.addRun(time, curIntervalData.getNumberOfTerms(),
+                    curIntervalData.getPayment() + curIntervalData.getPeriodicFee());
+            time += curIntervalData.getNumberOfTerms();
+        }
+
+        // The global residue paid/compensated for with the last payment
+        cashflows.add(annuityDue ? schedule.getCalculationPeriods() - 1 : schedule.getCalculationPeriods(),
+                schedule.getResidue());
+    }
+
+    /**
+     * @return The payments, with the solver settings of the caller still to be set
+     */
+    CashflowIrr getCashflows() {
+        return cashflows;
+    }
+
+}
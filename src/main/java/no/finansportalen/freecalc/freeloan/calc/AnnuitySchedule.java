@@ -0,0 +1,168 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
+
+/**
+ * <p>
+ * The payment plan of an annuity loan before the effective interest rate is computed: The sections 1) to 5) in
+ * FreeLoan.annuityLoan().
+ * </p>
+ *
+ * <p>
+ * The intervals are stored as in 'interval_data': Row 1 is the last interval of the loan, row 'highestSegment' the
+ * first one. Row 0 is not in use.
+ * </p>
+ */
+class AnnuitySchedule {
+
+    /**
+     * What the user receives plus origination fees
+     */
+    private double principal;
+
+    /**
+     * The principal less an eventual balloon, serviced as an annuity loan
+     */
+    private double principalAnn;
+
+    /**
+     * Total number of calculation periods
+     */
+    private double calculationPeriods;
+
+    /**
+     * The number of intial interest-only periods
+     */
+    private double installmentGracePeriods;
+
+    /**
+     * Factor the nominal annual rate in percent is divided by to obtain the periodic rate in decimal fraction
+     */
+    private int rateDivisor;
+
+    /**
+     * The annuities, the number of periods they are paid, fees and remainders of each interval
+     */
+    private AnnuityLoanPeriod[] intervals;
+
+    /**
+     * The index of the first interval of the loan in 'intervals'
+     */
+    private int highestSegment;
+
+    /**
+     * The global residue paid/compensated for with the last payment
+     */
+    private double residue;
+
+    /**
+     * The nominal, annual interest rate of each interval. Not set when the segments run concurrently.
+     */
+    private double[] rates;
+
+    /**
+     * The number of calculation periods remaining of the loan at the start of each interval where installments are
+     * paid. Not set when the segments run concurrently.
+     */
+    private double[] periodsRemaining;
+
+    /**
+     * @return The index in 'intervals' of the first interval where installments are paid. When there is an
+     *         interest-only period, this is the row below it.
+     */
+    public int getFirstInstallmentInterval() {
+        if (installmentGracePeriods > 0) {
+            return highestSegment - 1;
+        }
+        return highestSegment;
+    }
+
+    /**
+     * @return The first periodic payment where installments are paid, fees included.
+     */
+    public double getFirstInstallmentPayment() {
+        AnnuityLoanPeriod first = intervals[getFirstInstallmentInterval()];
+        return first.getPayment() + first.getPeriodicFee();
+    }
+
+    public double getPrincipal() {
+        return principal;
+    }
+
+    public void setPrincipal(double principal) {
+        this.principal = principal;
+    }
+
+    public double getPrincipalAnn() {
+        return principalAnn;
+    }
+
+    public void setPrincipalAnn(double principalAnn) {
+        this.principalAnn = principalAnn;
+    }
+
+    public double getCalculationPeriods() {
+        return calculationPeriods;
+    }
+
+    public void setCalculationPeriods(double calculationPeriods) {
+        this.calculationPeriods = calculationPeriods;
+    }
+
+    public double getInstallmentGracePeriods() {
+        return installmentGracePeriods;
+    }
+
+    public void setInstallmentGracePeriods(double installmentGracePeriods) {
+        this.installmentGracePeriods = installmentGracePeriods;
+    }
+
+    public int getRateDivisor() {
+        return rateDivisor;
+    }
+
+    public void setRateDivisor(int rateDivisor) {
+        this.rateDivisor = rateDivisor;
+    }
+
+    public AnnuityLoanPeriod[] getIntervals() {
+        return intervals;
+    }
+
+    public void setIntervals(AnnuityLoanPeriod[] intervals) {
+        this.intervals = intervals;
+    }
+
+    public int getHighestSegment() {
+        return highestSegment;
+    }
+
+    public void setHighestSegment(int highestSegment) {
+        this.highestSegment = highestSegment;
+    }
+
+    public double getResidue() {
+        return residue;
+    }
+
+    public void setResidue(double residue) {
+        this.residue = residue;
+    }
+
+    public double[] getRates() {
+        return rates;
+    }
+
+    public void setRates(double[] rates) {
+        this.rates = rates;
+    }
+
+    public double[] getPeriodsRemaining() {
+        return periodsRemaining;
+    }
+
+    public void setPeriodsRemaining(double[] periodsRemaining) {
+        this.periodsRemaining = periodsRemaining;
+    }
+
+}
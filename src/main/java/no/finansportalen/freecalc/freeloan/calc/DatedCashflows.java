@@ -0,0 +1,178 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import no.finansportalen.freecalc.common.CashflowIrr;
+import no.finansportalen.freecalc.common.DayCount;
+import no.finansportalen.freecalc.common.Deadline;
+import no.finansportalen.freecalc.common.EpochDays;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException.FreeLoanExceptionType;
+
+/**
+ * <p>
+ * The payments of a loan on calendar dates, and the effective annual rate that discounts them to the amount received
+ * on the start date.
+ * </p>
+ *
+ * <p>
+ * Without dates, FreeLoan discounts payment 'i' by k^i: All periods are equally long, and the annual rate is (1/k)^12 -
+ * 1 with monthly payments. With dates, payment 'i' falls 'i' periods after the start date - the same day in a later
+ * month, or the last day of a shorter month - and is discounted by the time in years from the start date, measured
+ * with the day count:
+ * </p>
+ *
+ * <p>
+ * received = sum(payment[i] * v^t[i]), v = 1 / (1 + er / 100)
+ * </p>
+ *
+ * <p>
+ * The times are irregular: 31/365 and 28/365 year for January and February with ACT_365. There is no geometric series
+ * and no closed form, so CashflowIrr runs Newton's method on 'v' with one payment per date and a period of one year.
+ * The rate of the same loan without dates is a good start value, and two or three rounds are enough.
+ * </p>
+ *
+ * <p>
+ * The times of the periods depend only on the start date, the day count and the number of periods per year. They are
+ * computed once, when a period is first used, and kept for all quotes with the same dates.
+ * </p>
+ */
+class DatedCashflows {
+
+    private final int startDay;
+
+    private final DayCount dayCount;
+
+    private final int periodsPerYear;
+
+    /**
+     * The time in years of the whole periods, NaN until computed
+     */
+    private double[] periodTimes = new double[0];
+
+    /**
+     * The payments, at their times in years
+     */
+    private final CashflowIrr cashflows = new CashflowIrr();
+
+    DatedCashflows(int startDay, DayCount dayCount, int periodsPerYear) {
+        this.startDay = startDay;
+        this.dayCount = dayCount;
+        this.periodsPerYear = periodsPerYear;
+
+        cashflows.setPeriodsPerYear(1);
+    }
+
+    /**
+     * @return true: The times computed by this object hold for these dates
+     */
+    boolean matches(int startDay, DayCount dayCount, int periodsPerYear) {
+        return this.startDay == startDay && this.dayCount == dayCount && this.periodsPerYear == periodsPerYear;
+    }
+
+    /**
+     * Removes the payments, keeping the times of the periods
+     */
+    void clear() {
+        cashflows.clear();
+    }
+
+    /**
+     * @return The epoch day of the end of whole period 'period'. Monthly, quarterly etc. periods are whole months,
+     *         other periods (weekly, fortnightly) whole days.
+     */
+    int dueDay(int period) {
+        if (12 % periodsPerYear == 0) {
+            return EpochDays.plusMonths(startDay, period * (12 / periodsPerYear));
+        }
+        return startDay + (int) Math.round(period * 365.25 / periodsPerYear);
+    }
+
+    /**
+     * @param period
+     *            Periods after the start date. A fraction of a period is a fraction of the days of the period.
+     */
+    void add(double period, double amount) {
+        cashflows.add(time(period), amount);
+    }
+
+    /**
+     * Adds every payment of the runs of 'cashflows', one by one
+     */
+    void addAll(CashflowIrr cashflows) {
+        for (int i = 0; i < cashflows.size(); i++) {
+            double end = cashflows.getStart(i) + cashflows.getCount(i);
+            for (double period = cashflows.getStart(i); period < end; period++) {
+                add(period, cashflows.getAmount(i));
+            }
+        }
+    }
+
+    /**
+     * @return The time of 'period', periods after the start date, in years
+     */
+    private double time(double period) {
+
+        int whole = (int) Math.floor(period);
+        double fraction = period - whole;
+
+        double time = periodTime(whole);
+
+        if (fraction != 0) {
+            time += fraction * (periodTime(whole + 1) - time);
+        }
+
+        return time;
+    }
+
+    private double periodTime(int period) {
+
+        if (period < 0) {
+            return dayCount.yearFraction(startDay, dueDay(period));
+        }
+
+        if (period >= periodTimes.length) {
+            double[] grown = new double[Math.max(period + 1, 2 * periodTimes.length)];
+            for (int i = 0; i < grown.length; i++) {
+                grown[i] = i < periodTimes.length ? periodTimes[i] : Double.NaN;
+            }
+            periodTimes = grown;
+        }
+
+        if (Double.isNaN(periodTimes[period])) {
+            periodTimes[period] = dayCount.yearFraction(startDay, dueDay(period));
+        }
+
+        return periodTimes[period];
+    }
+
+    /**
+     * @param received
+     *            The amount paid out on the start date
+     * @param startRate
+     *            Effective annual rate in percent to start from - the rate without dates
+     * @param maxRateError
+     *            As in FreeLoan. null: Stops when the present value is within 0.000001 of 'received'.
+     * @param deadline
+     *            As in FreeLoan. null: No deadline
+     * @return The effective annual rate in percent
+     */
+    double effectiveRate(double received, double startRate, Double maxRateError, Deadline deadline)
+            throws FreeLoanException {
+
+        cashflows.setMaxRateError(maxRateError);
+        cashflows.setDeadline(deadline);
+
+        double v = cashflows.solve(received, 1 / (1 + startRate / 100));
+
+        if (cashflows.isDeadlineExceeded()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
+        }
+
+        double er = (1 / v - 1) * 100;
+
+        if (Double.isNaN(er)) {
+            throw new FreeLoanException(FreeLoanExceptionType.EFFECTIVE_RATE_WAS_NAN);
+        }
+
+        return er;
+    }
+
+}
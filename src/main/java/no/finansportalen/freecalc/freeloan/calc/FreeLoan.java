@@ -2,10 +2,18 @@ package no.finansportalen.freecalc.freeloan.calc;
 
 
 import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
+import no.finansportalen.freecalc.common.CashflowIrr;
+import no.finansportalen.freecalc.common.DayCount;
+import no.finansportalen.freecalc.common.Deadline;
+import no.finansportalen.freecalc.common.DiscountPowers;
+import no.finansportalen.freecalc.common.RoundingPolicy;
+import no.finansportalen.freecalc.common.ScheduleSink;
 import no.finansportalen.freecalc.common.SerialLoanPeriod;
+import no.finansportalen.freecalc.common.SerialSchedule;
 import no.finansportalen.freecalc.common.Utils;
 import no.finansportalen.freecalc.freeloan.calc.FreeLoanException.FreeLoanExceptionType;
 import no.finansportalen.freecalc.freeloan.result.AnnuityLoanResult;
+import no.finansportalen.freecalc.freeloan.result.AnnuityLoanSensitivity;
 import no.finansportalen.freecalc.freeloan.result.SerialLoanResult;
 
 import java.util.ArrayList;
@@ -234,14 +242,10 @@ public class FreeLoan {
     private int interestonlyPeriods = 0;
 
     /**
-     * NORMAL: Annuities are rounded after normal rules UP: Rounded up DOWN. Rounded down
+     * How the payments are rounded: The minor unit or cash step of the currency, and the direction. Two decimals,
+     * normal rounding by default.
      */
-    private Utils.RoundDirection roundDirection = Utils.RoundDirection.NORMAL;
-
-    /**
-     * false: Payment rounded to nearest 1/100 true: ..rounded to nearest integer
-     */
-    private boolean roundToInteger = false;
+    private RoundingPolicy roundingPolicy = RoundingPolicy.DEFAULT;
 
     /**
      * false: The "global" remainder at the end of the loan period is payed / compensated with the last payment true:
@@ -313,10 +317,75 @@ public class FreeLoan {
     private PriceStorageStep[] priceStorage = null;
     
     /**
-     * Only for serial loans. Does not apply to annuity loans.
+     * Only for serial loans. Does not apply to annuity loans. Not used when 'maxRateError' is set.
      */
     private Utils.Accuracy accuracy = Utils.Accuracy.NORMAL;
 
+    /**
+     * The largest error accepted in the effective interest rate, in basis points (hundredths of a percentage point).
+     * null: The fixed tolerances of the present value are used, and 'accuracy' for serial loans.
+     */
+    private Double maxRateError = null;
+
+    /**
+     * The version of the product catalogue the price list was taken from, passed on to the results. 0: Not from a
+     * catalogue
+     */
+    private long catalogueVersion = 0;
+
+    /**
+     * Work arrays and interval calculators for the intervals of loans with rate thresholds or separate, concurrent
+     * interest rates, reused by all quotes of this object
+     */
+    private SegmentWorkspace segmentWorkspace = new SegmentWorkspace();
+
+    /**
+     * The longest loan period, in years, searched by periodsForPayment()
+     */
+    private static final int INVERSE_MAX_YEARS = 100;
+
+    /**
+     * Default for 'maxCalculationPeriods': A thousand years of monthly payments
+     */
+    public static final int DEFAULT_MAX_CALCULATION_PERIODS = 12000;
+
+    /**
+     * The longest loan accepted, in calculation periods. Period mode with an interest-only period might give payback
+     * periods of thousands of years, and a serial loan stores every period.
+     */
+    private int maxCalculationPeriods = DEFAULT_MAX_CALCULATION_PERIODS;
+
+    /**
+     * The day the loan is paid out, as an epoch day (EpochDays). null: All periods are equally long, and the effective
+     * rate is found without dates.
+     */
+    private Integer startDate = null;
+
+    /**
+     * How the time between the start date and the payment dates is measured when 'startDate' is set
+     */
+    private DayCount dayCount = DayCount.ACT_365;
+
+    /**
+     * The payment dates of the last quote with a start date, kept for the next quotes with the same dates
+     */
+    private DatedCashflows datedCashflows = null;
+
+    /**
+     * true: serialLoan() returns the payment plan as runs of periods, a SerialSchedule, instead of one object per period
+     */
+    private boolean encodeSchedule = false;
+
+    /**
+     * Checked between the iterations and every 'DEADLINE_CHECK_PERIODS' periods. null: No deadline
+     */
+    private Deadline deadline = null;
+
+    /**
+     * How often the loops over periods check the deadline. A power of two.
+     */
+    private static final int DEADLINE_CHECK_PERIODS = 1024;
+
     
     
     /**
@@ -380,6 +449,17 @@ public class FreeLoan {
 
     
     
+    /**
+     * Gives up with DEADLINE_EXCEEDED if the deadline has passed or the calculation is cancelled
+     */
+    private void checkDeadline() throws FreeLoanException {
+        if (deadline != null && deadline.isExpired()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
+        }
+    }
+
+
+
     /**
      * 
      * 
@@ -433,6 +513,17 @@ public class FreeLoan {
      * 'interval_data' to compute the result(s)</p>
      */
     public AnnuityLoanResult annuityLoan() throws FreeLoanException {
+        return annuityLoan(annuitySchedule(), Double.NaN);
+    }
+
+    /**
+     * <p>The sections 1) to 5) of annuityLoan(): All the annuities, the number of periods they are paid and the global
+     * residue of the loan. Nothing is iterated here, so the result can be computed repeatedly at a low cost - for
+     * instance when searching for the loan amount or the number of periods that fit a given payment.</p>
+     */
+    private AnnuitySchedule annuitySchedule() throws FreeLoanException {
+
+        checkDeadline();
 
         preprocess();
         
@@ -663,10 +754,21 @@ public class FreeLoan {
         // In order for the algoritm to be stringent, we use 'price_storage_cop' also when there is no balloon:
         } else {
         
-            // 'price_storage_cop' now is a copy of 'priceStorage'
+            /*
+             * 'price_storage_cop' now is a copy of 'priceStorage'. The steps are copied too, since the limits are
+             * adjusted below when 'rateSegments' == true. Otherwise, a second computation with the same object would
+             * see the limits of the first one:
+             */
             price_storage_cop = new ArrayList<PriceStorageStep>();
-            for (int i = 0; i < priceStorage.length; i++) {
-                price_storage_cop.add(priceStorage[i]);
+
+            // the 0 element is a dummy
+            price_storage_cop.add(null);
+
+            for (int i = 1; i < priceStorage.length; i++) {
+                PriceStorageStep curPriceStorageStep = priceStorage[i];
+                price_storage_cop.add(new PriceStorageStep(curPriceStorageStep.getAnnualInterest(),
+                        curPriceStorageStep.getPeriodicalFee(), curPriceStorageStep.getLowerLimit(),
+                        curPriceStorageStep.getUpperLimit()));
             }
         }
 
@@ -756,6 +858,13 @@ public class FreeLoan {
         // An array that stores intermediate values
         AnnuityLoanPeriod[] interval_data = new AnnuityLoanPeriod[i + 1];
 
+        /*
+         * The nominal interest rate and the number of periods remaining of the loan at the start of each interval. Not
+         * needed for the effective interest rate, but for its derivatives. One extra row for an interest-only period:
+         */
+        double[] interval_rates = new double[i + 2];
+        double[] interval_periods = new double[i + 2];
+
         while (i >= 1 && found == false) {
 
             AnnuityLoanPeriod curIntervalData = new AnnuityLoanPeriod();
@@ -926,20 +1035,22 @@ public class FreeLoan {
                      * 'interval_data' (see the definition of the elements in 'interval_data' further above):
                      */
 
-                    IntervallengthCalc intervalCalc = new IntervallengthCalc();
+                    IntervallengthCalc intervalCalc = segmentWorkspace.getIntervalCalc();
 
                     intervalCalc.setUpperlimit(highlimit);
                     intervalCalc.setRate(interest_segment);
                     intervalCalc.setLowerlimit(lowlimit);
                     intervalCalc.setPeriods(periods_remaining);
-                    intervalCalc.setRoundDirection(roundDirection);
-                    intervalCalc.setRoundToInteger(roundToInteger);
+                    intervalCalc.setRoundingPolicy(roundingPolicy);
                     intervalCalc.setRateDivisor(rate_divisor);
                     intervalCalc.setInterestAmountRes(interest_amount_res);
                     intervalCalc.setAdvance(annuityDue);
 
                     interval_data[step] = intervalCalc.calculate();
 
+                    interval_rates[step] = interest_segment;
+                    interval_periods[step] = periods_remaining;
+
                 } else {
 
                     /*
@@ -1004,12 +1115,11 @@ public class FreeLoan {
                     /*
                      * Now, we can invoke the function IntervallengthSeparateCalc() that returns a fully computed segment
                      */
-                    IntervallengthSeparateCalc calc = new IntervallengthSeparateCalc();
+                    IntervallengthSeparateCalc calc = segmentWorkspace.getSeparateCalc();
                     calc.setSegmentarray(price_storage_cop);
                     calc.setStep(step);
                     calc.setPeriodsRemaining(periods_remaining);
-                    calc.setRoundDirection(roundDirection);
-                    calc.setRoundToInteger(roundToInteger);
+                    calc.setRoundingPolicy(roundingPolicy);
                     calc.setRateDivisor(rate_divisor);
                     calc.setInterestAmountRes(interest_amount_res);
 
@@ -1069,7 +1179,7 @@ public class FreeLoan {
                          * old remainder with the new:
                          */
 
-                        curIntervalDataStep.setPayment(Utils.roundoff(annuity_unrounded, roundDirection, roundToInteger));
+                        curIntervalDataStep.setPayment(roundingPolicy.round(annuity_unrounded));
 
                         /*
                          * The remainder when rounding the periodical payment was computed either in the function
@@ -1083,8 +1193,8 @@ public class FreeLoan {
                         curIntervalDataStep.setRemainder(annuity_unrounded - curIntervalDataStep.getPayment());
 
                     } else {
-                        curIntervalDataStep.setPayment(Utils.roundoff(curIntervalDataStep.getPayment() + interest_amount_res,
-                                roundDirection, roundToInteger));
+                        curIntervalDataStep.setPayment(roundingPolicy.round(curIntervalDataStep.getPayment()
+                                + interest_amount_res));
                     }
 
                 }
@@ -1170,12 +1280,14 @@ public class FreeLoan {
 
             interval_data[highest_segment] = intervalDataHighestSegment;
 
-            intervalDataHighestSegment.setPayment(Utils.roundoff(unrounded, roundDirection, roundToInteger));
+            intervalDataHighestSegment.setPayment(roundingPolicy.round(unrounded));
 
             // The number of terms/periods we pay this periodic payment:
 
             intervalDataHighestSegment.setNumberOfTerms(installment_grace_periods);
 
+            interval_rates[highest_segment] = interest_segment;
+
             // The size of the principal at the end of the interval. Here, it's the same as at the beginning, since no
             // installments are paid:
 
@@ -1218,17 +1330,9 @@ public class FreeLoan {
          * the first payment.
          */
 
-        int disko;
         double residue;
         double gross_last;
 
-        // 'disko' is a divisor used when rounding
-        if (roundToInteger) {
-            disko = 1;
-        } else {
-            disko = 100;
-        }
-
         /*
          * 'interval_data[1].getLowerSegmentLimit()' contains the remaining principal at the end of each loan interval. When the last
          * segment is paid, the remaining principal will be the global residue for the whole loan. The last segment to
@@ -1267,528 +1371,966 @@ public class FreeLoan {
          */
 
         if (!ignoreRemainder) {
-            residue = Math.round(gross_last * disko) / (double) disko
+            residue = roundingPolicy.roundNearest(gross_last)
                     - (intervalDataFirst.getPayment() + intervalDataFirst.getPeriodicFee());
         } else {
-            residue = Math.round(balloon * disko) / (double) disko;
+            residue = roundingPolicy.roundNearest(balloon);
+        }
+
+        if (calculation_periods > maxCalculationPeriods) {
+            throw new FreeLoanException(FreeLoanExceptionType.TOO_MANY_PERIODS);
         }
 
+        AnnuitySchedule schedule = new AnnuitySchedule();
+        schedule.setPrincipal(principal);
+        schedule.setPrincipalAnn(principal_ann);
+        schedule.setCalculationPeriods(calculation_periods);
+        schedule.setInstallmentGracePeriods(installment_grace_periods);
+        schedule.setRateDivisor(rate_divisor);
+        schedule.setIntervals(interval_data);
+        schedule.setHighestSegment(highest_segment);
+        schedule.setResidue(residue);
+        schedule.setRates(interval_rates);
+        schedule.setPeriodsRemaining(interval_periods);
+
+        return schedule;
+
+    }
+
+
+
+    /**
+     * The sections 6) and 7) of annuityLoan(), given the payment plan from the sections 1) to 5)
+     * 
+     * @param start_k
+     *            The first guess for the discount factor 'k' in the iterations. NaN: The guess is made from the
+     *            lowest interest rate.
+     */
+    private AnnuityLoanResult annuityLoan(AnnuitySchedule schedule, double start_k) throws FreeLoanException {
+
+        // The values computed in the sections 1) to 5), see annuitySchedule()
+        AnnuityLoanPeriod[] interval_data = schedule.getIntervals();
+        int highest_segment = schedule.getHighestSegment();
+        double calculation_periods = schedule.getCalculationPeriods();
+        double installment_grace_periods = schedule.getInstallmentGracePeriods();
+        double residue = schedule.getResidue();
+        int rate_divisor = schedule.getRateDivisor();
+
+        // Index of the current interval in 'interval_data'
+        int i;
+
         /*
          * 
          * 6) EFFECTIVE INTEREST RATE:
          * 
          * As we now have an array/matrix containing all amounts due and the number of periods they should be paid, we
-         * can compute the effective interest rate.
-         * 
-         * We apply the annuity formula:
-         * 
-         * 
-         * 1) ANNUITY-IMMEDIATE
-         * 
-         * (When 'advance == true')
-         * 
-         * 
-         * 
-         * 
-         * FORMULA FOR ANNUITY-IMMEDIATE:
-         * annuity = loan * (1 - k) / (k - Math.pow(k,termnumber+1));
-         * where
-         * k = 1/(1+rate);
-         * 
-         * 
-         * We want to compute 'rate'.
-         * 
-         * We use other variable names:
-         * 
-         * payment = principal * (1 - k) / (k - Math.pow(k,calculation_periods+1));
-         * 
-         * We rearrange it with respect to 'principal':
-         * 
-         * payment/principal = (1 - k) / (k - Math.pow(k,calculation_periods+1));
-         * 
-         * => principal * (1-k) = payment * (k - Math.pow(k,calculation_periods+1));
-         * 
-         * => principal = payment * (k - Math.pow(k,calculation_periods+1))/ (1-k);
-         * 
-         * We want the right hand expression to be a present value equal to 'principal'. For computation purposes, we
-         * thus call the principal 'PV':
-         * 
-         * PV = payment * (k - Math.pow(k,calculation_periods+1))/ (1-k);
-         * 
-         * We formerly computed the values for the array 'interval_data'.
-         * 
-         * For each interval/step we shall now compute the present value of the stream of payments from the beginning to
-         * the end of the interval.
-         * 
-         * We do that by subtracting the present value of one stream of payments from another:
-         * 
-         * 
-         * 1) A strem of payments with the current periodical amount running from the first payment in the loan to the
-         * last payment in the interval:
-         * 
-         * payment * (k - Math.pow(k,interval_end+1))/ (1-k)
-         * 
-         * 2) Minus a strem of payments with the same amount running from the first payment in the loan to the first
-         * payment in the interval:
-         * 
-         * payment * (k - Math.pow(k,interval_start+1))/ (1-k)
-         * 
-         * 
-         * The present value of the payment stream from the beginning to the end of the interval transpires by
-         * subtracting the second expression from the first:
-         * 
-         * PV = payment * (k - Math.pow(k,interval_end+1))/ (1-k) - payment * (k - Math.pow(k,interval_start+1))/ (1-k)
-         * 
-         * We simplify:
-         * 
-         * => PV = (payment * k - payment * Math.pow(k,interval_end+1) - payment * k + payment *
-         * Math.pow(k,interval_start+1))/ 1-k
-         * 
-         * The terms 'payment * k' falls against each other, and we get:
-         * 
-         * => (payment * Math.pow(k,interval_start+1) - payment * Math.pow(k,interval_end+1)) / 1-k
-         * 
-         * We can isolate 'payment / (1 - k)':
-         * 
-         * PV = (payment/(1-k)) * (Math.pow(k,interval_start+1) - Math.pow(k,interval_end+1));
-         * 
-         * 'k' (the discount factor) is the unknown entity in our expression. The other variables are known.
-         * 
-         * 
-         * 
-         * 
-         * 2) ANNUITY-DUE
-         * 
-         * (When 'advance == false')
-         * 
-         * FORMULA FOR ANNUITY-DUE:
-         * annuity = loan * (1 - k) / (1 - Math.pow(k,termnumber));
-         * where
-         * k = 1/(1+rate);
-         * 
-         * 
-         * We reason the same way as for annuity-immediate, but use the annuity-due formula
-         * 
-         * PV = payment * (1 - Math.pow(k,termnumber))/(1 - k);
-         * 
-         * So that our present value becomes:
-         * 
-         * PV = payment * (1 - Math.pow(k,interval_end))/ (1-k) - payment * (1 - Math.pow(k,interval_start))/ (1-k)
-         * 
-         * And the algebra:
-         * 
-         * PV = payment/(1-k) - payment * Math.pow(k,interval_end)/(1-k) - payment/(1-k) + payment *
-         * Math.pow(k,interval_start)/(1-k)
+         * can compute the effective interest rate: The discount factor 'k' = 1/(1+rate) per period making the present
+         * value of the payments equal to the amount received.
          * 
-         * The first and third term falls, leaving:
-         * 
-         * PV = payment * Math.pow(k,interval_start)/(1-k) - payment * Math.pow(k,interval_end)/(1-k)
-         * 
-         * Common factor payment/(1-k) put ouside:
-         * 
-         * PV = payment/(1-k) * (Math.pow(k,interval_start) - Math.pow(k,interval_end))
-         * 
-         * 
-         * 
-         * 
-         * **************************************************************************************************************
-         * *********************************
-         * 
-         * 
-         * 
-         * NEWTON'S METHOD - DIFFERENTIATION
-         * 
-         * No formula gives us the effective interest rate directly. We find it by trying a likely value for 'k',
-         * adjusting it until we get the interest rate with the accuracy we want. Newton's method shortenes this try and
-         * fail process. It postulates that our 'k' will be found close to where the tangent to the curve in the present
-         * PV/k point crosses the k-axes:
-         * 
-         * http://en.wikipedia.org/wiki/Newton%27s_method
-         * 
-         * The graph is in the PV/k space. A value of 'k' will give a value of 'PV': PV = f(k).
-         * 
-         * The steepness of the tangent line is given by the differentiated function with respect to 'k':
-         * 
-         * PV = (payment/(1-k)) * (Math.pow(k,interval_start+1) - Math.pow(k,interval_end+1));
-         * 
-         * For easier differentiation, we handle the two expressions on each side of the multiplication sign separately.
-         * We call them 'A' and 'B';
-         * 
-         * PV = A*B; where
-         * 
-         * A = payment/(1-k);
-         * 
-         * B = Math.pow(k,interval_start+1) - Math.pow(k,interval_end+1);
-         * 
-         * One can find the differentiation rules on wikipedia: http://en.wikipedia.org/wiki/Differentiation_rules
-         * 
-         * PV' = A'*B + A*B'
-         * 
-         * We fist differietiate 'A' separately according to the Quotient rule:
-         * 
-         * A' = (payment' * (1-k) - payment* (1-k)') / (1-k)^2
-         * 
-         * The differntiated of the constant 'payment' is 0. The differentiated of the variable 'k' er 1:
-         * 
-         * => A' = - payment* (1-k)' / (1-k)^2
-         * 
-         * => A' = payment / Math.pow(1-k,2)
-         * 
-         * Then we differentiate 'B' according to the Power rule (y = x^n => y' = n*x^(n-1)):
-         * 
-         * B = Math.pow(k,interval_start+1) - Math.pow(k,interval_end+1);
-         * 
-         * B' = (interval_start+1)*Math.pow(k,interval_start) - (interval_end+1) * Math.pow(k,interval_end)
-         * 
-         * We then assemble the whole differentiated PV according to the Product rule:
-         * 
-         * PV' = (payment / Math.pow(1-k,2)) * (Math.pow(k,interval_start+1) - Math.pow(k,interval_end+1)) +
-         * (payment/(1-k))*((interval_start+1)*Math.pow(k,interval_start) - (interval_end+1) *
-         * Math.pow(k,interval_end));
-         * 
-         * As there is no notation for the differentiated in the programming language, we rename the differentiated
-         * PV' 'PV_dif':
-         * 
-         * PV_dif = PV'
-         * 
-         * 
-         * 
-         * ANNUITY-DUE
-         * 
-         * 
-         * (When 'advance == false')
-         * 
-         * We reason the same way:
-         * 
-         * PV = payment/(1-k) * (Math.pow(k,interval_start) - Math.pow(k,intervallslutt))
-         * 
-         * A = payment/(1-k);
-         * 
-         * B = Math.pow(k,interval_start) - Math.pow(k,interval_end);
-         * 
-         * One can find the differentiation rules on wikipedia: http://en.wikipedia.org/wiki/Differentiation_rules
-         * 
-         * PV' = A'*B + A*B'
-         * 
-         * We fist differietiate 'A' separately according to the Quotient rule:
-         * 
-         * A' = (payment' * (1-k) - payment* (1-k)') / (1-k)^2
-         * 
-         * Den dervierte av konstanten 'payment' er 0. Den deriverte av variablen 'k' er 1:
-         * 
-         * => A' = - payment* (1-k)' / (1-k)^2
-         * 
-         * => A' = - payment / Math.pow(1-k,2)
-         * 
-         * Then we differentiate 'B' according to the Power rule:
-         * 
-         * B = Math.pow(k,interval_start) - Math.pow(k,interval_end);
-         * 
-         * B' = interval_start * Math.pow(k,interval_start-1) - interval_end * Math.pow(k,interval_end-1)
-         * 
-         * We then assemble the whole differentiated PV' according to the Product rule:
-         * 
-         * PV' = (payment / Math.pow(1-k,2)) * (Math.pow(k,interval_start) - Math.pow(k,interval_end)) +
-         * (payment/(1-k))*(interval_start*Math.pow(k,interval_start-1) - interval_end * Math.pow(k,interval_end-1));
-         * 
-         * As there is no notation for the differentiated in the programming language, we rename the differentiated
-         * PV' 'PV_dif':
-         * 
-         * PV_dif = PV'
-         * 
-         * **************************************************************************************************************
-         * *********************************
-         * 
-         * 
-         * 
-         * ITERATIONS:
+         * The payment plan is flattened once into an 'AnnuityKernel' - one run of equal payments per interval, and the
+         * residue - where the times are shifted for annuity-immediate, so the same solver serves annuity-due and
+         * annuity-immediate. CashflowIrr sums each run as a geometric series and finds 'k' with Newton's method; the
+         * present value and its derivative are derived there.
          * 
+         * No formula gives us the effective interest rate directly. The nominal interest rate of the lowest segment is
+         * our first guess.
+         */
+
+        // First suggestion: The array 'priceStorage' is a parameter to the function
+        double k = 1 / (1 + priceStorage[1].getAnnualInterest() / rate_divisor);
+
+        // ..unless a better guess is given, for instance the solution for a slightly smaller loan
+        if (!Double.isNaN(start_k)) {
+            k = start_k;
+        }
+
+        // The payments of all the intervals and the residue, as runs of equal payments
+        AnnuityKernel kernel = new AnnuityKernel(schedule, annuityDue);
+
+        CashflowIrr cashflows = kernel.getCashflows();
+
+        // With an error budget for the rate, the step in 'k' decides instead of the present value
+        cashflows.setMaxRateError(maxRateError);
+        cashflows.setPeriodsPerYear(capitalizationFreq);
+        cashflows.setDeadline(deadline);
+
+        // Newton's method: Searching for a 'k' making PV - received = 0
+        k = cashflows.solve(received, k);
+
+        if (cashflows.isDeadlineExceeded()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
+        }
+
+        // Counts the number of iterations
+        int rounds = cashflows.getRounds();
+
+        /*
+         * 'k' is a discouting factor that was defined as k = 1/(1+e) where 'e' is the periodic, effective interest rate
+         * as decimal fraction. (1+e) is the growth rate for each period. Hence, the growth rate for a year is (1+e)^12
+         * (if there are 12 capitalizations per year). The effective, annual interest rate in decimal fraction, thus, is
+         * ((1+e)^12)-1. In percentage: er = (((1+e)^12)-1)*100. Since k = 1/(1+e) => (1+e) = 1/k, we substiute and get
+         * er = ((1/k)^12-1)*100:
+         */
+
+        // 'er' is the effective annual interest rate - the principal result of the function
+        double er = (DiscountPowers.power(1 / k, capitalizationFreq) - 1) * 100;
+
+        // With a start date, the payments are discounted by the time to their dates instead, from 'er'
+        if (startDate != null && !Double.isNaN(er)) {
+            DatedCashflows flows = datedCashflows();
+            flows.addAll(cashflows);
+            er = flows.effectiveRate(received, er, maxRateError, deadline);
+        }
+        
+        
+        // This should not happen, but it does in the JS version if input data is wierd. So we
+        // throw an exception to avoid problems later on.
+        if(Double.isNaN(er)) {
+            throw new FreeLoanException(FreeLoanExceptionType.EFFECTIVE_RATE_WAS_NAN);
+        }
+        
+
+        
+        /*
          * 
-         * We have two, pretty much identical, alternative while-loops for computing annuity-due and annuity-immediate,
-         * respectively. Instead, we could have performed frequent if-test inside the loops, but this would probably
-         * have impaired performance more.
+         * 7) RESULT REPORTING
          * 
-         * When the function is called, at least one nominal interest rate will be among the parameters - the rate in
-         * the lowest segment. We skal use this rate as our first guess as to what the effective interest rate might be.
          * 
-         * THe function does not use interest rate directly, only via the discount factor 'k'
+         * The function primarily computes the effective interest rate. But as a bi-product, several other avalues were
+         * computed along the way. These could come handy during the result presentation - for instance the length of
+         * the intervals, the fees, the balloon.
          */
+        AnnuityLoanResult res = new AnnuityLoanResult();
+        res.setEffectiveInterestRate(er);
+        res.setResidue(residue);
+        res.setRounds(rounds);
+        res.setPeriods(interval_data);
+        res.setCatalogueVersion(catalogueVersion);
+        
+        /* Normally, we pay more the last periods when there is an inital interest only-period. But when the borrower has specified that he is able
+        to pay only a maximum sum - 'firstpayment' - per month, we have to prolong the payment period instead: */
+        
+        
+        // contains the number of payback periods.
+        double paybackPeriodCount = 0; 
+        
+        if (rateThresholds && firstPayment != null && firstPayment > 0) {
+            
+            // Where there are several intervals, we sum them up
+            for (i=1;i<interval_data.length;i++) {
+                paybackPeriodCount += interval_data[i].getNumberOfTerms();
+            }
+            
+            paybackPeriodCount += installment_grace_periods;
+            
+        // The payback period in number of payments
+        } else {
+            paybackPeriodCount = interval_data[1].getNumberOfTerms() + installment_grace_periods;  
+        }
+
+        res.setPaybackPeriodCount(paybackPeriodCount);
+        
+        
+        return res;
+
+    }
+
+
+
+    /**
+     * <p>
+     * <b>INVERSE QUERIES</b>
+     * </p>
+     * 
+     * <p>
+     * The three functions below answer the questions an advisor asks the other way around: How big a loan can the
+     * borrower get for a given payment, how many periods does it take and what payment gives a certain effective
+     * interest rate.
+     * </p>
+     * 
+     * <p>
+     * The two first searches only compute the payment plan - the sections 1) to 5) of annuityLoan() - for each
+     * candidate. The iterations for the effective interest rate are never run. Since the whole payment plan is
+     * computed, all three loan models are supported, also 'rateThresholds'.
+     * </p>
+     * 
+     * <p>
+     * As in period mode, the payment is the first periodic payment where installments are paid, fees included.
+     * </p>
+     * 
+     * @param payment
+     *            The highest acceptable first payment
+     * 
+     * @return The biggest amount the borrower can receive, in whole cents, with a first payment not bigger than
+     *         'payment' over 'numberOfPeriods'
+     */
+    public double maxReceivedForPayment(double payment) throws FreeLoanException {
+
+        if (numberOfPeriods == null) {
+            throw new FreeLoanException("numberOfPeriods");
+        }
+
+        preprocess();
+
+        /*
+         * The payment in the unit of the calculation periods, as in period mode. The payments are rounded, so a tiny
+         * margin keeps the conversion from rejecting a payment that is exactly equal:
+         */
+        double budget = payment * 12 / capitalizationFreq + 0.000001;
+
+        Double received_cop = received;
+        Double first_payment_cop = firstPayment;
+
+        // The search is performed in payment mode
+        firstPayment = null;
+
+        try {
+
+            /*
+             * The periodic payment increases with the loan amount as long as the interest rate is the same. But a bigger
+             * loan might get a lower interest rate - and a lower payment. We thus search each segment separately,
+             * starting with the highest one. The first segment where a loan fits, has the answer.
+             * 
+             * When the segments run concurrently ('rateSegments' == true), the payment always increases with the loan
+             * amount, and the whole range is searched at once.
+             */
+
+            double calculation_periods = numberOfPeriods / (double) periodsPerYear * capitalizationFreq;
+
+            int last = rateSegments ? priceStorage.length - 1 : 1;
+
+            for (int i = priceStorage.length - 1; i >= last; i--) {
+
+                double lowlimit = priceStorage[rateSegments ? 1 : i].getLowerLimit();
+                double highlimit = priceStorage[i].getUpperLimit();
+
+                /*
+                 * The installments must pay down the principal before the loan period is over. So, with a positive
+                 * interest rate, the principal can never exceed the payment times the number of calculation periods
+                 * (plus the balloon):
+                 */
+
+                highlimit = Math.min(highlimit, budget * calculation_periods + balloon);
+
+                if (highlimit < lowlimit) {
+                    continue;
+                }
+
+                // The search runs in cents over the amount received
+                long low = Math.max(1, (long) Math.ceil(receivedForPrincipal(lowlimit) * 100));
+                long high = (long) Math.floor(receivedForPrincipal(highlimit) * 100);
+
+                if (high < low || !paymentFits(low, budget)) {
+                    continue;
+                }
+
+                if (paymentFits(high, budget)) {
+                    return high / 100.0;
+                }
+
+                // Bisection: 'low' always fits, 'high' never does
+                while (high - low > 1) {
+
+                    long middle = low + (high - low) / 2;
+
+                    if (paymentFits(middle, budget)) {
+                        low = middle;
+                    } else {
+                        high = middle;
+                    }
+
+                }
+
+                return low / 100.0;
+
+            }
+
+        } finally {
+            received = received_cop;
+            firstPayment = first_payment_cop;
+        }
+
+        throw new FreeLoanException(FreeLoanExceptionType.PAYMENT_TOO_SMALL);
+
+    }
+
+    /**
+     * <p>
+     * The shortest loan period - in whole periods - where the first payment is not bigger than 'payment'.
+     * </p>
+     * 
+     * <p>
+     * The payment decreases when the loan period increases. The search thus doubles the number of periods until the
+     * payment fits, before it is narrowed down by bisection. Loan periods above 'INVERSE_MAX_YEARS' are not searched.
+     * </p>
+     * 
+     * @param payment
+     *            The highest acceptable first payment
+     * 
+     * @return The number of periods, in the unit of 'numberOfPeriods'
+     */
+    public int periodsForPayment(double payment) throws FreeLoanException {
+
+        if (received == null) {
+            throw new FreeLoanException("received");
+        }
+
+        preprocess();
+
+        /*
+         * The payment in the unit of the calculation periods, as in period mode. The payments are rounded, so a tiny
+         * margin keeps the conversion from rejecting a payment that is exactly equal:
+         */
+        double budget = payment * 12 / capitalizationFreq + 0.000001;
+
+        Integer number_of_periods_cop = numberOfPeriods;
+        Double first_payment_cop = firstPayment;
+
+        // The search is performed in payment mode
+        firstPayment = null;
+
+        try {
+
+            int max = INVERSE_MAX_YEARS * periodsPerYear;
+
+            /*
+             * Errors not caused by the number of periods - a loan amount outside all segments for instance - are
+             * reported before the search starts:
+             */
+
+            numberOfPeriods = max;
+
+            if (annuitySchedule().getFirstInstallmentPayment() > budget) {
+                throw new FreeLoanException(FreeLoanExceptionType.PAYMENT_TOO_SMALL);
+            }
+
+            // The payment never fits at 'low', but always at 'high'
+            int low = interestonlyPeriods;
+            int high = interestonlyPeriods + 1;
+
+            while (high < max && !periodsFit(high, budget)) {
+                low = high;
+                high = Math.min(high * 2, max);
+            }
+
+            while (high - low > 1) {
+
+                int middle = low + (high - low) / 2;
+
+                if (periodsFit(middle, budget)) {
+                    high = middle;
+                } else {
+                    low = middle;
+                }
+
+            }
+
+            return high;
+
+        } finally {
+            numberOfPeriods = number_of_periods_cop;
+            firstPayment = first_payment_cop;
+        }
+
+    }
+
+    /**
+     * <p>
+     * The level periodic payment, fees included, that gives the effective interest rate 'effectiveRate' for the amount
+     * 'received' over 'numberOfPeriods'. An eventual balloon is paid with the last payment.
+     * </p>
+     * 
+     * <p>
+     * Since all payments are equal, the payment is given directly by the annuity formulas used in annuityLoan(). It is
+     * rounded the same way as the annuities.
+     * </p>
+     * 
+     * @param effectiveRate
+     *            The effective annual interest rate in percent
+     * 
+     * @return The periodic payment, in the same unit as 'firstPayment'
+     */
+    public double paymentForEffectiveRate(double effectiveRate) throws FreeLoanException {
+
+        if (received == null) {
+            throw new FreeLoanException("received");
+        }
+
+        if (numberOfPeriods == null) {
+            throw new FreeLoanException("numberOfPeriods");
+        }
+
+        preprocess();
+
+        double calculation_periods = numberOfPeriods / (double) periodsPerYear * capitalizationFreq;
+
+        // The discount factor of the effective rate, per calculation period
+        double k = Math.pow(1 + effectiveRate / 100, -1.0 / capitalizationFreq);
+
+        // The present value of one unit paid each period, and of the balloon
+        double factor;
+        double balloon_pv;
+
+        if (annuityDue) {
+            factor = k == 1 ? calculation_periods : (1 - Math.pow(k, calculation_periods)) / (1 - k);
+            balloon_pv = balloon * Math.pow(k, calculation_periods - 1);
+        } else {
+            factor = k == 1 ? calculation_periods : (k - Math.pow(k, calculation_periods + 1)) / (1 - k);
+            balloon_pv = balloon * Math.pow(k, calculation_periods);
+        }
+
+        double payment = (received - balloon_pv) / factor;
+
+        // Back to the unit of 'firstPayment'
+        return roundingPolicy.round(payment * capitalizationFreq / 12);
+
+    }
+
+    /**
+     * @return The payment dates for 'startDate', without payments. Made again only when the dates change.
+     */
+    private DatedCashflows datedCashflows() {
+        if (datedCashflows == null || !datedCashflows.matches(startDate, dayCount, capitalizationFreq)) {
+            datedCashflows = new DatedCashflows(startDate, dayCount, capitalizationFreq);
+        }
+        datedCashflows.clear();
+        return datedCashflows;
+    }
+
+    /**
+     * @return The amount received corresponding to the principal 'principal', the inverse of the principal computed
+     *         in section 1) of annuityLoan()
+     */
+    private double receivedForPrincipal(double principal) {
+
+        if (ignoreOrigination) {
+            return principal;
+        }
+
+        return (principal - feeProcessing) * 100 / (100 + feePercentage) - feeDocument;
+    }
+
+    /**
+     * @return TRUE if the first payment for a loan of 'cents' / 100 fits within 'budget'.
+     */
+    private boolean paymentFits(long cents, double budget) throws FreeLoanException {
+
+        received = cents / 100.0;
+
+        try {
+            return annuitySchedule().getFirstInstallmentPayment() <= budget;
+        } catch (FreeLoanException e) {
+            return infeasible(e);
+        }
+    }
+
+    /**
+     * @return TRUE if the first payment of the loan over 'periods' fits within 'budget'.
+     */
+    private boolean periodsFit(int periods, double budget) throws FreeLoanException {
+
+        numberOfPeriods = periods;
+
+        try {
+            return annuitySchedule().getFirstInstallmentPayment() <= budget;
+        } catch (FreeLoanException e) {
+            // Too few periods to pay installments in: The annuity formulas divide by zero
+            if (e.getType() == FreeLoanExceptionType.FAILING_CONVERGENCE) {
+                return false;
+            }
+            return infeasible(e);
+        }
+    }
+
+    /**
+     * @return false if 'e' means that the candidate loan cannot be given: The payment does not cover the interest, or
+     *         the loan runs too long. Other errors - a missing parameter, an amount outside the price list, the
+     *         deadline - are not answered by another candidate, and are thrown.
+     */
+    private static boolean infeasible(FreeLoanException e) throws FreeLoanException {
+        if (e.getType() == FreeLoanExceptionType.PAYMENT_TOO_SMALL
+                || e.getType() == FreeLoanExceptionType.TOO_MANY_PERIODS) {
+            return false;
+        }
+        throw e;
+    }
+
+
+
+    /**
+     * <p>
+     * <b>A SWEEP OVER LOAN AMOUNTS</b>
+     * </p>
+     * 
+     * <p>
+     * annuityLoan() for each of the amounts received in 'amounts', which must be sorted in rising order - for instance
+     * to draw the effective interest rate as a curve of the loan amount. The other properties are used as they are set.
+     * </p>
+     * 
+     * <p>
+     * Since the amounts are sorted, neighbouring amounts are normally in the same segment and have almost the same
+     * effective rate. The iterations for each amount therefore start from the solution of the previous one, and
+     * normally need only a round or two. (Not in period mode, where the first payment is given and the loan period
+     * changes with the amount.)
+     * </p>
+     * 
+     * <p>
+     * Only the start of the iterations is carried from amount to amount. The payment plan is built anew for each
+     * amount, also within a segment: The rounding of the payments makes it change unevenly with the amount, so the
+     * intervals of one amount cannot be scaled to the next. An amount in a gap of the price list gets no result, and
+     * the sweep goes on with the next one.
+     * </p>
+     * 
+     * @return One result per amount. null for amounts not in any segment of the price list (NO_SEGMENT_FOUND).
+     */
+    public AnnuityLoanResult[] annuityLoanSweep(double[] amounts) throws FreeLoanException {
+
+        for (int a = 1; a < amounts.length; a++) {
+            if (amounts[a] < amounts[a - 1]) {
+                throw new FreeLoanException(FreeLoanExceptionType.UNSORTED_AMOUNTS);
+            }
+        }
+
+        AnnuityLoanResult[] results = new AnnuityLoanResult[amounts.length];
+
+        Double received_set = received;
+
+        // The discount factor of the previous amount
+        double k = Double.NaN;
+
+        try {
+
+            for (int a = 0; a < amounts.length; a++) {
+
+                received = amounts[a];
+
+                AnnuitySchedule schedule;
+
+                try {
+                    schedule = annuitySchedule();
+                } catch (FreeLoanException e) {
+                    if (e.getType() != FreeLoanExceptionType.NO_SEGMENT_FOUND) {
+                        throw e;
+                    }
+                    // Below, between or above the segments
+                    continue;
+                }
+
+                results[a] = annuityLoan(schedule, k);
+
+                // In period mode the loan period changes with the amount, and the solution of the previous amount is
+                // no safe start: The iterations may run away, or find another root.
+                if (firstPayment == null || firstPayment == 0) {
+                    k = Math.pow(1 + results[a].getEffectiveInterestRate() / 100, -1.0 / capitalizationFreq);
+                }
+            }
+
+        } finally {
+            received = received_set;
+        }
+
+        return results;
+    }
+
+
+
+    /**
+     * <p>
+     * <b>A LOWER BOUND ON THE EFFECTIVE INTEREST RATE</b>
+     * </p>
+     * 
+     * <p>
+     * A cheap lower bound on the effective interest rate annuityLoan() would find, from the price list and the fees
+     * only. Used by LoanRanking to skip products that cannot be among the cheapest.
+     * </p>
+     * 
+     * <p>
+     * The bound is the effective rate of a loan that is cheaper than any loan the price list could give: The whole
+     * principal (origination fees included) is paid back at the end, and until then only the interest at the lowest
+     * rate of the price list, 'r_min', and the lowest periodical fee, 'f_min', are paid each period. Discounted with a
+     * periodic rate 'd', the payments of any loan of the same principal 'P' are worth:
+     * </p>
+     * 
+     * <p>
+     * PV = P + sum over t of (r_t - d) * B_(t-1) * v^t + PV(fees)
+     * </p>
+     * 
+     * <p>
+     * where B_(t-1) is the remaining principal and r_t the rate of period t, and v = 1 / (1 + d). For d above the
+     * lowest rate, paying the principal back as late as possible, at the lowest rate, makes PV as small as possible.
+     * The effective rate of any real loan - with installments, balloon, interest-only periods or annuity-due - is thus
+     * at least the effective rate of the interest-only loan. The rounding of the payments is disregarded, so the real
+     * rate could be below the bound by the effect of the rounding.
+     * </p>
+     * 
+     * <p>
+     * Payment mode: The rate of the interest-only loan is found with Newton's method, starting from the rate of an
+     * interest-only loan that is never paid back. Present value is convex and rising in 'k', and the start is to the
+     * right of the solution, so every iteration is a valid, if weaker, bound. Period mode: The number of periods is
+     * not known, and the loan that is never paid back is the bound.
+     * </p>
+     * 
+     * @return The bound, in percent, as the effective interest rate of AnnuityLoanResult.
+     *         Double.NEGATIVE_INFINITY if the loan is free of charge.
+     */
+    public double effectiveRateLowerBound() throws FreeLoanException {
+
+        preprocess();
+
+        double principal;
+
+        if (ignoreOrigination) {
+            principal = received;
+        } else {
+            principal = (received + feeDocument) * (100 + feePercentage) / 100;
+
+            principal += feeProcessing;
+        }
+
+        double min_rate = priceStorage[1].getAnnualInterest();
+        double min_fee = priceStorage[1].getPeriodicalFee();
+
+        for (int i = 2; i < priceStorage.length; i++) {
+            min_rate = Math.min(min_rate, priceStorage[i].getAnnualInterest());
+            min_fee = Math.min(min_fee, priceStorage[i].getPeriodicalFee());
+        }
+
+        // The payment of each period of the interest-only loan
+        double coupon = principal * min_rate / (100 * capitalizationFreq) + min_fee;
+
+        if (feePeriodPerc > 0) {
+            coupon += principal * feePeriodPerc / 100;
+        }
+
+        boolean payment_mode = numberOfPeriods != null && (firstPayment == null || firstPayment == 0);
+
+        double k;
 
-        // First suggestion: The array 'priceStorage' is a parameter to the function
-        double k = 1 / (1 + priceStorage[1].getAnnualInterest() / rate_divisor);
+        if (!payment_mode) {
 
-        // Counts the number of iterations
-        int rounds = 0;
+            if (coupon <= 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
 
-        // The present value
-        double PV = 0;
+            k = 1 / (1 + coupon / received);
 
-        // the differiented of the present value
-        double PV_dif = 0;
+        } else {
 
-        // The peridoical payment in the annuity loan, included fees
-        double payment;
+            // The last payment of the real loan is made in the last, possibly broken, period
+            double n = Math.ceil(numberOfPeriods / (double) periodsPerYear * capitalizationFreq);
 
-        // 'y' is the function value that we want to make close to '0'. Givaen av value so we can enter the
-        // 'while'-loop.
-        double y = 1;
+            if (coupon * n + principal <= received) {
+                return Double.NEGATIVE_INFINITY;
+            }
 
-        // The number of payments from the start of the loan period until the interval starts
-        double interval_start;
+            if (coupon <= 0) {
+                k = Math.pow(received / principal, 1 / n);
+            } else {
+                k = 1 / (1 + coupon / received);
 
-        // The number of payments from the start of the loan period until the interval ends
-        double interval_end;
+                for (int round = 0; round < 50; round++) {
 
-        // Annuities paid at the beginning of each period - annuity-due
-        if (annuityDue)
+                    double power = Math.pow(k, n);
+                    double one_minus_k = 1 - k;
 
-        {
+                    double PV = coupon * k * (1 - power) / one_minus_k + principal * power;
+                    double PV_dif = coupon * (1 - (n + 1) * power + n * power * k) / (one_minus_k * one_minus_k)
+                            + principal * n * power / k;
 
-            // Here, we set the accuracy we want.
-            while (Math.abs(y) > 0.000001 && rounds < 100) {
+                    double y = PV - received;
 
-                // The present value of the payments
-                PV = 0;
+                    if (y < 0.000001 || PV_dif <= 0) {
+                        break;
+                    }
 
-                // The differentiated of the present value
-                PV_dif = 0;
+                    k -= y / PV_dif;
+                }
+            }
+        }
 
-                interval_start = 0;
-                interval_end = 0;
+        return (Math.pow(k, -capitalizationFreq) - 1) * 100;
+    }
 
-                /*
-                 * Now, we compute the present value 'PV' and the corresponding differetiated 'PV_dif' for each interval
-                 * of the loan, given the current guess for the discount factor 'k.
-                 * 
-                 * In the case where the loan runse with different interest rates in succeeding intervals, we sum the
-                 * present value for each. We also sum their differentiated values.
-                 */
 
-                for (i = highest_segment; i > 0; i--) {
 
-                    /*
-                     * In order to compute the effective interest rate, we must compare all we pay with all we receive.
-                     * Hence, we must include eventual fees in the periodic payments. The fee is in
-                     * 'interval_data[i].getPeriodicFee()':
-                     */
+    /**
+     * <p>
+     * <b>SENSITIVITY OF THE EFFECTIVE INTEREST RATE</b>
+     * </p>
+     * 
+     * <p>
+     * The derivatives of the effective interest rate with respect to the nominal rate, the fees, the amount received
+     * and the loan time. They are found by implicit differentiation around the solution of annuityLoan(), so the
+     * effective interest rate is computed only once.
+     * </p>
+     * 
+     * <p>
+     * The effective rate solves PV(k, x) - received = 0, where 'x' is any of the inputs. The derivative of 'k' with
+     * respect to 'x' is then:
+     * </p>
+     * 
+     * <p>
+     * dk/dx = -(dPV/dx - dreceived/dx) / PV_dif
+     * </p>
+     * 
+     * <p>
+     * 'PV_dif' is the same differentiated present value as in the iterations of annuityLoan(). Since er =
+     * ((1/k)^capitalizationFreq - 1) * 100, the derivative of the effective rate is:
+     * </p>
+     * 
+     * <p>
+     * der/dx = -100 * capitalizationFreq * Math.pow(k, -capitalizationFreq - 1) * dk/dx
+     * </p>
+     * 
+     * <p>
+     * dPV/dx is found by differentiating the annuity of each interval. The number of terms in each interval are
+     * integers and kept as they are, and the rounding of the payments is disregarded. The derivatives are thus those of
+     * the loan as it would be without rounding, for changes too small to move a payment from one interval to the next.
+     * </p>
+     * 
+     * <p>
+     * Only payment mode is supported, and not loans with separate, concurrent interest rate segments
+     * ('rateSegments' == true).
+     * </p>
+     */
+    public AnnuityLoanSensitivity annuityLoanSensitivity() throws FreeLoanException {
 
-                    AnnuityLoanPeriod curIntervalData = interval_data[i];
+        if (rateSegments || (firstPayment != null && firstPayment != 0)) {
+            throw new FreeLoanException(FreeLoanExceptionType.UNSUPPORTED_SENSITIVITY);
+        }
 
-                    payment = curIntervalData.getPayment() + curIntervalData.getPeriodicFee();
+        AnnuitySchedule schedule = annuitySchedule();
+        AnnuityLoanResult result = annuityLoan(schedule, Double.NaN);
 
-                    // The end of the former interval is the start of this
-                    interval_start = interval_end;
+        AnnuityLoanPeriod[] interval_data = schedule.getIntervals();
+        double[] interval_rates = schedule.getRates();
+        double[] interval_periods = schedule.getPeriodsRemaining();
+        int first_installment = schedule.getFirstInstallmentInterval();
+        int rate_divisor = schedule.getRateDivisor();
+        double principal = schedule.getPrincipal();
 
-                    // The upper limit of this interval
-                    interval_end += curIntervalData.getNumberOfTerms();
+        // The solution of annuityLoan()
+        double k = Math.pow(1 + result.getEffectiveInterestRate() / 100, -1.0 / capitalizationFreq);
 
-                    PV += payment / (1 - k) * (Math.pow(k, interval_start) - Math.pow(k, interval_end));
+        double log_k = Math.log(k);
 
-                    /*
-                     * The sum of the differentiated of two functions is the sum of the difrentiated. Hence, we simply
-                     * sum the differentiated in each interval
-                     */
+        // The differentiated present value with respect to 'k', as in annuityLoan()
+        double PV_dif = 0;
 
-                    PV_dif += (payment / Math.pow(1 - k, 2))
-                            * (Math.pow(k, interval_start) - Math.pow(k, interval_end))
-                            + (payment / (1 - k))
-                            * (interval_start * Math.pow(k, interval_start - 1) - interval_end
-                                    * Math.pow(k, interval_end - 1));
+        // The derivatives of the present value with respect to the nominal rate, principal, periodic fee and periods
+        double PV_rate = 0;
+        double PV_principal = 0;
+        double PV_fee = 0;
+        double PV_periods = 0;
 
-                }
+        /*
+         * The principal at the start of an interval where the interest rate changes is the remaining principal at the
+         * end of the interval before. So it depends on the inputs too. These are its derivatives, for the first
+         * interval with installments, where it is the principal itself:
+         */
+        double upper_principal = 1;
+        double upper_rate = 0;
+        double upper_periods = 0;
 
-                /*
-                 * One payment - the residue - is so far missing. We add the present value of the residue to the present
-                 * value of the other payments. If it is paid in the last period, it must be discounted to find the
-                 * present value. The residue is already rounded. In annuity-due (annuities in advance) the last payment
-                 * is in period 'calculation_periods-1':
-                 */
+        double interval_start;
+        double interval_end = 0;
+
+        // The discount factors at the start and the end of the interval
+        double k_start;
+        double k_end = 1;
+
+        // The exponent of 'k_end'
+        double exponent_end = 0;
+
+        for (int i = schedule.getHighestSegment(); i > 0; i--) {
+
+            AnnuityLoanPeriod curIntervalData = interval_data[i];
+
+            double payment = curIntervalData.getPayment() + curIntervalData.getPeriodicFee();
+
+            interval_start = interval_end;
+            interval_end += curIntervalData.getNumberOfTerms();
+
+            // The exponents of the first and the last payment in the interval, plus one
+            double exponent_start = annuityDue ? interval_start : interval_start + 1;
+            exponent_end = annuityDue ? interval_end : interval_end + 1;
+
+            k_start = Math.pow(k, exponent_start);
+            k_end = Math.pow(k, exponent_end);
+
+            // The present value of one currency unit paid each period of the interval, and its derivative
+            double factor = (k_start - k_end) / (1 - k);
+            double factor_dif = factor / (1 - k) + (exponent_start * k_start - exponent_end * k_end) / k / (1 - k);
 
-                PV += residue * Math.pow(k, calculation_periods - 1);
+            PV_dif += payment * factor_dif;
+            PV_fee += factor;
+
+            // The derivatives of the periodic payment
+            double payment_rate;
+            double payment_principal;
+            double payment_periods;
+
+            if (i > first_installment) {
+
+                // Interest-only: The principal times the rate. The percentage fee is added as in annuitySchedule():
+                payment_rate = principal / rate_divisor;
+                payment_principal = interval_rates[i] / rate_divisor + (feePercentage > 0 ? feePeriodPerc / 100 : 0);
+                payment_periods = 0;
+
+            } else {
 
                 /*
-                 * We also want to add the differentiated of the residue to the differiented of the other payments.
+                 * With g = 1 + periodic rate and 'n' periods remaining, the annuity per currency unit of principal is
                  * 
-                 * The residue is a function of 'k', and we use the Power rule
-                 * (http://en.wikipedia.org/wiki/Power_rule):
+                 * alpha = (g - 1) / (1 - g^-n)
                  * 
-                 * y = x^n => y' = n*x^(n-1):
+                 * for annuity-immediate, and alpha / g for annuity-due. After 'm' terms, the remaining part of the
+                 * principal is the same for both:
                  * 
-                 * PV_res = residue*Math.pow(k,calculation_periods-1) => PV_res_dif =
-                 * residue*(calculation_periods-1)*Math.pow(k, calculation_periods-2);
+                 * lambda = (1 - g^(m-n)) / (1 - g^-n)
                  */
 
-                PV_dif += residue * (calculation_periods - 1) * Math.pow(k, calculation_periods - 2);
+                double g = 1 + interval_rates[i] / rate_divisor;
+                double log_g = Math.log(g);
+                double n = interval_periods[i];
+                double m = curIntervalData.getNumberOfTerms();
+                double upper = curIntervalData.getUpperSegmentLimit();
 
-                // Searching for a 'k' making y = 0. Since 'received' is a constant y' = PV'
-                y = PV - received;
+                double g_n = Math.pow(g, -n);
+                double g_mn = Math.pow(g, m - n);
+                double D = 1 - g_n;
 
-                // The increase in 'k' necessary at the tangent's intersection with the PV-axis
-                double delta = -y / PV_dif;
+                double alpha = (g - 1) / D;
+                double alpha_g = (D - (g - 1) * n * g_n / g) / (D * D);
+                double alpha_n = -(g - 1) * g_n * log_g / (D * D);
 
-                // We increase/decrease 'k' (the annuity function crashes at k=1)
-                if (k + delta != 1) {
-                    k += delta;
+                if (annuityDue) {
+                    alpha_g = alpha_g / g - alpha / (g * g);
+                    alpha_n = alpha_n / g;
+                    alpha = alpha / g;
                 }
 
-                rounds++;
+                double lambda = (1 - g_mn) / D;
+                double lambda_g = (-(m - n) * g_mn / g * D - (1 - g_mn) * n * g_n / g) / (D * D);
+                double lambda_n = (g_mn * log_g * D - (1 - g_mn) * g_n * log_g) / (D * D);
 
-            }
+                // A change in the rate also changes the interest on an eventual balloon
+                payment_rate = upper_rate * alpha + upper * alpha_g / rate_divisor + balloon / rate_divisor;
+                payment_principal = upper_principal * alpha + (feePeriodPerc > 0 ? feePeriodPerc / 100 : 0);
+                payment_periods = upper_periods * alpha + upper * alpha_n;
 
-         // Annuities paid at the end of each period - annuity-immediate - "normal" annuities.
-        } else {
-            // Here, we set the accuracy we are looking at.
-            while (Math.abs(y) > 0.000001 && rounds < 100) {
-                // The present value of the payments
-                PV = 0;
+                upper_rate = upper_rate * lambda + upper * lambda_g / rate_divisor;
+                upper_principal = upper_principal * lambda;
+                upper_periods = upper_periods * lambda + upper * lambda_n;
 
-                // The differentiated of the present value
-                PV_dif = 0;
+            }
 
-                interval_start = 0;
-                interval_end = 0;
+            PV_rate += payment_rate * factor;
+            PV_principal += payment_principal * factor;
+            PV_periods += payment_periods * factor;
 
-                /*
-                 * Now, we compute the present value 'PV' and the corresponding differetiated 'PV_dif' for each interval
-                 * of the loan, given the current guess for the discount factor 'k.
-                 * 
-                 * In the case where the loan runse with different interest rates in succeeding intervals, we sum the
-                 * present value for each. We also sum their differentiated values.
-                 */
+        }
 
-                for (i = highest_segment; i > 0; i--) {
+        // A longer loan time prolongs the last interval, and postpones the residue
+        AnnuityLoanPeriod intervalDataFirst = interval_data[1];
 
-                    AnnuityLoanPeriod curIntervalData = interval_data[i];
+        PV_periods -= (intervalDataFirst.getPayment() + intervalDataFirst.getPeriodicFee()) * k_end * log_k / (1 - k);
 
-                    /*
-                     * In order to compute the effective interes rate, we must compare all we pay with all we receive.
-                     * Hence, we must include eventual fees in the periodic payments. The fee is in
-                     * 'interval_data[i].getPeriodicFee()':
-                     */
+        double residue_time = annuityDue ? schedule.getCalculationPeriods() - 1 : schedule.getCalculationPeriods();
 
-                    payment = curIntervalData.getPayment() + curIntervalData.getPeriodicFee();
+        PV_dif += schedule.getResidue() * residue_time * Math.pow(k, residue_time - 1);
+        PV_periods += schedule.getResidue() * Math.pow(k, residue_time) * log_k;
 
-                    // The end of the former interval is the start og this
-                    interval_start = interval_end;
+        // The principal as a function of the origination fees and the amount received, see annuitySchedule()
+        double principal_fee = ignoreOrigination ? 0 : 1;
+        double principal_received = ignoreOrigination ? 1 : (100 + feePercentage) / 100;
 
-                    // The upper limit of this interval
-                    interval_end += curIntervalData.getNumberOfTerms();
+        // The derivative of the effective rate with respect to 'k', divided by -PV_dif
+        double er_k = 100 * capitalizationFreq * Math.pow(k, -capitalizationFreq - 1) / PV_dif;
 
-                    PV += payment / (1 - k) * (Math.pow(k, interval_start + 1) - Math.pow(k, interval_end + 1));
+        AnnuityLoanSensitivity res = new AnnuityLoanSensitivity();
+        res.setEffectiveInterestRate(result.getEffectiveInterestRate());
+        res.setRateDerivative(er_k * PV_rate);
+        res.setFeeDerivative(er_k * PV_principal * principal_fee);
+        res.setPeriodicFeeDerivative(er_k * PV_fee);
+        res.setReceivedDerivative(er_k * (PV_principal * principal_received - 1));
+        res.setPeriodsDerivative(er_k * PV_periods * capitalizationFreq / periodsPerYear);
 
-                    /*
-                     * The sum of the differentiated of two functions is the sum of the difrentiated. Hence, we simply
-                     * sum the differentiated in each interval
-                     */
+        return res;
 
-                    PV_dif += (payment / Math.pow(1 - k, 2))
-                            * (Math.pow(k, interval_start + 1) - Math.pow(k, interval_end + 1))
-                            + (payment / (1 - k))
-                            * ((interval_start + 1) * Math.pow(k, interval_start) - (interval_end + 1)
-                                    * Math.pow(k, interval_end));
+    }
 
-                }
+    
+    
+    /**
+     * <p>
+     * An engine computing the payments and the costs of this loan as a floating rate loan for many interest rate paths.
+     * The data that are the same for all paths - principal, number of periods, segments and fees - are prepared here,
+     * once. See RateScenarioEngine.
+     * </p>
+     * 
+     * <p>
+     * Only payment mode is supported. The rates of the price list are the base rates the paths are applied to.
+     * </p>
+     * 
+     * @param serial
+     *            false: Annuity loan. true: Serial loan
+     */
+    public RateScenarioEngine rateScenarioEngine(boolean serial) throws FreeLoanException {
 
-                /*
-                 * One payment - the residue - is so far missing. We add the present value of the residue to the present
-                 * value of the other paymen. If it is paid in the last period, it must be discounted to find the
-                 * present value.
-                 * 
-                 * The residue was rounded when we computed it earlier:
-                 */
-                PV += residue * Math.pow(k, calculation_periods);
+        preprocess();
 
-                /*
-                 * We also want to add the differentiated of the residue to the differiented of the other payments.
-                 * 
-                 * The residue is a function of 'k', and we use the Power rule
-                 * (http://en.wikipedia.org/wiki/Power_rule):
-                 * 
-                 * y = x^n => y' = n*x^(n-1):
-                 * 
-                 * PV_res = residue*Math.pow(k,calculation_periods) => PV_res_dif =
-                 * residue*calculation_periods*Math.pow(k, calculation_periods-1);
-                 */
-                PV_dif += residue * calculation_periods * Math.pow(k, calculation_periods - 1);
+        if (numberOfPeriods == null) {
+            throw new FreeLoanException("numberOfPeriods");
+        }
 
-                // Searching for a 'k' making y = 0. Since 'received' is a constant y' = PV'
-                y = PV - received;
+        double principal;
 
-                // The increase in 'k' necessary at the tangent's intersection with the PV-axis
-                double delta = -y / PV_dif;
+        if (ignoreOrigination) {
+            principal = received;
+        } else {
+            // What the user receives plus fees
+            principal = (received + feeDocument) * (100 + feePercentage) / 100;
 
-                // We increase/decrease 'k' (the annuity function crashes at k=1)
-                if (k + delta != 1) {
-                    k += delta;
-                }
+            principal += feeProcessing;
+        }
 
-                rounds++;
+        if (balloon > principal) {
+            throw new FreeLoanException(FreeLoanExceptionType.BALLOON_TOO_SMALL);
+        }
 
-            }
+        int calculation_periods = (int) Math.ceil(numberOfPeriods / (double) periodsPerYear * capitalizationFreq);
+        int installment_grace_periods = (int) Math.ceil(interestonlyPeriods / (double) periodsPerYear * capitalizationFreq);
 
+        if (calculation_periods > maxCalculationPeriods) {
+            throw new FreeLoanException(FreeLoanExceptionType.TOO_MANY_PERIODS);
         }
 
-        /*
-         * 'k' is a discouting factor that was defined as k = 1/(1+e) where 'e' is the periodic, effective interest rate
-         * as decimal fraction. (1+e) is the growth rate for each period. Hence, the growth rate for a year is (1+e)^12
-         * (if there are 12 capitalizations per year). The effective, annual interest rate in decimal fraction, thus, is
-         * ((1+e)^12)-1. In percentage: er = (((1+e)^12)-1)*100. Since k = 1/(1+e) => (1+e) = 1/k, we substiute and get
-         * er = ((1/k)^12-1)*100:
-         */
+        int num_segm = priceStorage.length - 1;
 
-        // 'er' is the effective annual interest rate - the principal result of the function
-        double er = (Math.pow(1 / k, capitalizationFreq) - 1) * 100;
-        
-        
-        // This should not happen, but it does in the JS version if input data is wierd. So we
-        // throw an exception to avoid problems later on.
-        if(Double.isNaN(er)) {
-            throw new FreeLoanException(FreeLoanExceptionType.EFFECTIVE_RATE_WAS_NAN);
-        }
-        
+        double[] lower_limits = new double[num_segm + 1];
+        double[] upper_limits = new double[num_segm + 1];
+        double[] rates = new double[num_segm + 1];
+        double[] periodical_fees = new double[num_segm + 1];
 
-        
-        /*
-         * 
-         * 7) RESULT REPORTING
-         * 
-         * 
-         * The function primarily computes the effective interest rate. But as a bi-product, several other avalues were
-         * computed along the way. These could come handy during the result presentation - for instance the length of
-         * the intervals, the fees, the balloon.
-         */
-        AnnuityLoanResult res = new AnnuityLoanResult();
-        res.setEffectiveInterestRate(er);
-        res.setResidue(residue);
-        res.setRounds(rounds);
-        res.setPeriods(interval_data);
-        
-        /* Normally, we pay more the last periods when there is an inital interest only-period. But when the borrower has specified that he is able
-        to pay only a maximum sum - 'firstpayment' - per month, we have to prolong the payment period instead: */
-        
-        
-        // contains the number of payback periods.
-        double paybackPeriodCount = 0; 
-        
-        if (rateThresholds && firstPayment != null && firstPayment > 0) {
-            
-            // Where there are several intervals, we sum them up
-            for (i=1;i<interval_data.length;i++) {
-                paybackPeriodCount += interval_data[i].getNumberOfTerms();
-            }
-            
-            paybackPeriodCount += installment_grace_periods;
-            
-        // The payback period in number of payments
-        } else {
-            paybackPeriodCount = interval_data[1].getNumberOfTerms() + installment_grace_periods;  
+        for (int i = 1; i <= num_segm; i++) {
+            lower_limits[i] = priceStorage[i].getLowerLimit();
+            upper_limits[i] = priceStorage[i].getUpperLimit();
+            rates[i] = priceStorage[i].getAnnualInterest();
+            periodical_fees[i] = priceStorage[i].getPeriodicalFee();
         }
 
-        res.setPaybackPeriodCount(paybackPeriodCount);
-        
-        
-        return res;
+        // Identifying the lowest segment that contains the upper loan amount limit, as in serialLoan(). A principal on
+        // the lower limit of a segment is in the segment below - the same comparison as the engine uses for the
+        // remaining principal later.
+        while (num_segm > 1 && principal <= priceStorage[num_segm].getLowerLimit()) {
+            num_segm--;
+        }
 
+        return new RateScenarioEngine(serial, received, principal, balloon, calculation_periods,
+                installment_grace_periods, capitalizationFreq, annuityDue, rateThresholds, rateSegments,
+                lower_limits, upper_limits, rates, periodical_fees, num_segm, principal * feePeriodPerc / 100,
+                roundingPolicy);
     }
 
     
@@ -2039,7 +2581,22 @@ public class FreeLoan {
      * </p>
      */
     public SerialLoanResult serialLoan() throws FreeLoanException {
+        return serialLoan(null);
+    }
+
+    /**
+     * <p>
+     * serialLoan(), with the periods written to 'sink' as they are computed instead of returned in the result - for
+     * exporting the payment plans of many loans without keeping a SerialLoanPeriod object per period. The periods of
+     * the result are null.
+     * </p>
+     * 
+     * @param sink
+     *            null: The periods are returned in the result, as by serialLoan()
+     */
+    public SerialLoanResult serialLoan(ScheduleSink sink) throws FreeLoanException {
 
+        checkDeadline();
         
         preprocess();
         
@@ -2151,6 +2708,11 @@ public class FreeLoan {
 
         double calculation_periods = Math.ceil(termnumber / periodsPerYear * capitalizationFreq);
 
+        // The arrays below hold every period, so the length of the loan is checked before they are made
+        if (calculation_periods > maxCalculationPeriods) {
+            throw new FreeLoanException(FreeLoanExceptionType.TOO_MANY_PERIODS);
+        }
+
         // The number of intial interest-only periods (where no installments are paid):
 
         double installment_grace_periods = interestonlyPeriods / (double) periodsPerYear * capitalizationFreq;
@@ -2184,18 +2746,16 @@ public class FreeLoan {
          * In a serial loan, the installment is the same for all payments: The principal divided on the number of
          * payment periods.
          * 
-         * We store the values in the intermediate array 'per_pay' (for "periodical payment"). Further down, 'per_pay'
-         * is used for the computation of effective interest rate.
+         * We store the payments in the intermediate array 'pay_per' (for "periodical payment"). Further down, 'pay_per'
+         * is used for the computation of effective interest rate. For period 'i':
          * 
-         * The content of 'per_pay' for period 'i' is:
+         * int_fixed -> The interest amount for the part of the loan for which installments are NOT paid in this period
          * 
-         * pay_per[i][0] -> The interest amount for the part of the loan for which installments are NOT paid in this
-         * period
+         * int_segm -> The interest amount for the part of the loan for which installments are paid in this period
          * 
-         * pay_per[i][1] -> The interest amount for the part of the loan for which installments are paid in this
-         * period
+         * pay_per[i] -> The whole payment for this period, included installment and fees.
          * 
-         * pay_per[i][2] -> The whole payment for this period, included installment and fees.
+         * Only the payment is needed after the period is computed, so one number is stored per period.
          * 
          * 
          * Some of the computed data will be stored in sub-res, whick is part of result reporting:
@@ -2204,7 +2764,7 @@ public class FreeLoan {
          * FOR RESULTREPORTING
          * 
          * When we must compute all payments anyway, we might as well return them in the function result, so that they
-         * could be used for instance for a graph.
+         * could be used for instance for a graph. Or they are written to 'sink' as they are computed, and not kept.
          * 
          * We want to return the whole period payment and specify the installment part and the fee part
          * 
@@ -2229,15 +2789,6 @@ public class FreeLoan {
 
         double rem_princ = principal;
 
-        int pres = 0;
-
-        // Divisor indicating the requested presicion when rounding..
-        if (!roundToInteger) {
-            pres = 100;
-        } else {
-            pres = 1;
-        }
-
         /*
          * COMPUTING IN ADVANCE NUMBERS THAT ARE USED OFTEN: If the loan is concurrently running with different interes
          * rates in different segments, all installments are still subtracted only from the uppermost, remaining
@@ -2319,11 +2870,20 @@ public class FreeLoan {
             }
         }
 
-        // Two dimentional array where we store the periodical paymenst. See definition above.
-        double[][] pay_per = new double[(int) Math.round(calculation_periods) + 1][3];
+        // The periodical payments. See definition above.
+        double[] pay_per = new double[(int) Math.round(calculation_periods) + 1];
+
+        // Array for certain parts of the result. See definition above. Not used when the periods go to 'sink' or are
+        // encoded as runs.
+        SerialLoanPeriod[] sub_res = sink == null && !encodeSchedule
+                ? new SerialLoanPeriod[(int) Math.round(calculation_periods) + 1] : null;
 
-        // Two dimentional array for certain parts of the result. See definition above.
-        SerialLoanPeriod[] sub_res = new SerialLoanPeriod[(int) Math.round(calculation_periods) + 1];
+        // The periods as runs, when 'encodeSchedule' is set
+        SerialSchedule schedule = encodeSchedule ? new SerialSchedule(roundingPolicy) : null;
+
+        // The interest amounts for the parts of the loan for which installments are NOT / ARE paid in this period
+        double int_fixed;
+        double int_segm;
 
         // What currently remains of the principal in the segment
         double rem_segm = 0;
@@ -2359,17 +2919,26 @@ public class FreeLoan {
         // We traverse the whole loan, period by period:
         for (int i = first; i <= calculation_periods; i++) {
 
+            if ((i & (DEADLINE_CHECK_PERIODS - 1)) == 0) {
+                checkDeadline();
+            }
+
             // 1. In what segment are we? We started at the top, and change for each principal limit we pass.
             if (now_segm > 1 && rem_princ < priceStorage[now_segm].getLowerLimit()) {
                 now_segm--;
             }
 
             // 2. Remaining principal in the segment (the part that is payed down in payment 'i'):
+            // The principal of the segments below
+            double floor_segm;
+
             // Remaining principal in this segment
             if (now_segm == 1 || !rateThresholds) {
+                floor_segm = 0;
                 rem_segm = rem_princ;
             } else {
-                rem_segm = rem_princ - priceStorage[now_segm - 1].getUpperLimit();
+                floor_segm = priceStorage[now_segm - 1].getUpperLimit();
+                rem_segm = rem_princ - floor_segm;
             }
 
             // 3. The interest amount for this payment in this segment of the loan:
@@ -2385,7 +2954,7 @@ public class FreeLoan {
                  */
 
                 termren = priceStorage[num_segm].getAnnualInterest() / rate_divisor;
-                pay_per[i][0] = 0;
+                int_fixed = 0;
 
             } else {
 
@@ -2395,15 +2964,15 @@ public class FreeLoan {
 
                 // 4. The interest amount for the part of the loan for which installments are NOT paid in this period:
                 if (now_segm > 1) {
-                    pay_per[i][0] = segm_int_am[now_segm - 1];
+                    int_fixed = segm_int_am[now_segm - 1];
                 } else {
-                    pay_per[i][0] = 0;
+                    int_fixed = 0;
                 }
 
             }
 
             // The interest amount for the part of the loan for which installments ARE paid in this period
-            pay_per[i][1] = rem_segm * termren;
+            int_segm = rem_segm * termren;
 
             /*
              * The total interest amount for this period. In a loan with interest paid in advance, there is no interest
@@ -2413,7 +2982,7 @@ public class FreeLoan {
             if (annuityDue && i == calculation_periods) {
                 int_per = 0;
             } else {
-                int_per = pay_per[i][0] + pay_per[i][1];
+                int_per = int_fixed + int_segm;
             }
 
             /*
@@ -2455,22 +3024,22 @@ public class FreeLoan {
              * 
              * 
              * The periodic payment is rounded according to the rules given as parameters to the object:
-             * 'roundDirection' and 'roundPresision':
+             * 'roundingPolicy':
              */
 
-            // Normal rounding
-            if (roundDirection == Utils.RoundDirection.NORMAL) {
-                pay_per[i][2] = Math.round(paym_per * pres) / (double) pres;
-            } else if (roundDirection == Utils.RoundDirection.UP) {
-                pay_per[i][2] = Math.ceil(paym_per * pres) / pres;
-            } else if (roundDirection == Utils.RoundDirection.DOWN) {
-                pay_per[i][2] = Math.floor(paym_per * pres) / pres;
+            pay_per[i] = roundingPolicy.round(paym_per);
+
+            // The terms of the period, before the principal is paid down. Joined with the run of the previous period
+            // when they are the same.
+            if (schedule != null) {
+                schedule.add(i, rem_princ, floor_segm, termren, int_fixed, !(annuityDue && i == calculation_periods),
+                        i > installment_grace_periods, i > installment_grace_periods ? inst_per : 0, fee_per);
             }
 
             /* The remainder of the periodic payment after rounding is added to / subtracted from the principal: */
 
             // Adjusted installment after rounding.
-            adj_inst = pay_per[i][2] - int_per - fee_per;
+            adj_inst = pay_per[i] - int_per - fee_per;
 
             /*
              * 8. The remaining principal.
@@ -2480,13 +3049,21 @@ public class FreeLoan {
 
             rem_princ -= adj_inst;
 
+            if (sink != null) {
+                sink.period(i, pay_per[i], int_per, adj_inst, fee_per, rem_princ);
+            }
+
+            if (sub_res == null) {
+                continue;
+            }
+
             SerialLoanPeriod curSubRes = new SerialLoanPeriod();
 
             // For result reporting:
             sub_res[i] = curSubRes;
 
             // The whole rounded payment for period 'i', included installment and fees.
-            curSubRes.setPayment(pay_per[i][2]);
+            curSubRes.setPayment(pay_per[i]);
 
             // The installment for peroid 'i'
             curSubRes.setInstallment(adj_inst);
@@ -2505,11 +3082,11 @@ public class FreeLoan {
         double remainder;
 
         if (!ignoreRemainder) {
-            remainder = Math.round((rem_princ + paym_per) * pres) / (double) pres
-                    - pay_per[(int) Math.round(calculation_periods)][2];
+            remainder = roundingPolicy.roundNearest(rem_princ + paym_per)
+                    - pay_per[(int) Math.round(calculation_periods)];
         } else {
-            remainder = Math.round((balloon + paym_per) * pres) / (double) pres
-                    - pay_per[(int) Math.round(calculation_periods)][2];
+            remainder = roundingPolicy.roundNearest(balloon + paym_per)
+                    - pay_per[(int) Math.round(calculation_periods)];
         }
 
         /*
@@ -2561,17 +3138,17 @@ public class FreeLoan {
         // The other point where the secant crosses the graph, 'g', that is one millionth smaller than 'k'
         double g = k - k / 1000000;
 
-        // The present value of the periodic payments, discounted with the best guess 'k'
-        double NV_round;
-
-        // The present value of the periodic payments, discounted with the marginally smaller 'g'
-        double NV_round_alt;
+        /*
+         * The rounded periodic payments and the remainder, paid with the last payment. Equal payments in a row - the
+         * interest-only periods, or a loan without interest - are joined into runs that are discounted in one step:
+         */
+        CashflowIrr cashflows = new CashflowIrr();
 
-        // The present value of the remainder, discounted with the best guess 'k'
-        double NV_rem;
+        for (int i = first; i <= calculation_periods; i++) {
+            cashflows.add(i, pay_per[i]);
+        }
 
-        // The present value of the remainder, discounted with the marginally smaller 'g'
-        double NV_rem_alt;
+        cashflows.add(calculation_periods, remainder);
 
         // 'y' is the present value of all payments minus the initial principal
         double y;
@@ -2596,7 +3173,10 @@ public class FreeLoan {
          */
         double comp;
 
-        if (accuracy == Utils.Accuracy.FAST) {
+        if (maxRateError != null) {
+            // The step in 'k' decides when to stop
+            comp = 0;
+        } else if (accuracy == Utils.Accuracy.FAST) {
             comp = Math.round(principal / 5000);
         } else if (accuracy == Utils.Accuracy.NORMAL) {
             comp = principal / 50000000;
@@ -2610,43 +3190,20 @@ public class FreeLoan {
         // 4-5 iterations are normally enough - we limit it at 100.
         while (Math.abs(y) > comp && rounds < 100) {
 
-            // Present values are computed again in each iteration:
-            NV_round = 0;
-            NV_round_alt = 0;
-            NV_rem = 0;
-            NV_rem_alt = 0;
-
-            // We traverse the array with all the periodic payments and compute the present value:
-            for (int i = first; i <= calculation_periods; i++) {
-
-                // The present value of the rounded periodic payment with discount factor 'k', our principal guess:
-
-                NV_round += pay_per[i][2] * Math.pow(k, i);
-
-                // The present value of the rounded periodic payment with alternative discount factor 'g':
-
-                NV_round_alt += pay_per[i][2] * Math.pow(g, i);
-
-            }
-
-            // Computing the present value of the remainder:
-
-            NV_rem = remainder * Math.pow(k, calculation_periods);
-
-            // Computing the present value of the remainder with alternative discount factor:
-
-            NV_rem_alt = remainder * Math.pow(g, calculation_periods);
+            checkDeadline();
 
             /*
              * We try to make 'y' - the differenve between the present value of all payments minus the initial principal
-             * as close to zero as possible:
+             * as close to zero as possible. The present value of the rounded periodic payments and the remainder with
+             * discount factor 'k', our principal guess:
              */
 
-            y = NV_round + NV_rem - received;
+            y = cashflows.presentValue(k) - received;
 
-            // A value close to 'y', being one of the coordinates for the second slice point of the secant:
+            // A value close to 'y', being one of the coordinates for the second slice point of the secant, with the
+            // alternative discount factor 'g':
 
-            z = NV_round_alt + NV_rem_alt - received;
+            z = cashflows.presentValue(g) - received;
 
             // The gradient for a line (the secant) running through the two function points
             grad = (z - y) / (g - k);
@@ -2662,6 +3219,11 @@ public class FreeLoan {
 
             rounds++;
 
+            if (maxRateError != null
+                    && Math.abs(inc) <= Utils.discountFactorTolerance(maxRateError, k, capitalizationFreq)) {
+                break;
+            }
+
         }
 
         /*
@@ -2683,7 +3245,14 @@ public class FreeLoan {
          */
 
         // Effective annual interest rate in percent
-        double er = (Math.pow(1 / k, capitalizationFreq) - 1) * 100;
+        double er = (DiscountPowers.power(1 / k, capitalizationFreq) - 1) * 100;
+
+        // With a start date, the payments are discounted by the time to their dates instead, from 'er'
+        if (startDate != null) {
+            DatedCashflows flows = datedCashflows();
+            flows.addAll(cashflows);
+            er = flows.effectiveRate(received, er, maxRateError, deadline);
+        }
 
         SerialLoanResult res = new SerialLoanResult();
 
@@ -2692,8 +3261,10 @@ public class FreeLoan {
 
         res.setRemainder(remainder);
         res.setRounds(rounds);
+        res.setCatalogueVersion(catalogueVersion);
 
         res.setPeriods(sub_res);
+        res.setSchedule(schedule);
         res.setPaybackPeriodCount(termnumber);
 
         return res;
@@ -2777,16 +3348,60 @@ public class FreeLoan {
      * <p>Default: NORMAL</p>
      */
     public void setRoundDirection(Utils.RoundDirection round_direction) {
-        this.roundDirection = round_direction;
+        this.roundingPolicy = roundingPolicy.withDirection(round_direction);
     }
 
     /**
-     * @param roundToInteger <b>false:</b> Payment rounded to nearest 1/100 <b>true:</b> ..rounded to nearest integer
+     * @param roundToInteger <b>false:</b> Payment rounded to the minor unit of the currency of the rounding policy,
+     * 1/100 by default <b>true:</b> ..rounded to nearest integer
      * 
      * <p>Default: false</p>
      */
     public void setRoundToInteger(boolean roundToInteger) {
-        this.roundToInteger = roundToInteger;
+        this.roundingPolicy = roundToInteger ? roundingPolicy.withDecimals(0) : roundingPolicy.withCurrencyDecimals();
+    }
+
+    /**
+     * @param roundingPolicy How the payments are rounded, e.g. RoundingPolicy.forCurrency("SEK") or a policy with cash
+     * rounding to 0.05. Replaces what setRoundDirection() and setRoundToInteger() have set. All amounts, fees
+     * included, are in the currency of the policy.
+     * 
+     * <p>Default: RoundingPolicy.DEFAULT - two decimals, normal rounding</p>
+     */
+    public void setRoundingPolicy(RoundingPolicy roundingPolicy) {
+        this.roundingPolicy = roundingPolicy;
+    }
+
+    /**
+     * @param startDate The day the loan is paid out, as an epoch day - EpochDays.of(year, month, day). The payments
+     * then fall on the same day of the following months (or the last day of a shorter month), and the effective rate
+     * discounts each payment by the time to its date, measured by 'dayCount', as regulatory APR calculations do.
+     * <b>null:</b> All periods are equally long.
+     * 
+     * <p>Default: null</p>
+     */
+    public void setStartDate(Integer startDate) {
+        this.startDate = startDate;
+    }
+
+    /**
+     * @param dayCount How the time to the payment dates is measured when a start date is set
+     * 
+     * <p>Default: ACT_365</p>
+     */
+    public void setDayCount(DayCount dayCount) {
+        this.dayCount = dayCount;
+    }
+
+    /**
+     * @param encodeSchedule <b>true:</b> serialLoan() returns the payment plan as a SerialSchedule in the result - a run
+     * of periods per segment - and the periods of the result are null. SerialSchedule.expand() makes the periods when
+     * they are needed. <b>false:</b> One SerialLoanPeriod per period.
+     * 
+     * <p>Default: false</p>
+     */
+    public void setEncodeSchedule(boolean encodeSchedule) {
+        this.encodeSchedule = encodeSchedule;
     }
 
     /**
@@ -2909,7 +3524,7 @@ public class FreeLoan {
     }
     
     /**
-     * Only for serial loans. Does not apply to annuity loans.
+     * Only for serial loans. Does not apply to annuity loans. Not used when 'maxRateError' is set.
      * 
      * @param accuracy
      * <p>Default: NORMAL</p>
@@ -2917,6 +3532,46 @@ public class FreeLoan {
     public void setAccuracy(Utils.Accuracy accuracy) {
         this.accuracy = accuracy;
     }
+
+    /**
+     * The largest error accepted in the effective interest rate, for annuity and serial loans alike. The iterations
+     * stop as soon as the rate is known this accurately - 0.5 is enough when the rate is shown with two decimals.
+     * 
+     * @param maxRateError
+     * <p>In basis points (hundredths of a percentage point). Default: null - fixed tolerances of the present value, and
+     * 'accuracy' for serial loans</p>
+     */
+    public void setMaxRateError(Double maxRateError) {
+        this.maxRateError = maxRateError;
+    }
+
+    /**
+     * Set by CatalogueSnapshot.configureLoan()
+     * 
+     * @param catalogueVersion
+     * <p>The version of the product catalogue the price list was taken from. Default: 0 - not from a catalogue</p>
+     */
+    public void setCatalogueVersion(long catalogueVersion) {
+        this.catalogueVersion = catalogueVersion;
+    }
+
+    /**
+     * @param deadline
+     * <p>Checked between the iterations and every so many periods. The calculation gives up with DEADLINE_EXCEEDED when
+     * it has passed or is cancelled. Default: null - no deadline</p>
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param maxCalculationPeriods
+     * <p>The longest loan accepted, in calculation periods. Longer loans give TOO_MANY_PERIODS. Default:
+     * DEFAULT_MAX_CALCULATION_PERIODS</p>
+     */
+    public void setMaxCalculationPeriods(int maxCalculationPeriods) {
+        this.maxCalculationPeriods = maxCalculationPeriods;
+    }
     
     
 }
\ No newline at end of file
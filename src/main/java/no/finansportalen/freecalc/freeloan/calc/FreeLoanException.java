@@ -41,7 +41,11 @@ public class FreeLoanException extends Exception {
         UNSUPPORTED_COMBINATION_PERIODIC(-9, "The combination of separate, concurrent interest rate segments and user chosen periodic payment is not supported"),
         EFFECTIVE_RATE_WAS_NAN(-10, "After the calculations effective interest rate was NaN"),
         ANNUITY_FALL_BELOW_MIN_PAYMENT(-11, "With the chosen payback time, the annuity will fall below the required minimum payment"),
-        PARAMETER_MISSING(-12, "Parameter missing: ");
+        PARAMETER_MISSING(-12, "Parameter missing: "),
+        UNSUPPORTED_SENSITIVITY(-13, "Sensitivities are only supported in payment mode and without separate, concurrent interest rate segments"),
+        UNSORTED_AMOUNTS(-14, "The loan amounts of a sweep must be sorted in rising order"),
+        DEADLINE_EXCEEDED(-15, "The calculation was cancelled or did not finish before its deadline"),
+        TOO_MANY_PERIODS(-16, "The loan runs for more calculation periods than allowed");
         
         private final String message;
         private final int errNum;
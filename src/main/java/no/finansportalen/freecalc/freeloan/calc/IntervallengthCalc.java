@@ -1,7 +1,8 @@
 package no.finansportalen.freecalc.freeloan.calc;
 
 import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
-import no.finansportalen.freecalc.common.Utils;
+import no.finansportalen.freecalc.common.RoundingPolicy;
+import no.finansportalen.freecalc.common.DiscountPowers;
 import no.finansportalen.freecalc.freeloan.calc.FreeLoanException.FreeLoanExceptionType;
 
 class IntervallengthCalc {
@@ -27,14 +28,9 @@ class IntervallengthCalc {
     private double periods;
 
     /**
-     * NORMAL: Annuities are rounded after normal rules UP: Rounded up DOWN. Rounded down
+     * How the payments are rounded
      */
-    private Utils.RoundDirection roundDirection;
-
-    /**
-     * false: Payment rounded to nearest 1/100 true: Rounded to nearest integer
-     */
-    private boolean roundToInteger;
+    private RoundingPolicy roundingPolicy;
 
     /**
      * Factor the nominal annual rate in percent is divided by to obtain the rate in decimal fraction
@@ -290,6 +286,29 @@ class IntervallengthCalc {
      * </p>
      */
     public AnnuityLoanPeriod calculate() throws FreeLoanException {
+
+        AnnuityLoanPeriod answer = new AnnuityLoanPeriod();
+
+        calculate(answer);
+
+        return answer;
+    }
+
+    /**
+     * <p>
+     * As calculate(), but the answers are set in 'answer' instead of a new object. Only the payment, the number of
+     * terms, the segment limits and the remainder are set - the other fields of 'answer' are left as they are.
+     * </p>
+     * 
+     * <p>
+     * The formulas need k raised to 'periods', to 'periods' + 1, to 'remaintime' (+ 1) and (1 + rate) raised to
+     * 'elapsed'. They all follow from two powers: k^(periods + 1) is k * k^periods, and as 'elapsed' = 'periods' -
+     * 'remaintime', (1 + rate)^elapsed is k^remaintime / k^periods. When 'periods' is a whole number - always, unless
+     * the loan period is not a whole number of calculation periods - so is 'remaintime', which is rounded down, and the
+     * two powers are found by repeated squaring without any Math.pow().
+     * </p>
+     */
+    public void calculate(AnnuityLoanPeriod answer) throws FreeLoanException {
         
         double fullannuity, C, a, remaintime;
 
@@ -300,11 +319,15 @@ class IntervallengthCalc {
             throw new FreeLoanException(FreeLoanExceptionType.FAILING_CONVERGENCE); 
         }
 
+        boolean whole_periods = periods == Math.floor(periods) && Math.abs(periods) < Integer.MAX_VALUE;
+
+        // k raised to 'periods', shared by the annuity and the adjusted principal
+        double power_periods = whole_periods ? DiscountPowers.power(k, (int) periods) : Math.pow(k, periods);
         
         if (advance) {
 
             if (periods != 1) {
-                fullannuity = upperlimit * (1 - k) / (1 - Math.pow(k, periods));
+                fullannuity = upperlimit * (1 - k) / (1 - power_periods);
             } else {
                 // 'periods' = 1 would give divitions with zero
                 throw new FreeLoanException(FreeLoanExceptionType.FAILING_CONVERGENCE);
@@ -312,7 +335,7 @@ class IntervallengthCalc {
         
             // In order to find the correct number of periods, we must use the actually paid - rounded - annuities:
 
-            a = Utils.roundoff(fullannuity, roundDirection, roundToInteger);
+            a = roundingPolicy.round(fullannuity);
 
             C = 1 - (lowerlimit * (1 - k)/a);
 
@@ -321,14 +344,14 @@ class IntervallengthCalc {
         } else {
 
             if (periods != 0) {
-                fullannuity = upperlimit * (1 - k) / (k - Math.pow(k, periods + 1));
+                fullannuity = upperlimit * (1 - k) / (k - k * power_periods);
             } else {
                 throw new FreeLoanException(FreeLoanExceptionType.FAILING_CONVERGENCE);
             }
         
             // In order to find the correct number of periods, we must use the actually paid - rounded - annuities:
 
-            a = Utils.roundoff(fullannuity, roundDirection, roundToInteger);
+            a = roundingPolicy.round(fullannuity);
 
             C = k - (lowerlimit * (1 - k)/a);
 
@@ -378,7 +401,7 @@ class IntervallengthCalc {
          */
 
         // Interest on residual + annuity
-        double fullannuityround = Utils.roundoff(fullannuity + interestAmountRes, roundDirection, roundToInteger);
+        double fullannuityround = roundingPolicy.round(fullannuity + interestAmountRes);
         
         // The rounded payment minus the unrounded interest amount
         double annuity_true = fullannuityround - interestAmountRes;
@@ -409,9 +432,9 @@ class IntervallengthCalc {
         double upperlimit_adjusted;
 
         if (advance) {
-            upperlimit_adjusted = annuity_true * (1 - Math.pow(k, periods)) / (1 - k);
+            upperlimit_adjusted = annuity_true * (1 - power_periods) / (1 - k);
         } else {
-            upperlimit_adjusted = annuity_true * (k - Math.pow(k, periods + 1)) / (1 - k);
+            upperlimit_adjusted = annuity_true * (k - k * power_periods) / (1 - k);
         }
 
         /*
@@ -427,14 +450,23 @@ class IntervallengthCalc {
          * rate-incurred deviation:
          */
 
+        // k raised to 'remaintime', and the growth of the deviation over 'elapsed' periods
+        double power_remaintime, growth;
+
+        if (whole_periods && Math.abs(remaintime) < Integer.MAX_VALUE && power_periods > 0) {
+            power_remaintime = DiscountPowers.power(k, (int) remaintime);
+            growth = power_remaintime / power_periods;
+        } else {
+            power_remaintime = Math.pow(k, remaintime);
+            growth = Math.pow(1 + rate / rateDivisor, elapsed);
+        }
+
         double remainingprincipal;
 
         if (advance) {
-            remainingprincipal = annuity_true * (1 - Math.pow(k, remaintime)) / (1 - k) + deviation
-                    * Math.pow(1 + rate / rateDivisor, elapsed - 1);
+            remainingprincipal = annuity_true * (1 - power_remaintime) / (1 - k) + deviation * growth * k;
         } else {
-            remainingprincipal = annuity_true * (k - Math.pow(k, remaintime + 1)) / (1 - k) + deviation
-                    * Math.pow(1 + rate / rateDivisor, elapsed);
+            remainingprincipal = annuity_true * (k - k * power_remaintime) / (1 - k) + deviation * growth;
         }
 
         /*
@@ -444,7 +476,6 @@ class IntervallengthCalc {
          * 'upperlimit' with that annity. We also wish to keep the new, adjusted value of the "outgoing" principal.
          */
 
-        AnnuityLoanPeriod answer = new AnnuityLoanPeriod();
         answer.setPayment(a);
         
         // The real result of the function - the number of periods it takes to pay down this segment of the loan
@@ -459,8 +490,6 @@ class IntervallengthCalc {
         // Cents/fractions of cents we pay too much or too little at each annuity due to rounding
         answer.setRemainder(remainder);
 
-        return answer;
-
     }
 
     /**
@@ -493,17 +522,10 @@ class IntervallengthCalc {
     }
 
     /**
-     * @param roundDirection NORMAL: Annuities are rounded after normal rules UP: Rounded up DOWN. Rounded down
-     */
-    public void setRoundDirection(Utils.RoundDirection round_direction) {
-        this.roundDirection = round_direction;
-    }
-
-    /**
-     * @param roundToInteger false: Payment rounded to nearest 1/100 true: Rounded to nearest integer
+     * @param roundingPolicy How the payments are rounded
      */
-    public void setRoundToInteger(boolean roundToInteger) {
-        this.roundToInteger = roundToInteger;
+    public void setRoundingPolicy(RoundingPolicy roundingPolicy) {
+        this.roundingPolicy = roundingPolicy;
     }
 
     /**
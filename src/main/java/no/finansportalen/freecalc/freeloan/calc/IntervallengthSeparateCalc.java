@@ -3,7 +3,7 @@ package no.finansportalen.freecalc.freeloan.calc;
 import java.util.ArrayList;
 
 import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
-import no.finansportalen.freecalc.common.Utils;
+import no.finansportalen.freecalc.common.RoundingPolicy;
 
 class IntervallengthSeparateCalc {
 
@@ -13,7 +13,12 @@ class IntervallengthSeparateCalc {
      * 
      * The top / latest / most expensive segment should be the last - the highest seat numbers - i 'segmentarray'.
      */
-    private ArrayList<PriceStorageStepWrapper> segmentarray;
+    private ArrayList<PriceStorageStep> segmentarray;
+
+    /**
+     * Work arrays for the segments, reused from interval to interval. Made here if not set.
+     */
+    private SegmentWorkspace workspace;
 
     /**
      * OBLIGATORY: Index for the segment we are computing the number of payment periods for
@@ -26,14 +31,9 @@ class IntervallengthSeparateCalc {
     private double periodsRemaining;
 
     /**
-     * NORMAL: Annuities are rounded after normal rules UP: Rounded up DOWN: Rounded down
+     * How the payments are rounded
      */
-    private Utils.RoundDirection roundDirection;
-
-    /**
-     * false: Payment rounded to nearest 1/100 true: Rounded to nearest integer
-     */
-    private boolean roundToInteger;
+    private RoundingPolicy roundingPolicy;
 
     /**
      * Factor we divide the annual percentage interest rate by to obtain the periodical decimal fraction rate..
@@ -64,8 +64,8 @@ class IntervallengthSeparateCalc {
      * The installment does not include bank charges, then forward the fee does not affect the principal
      * amount in the accounts.</p>
      * 
-     * <p>Instalments are rounded according to the rules given by the function's parameters 'roundDirection',
-     * 'roundToInteger' and 'rate_divisor'.</p>
+     * <p>Instalments are rounded according to the rules given by the function's parameters 'roundingPolicy'
+     * and 'rate_divisor'.</p>
      * 
      * 
      * 
@@ -100,16 +100,26 @@ class IntervallengthSeparateCalc {
         double segment;
         double weight;
         double weighted_rate = 0;
-        PriceStorageStepWrapper curSegmentStepWrapper = segmentarray.get(step);
-        PriceStorageStep curSegmentStep = curSegmentStepWrapper.getPriceStorageStep();
+        PriceStorageStep curSegmentStep = segmentarray.get(step);
+
+        if (workspace == null) {
+            workspace = new SegmentWorkspace();
+        }
+
+        workspace.ensureCapacity(step + 1);
+
+        double[] tmp_principal = workspace.getTmpPrincipal();
+        double[] tmp_discounting_factor = workspace.getTmpDiscountingFactor();
+        double[] tmp_annuity = workspace.getTmpAnnuity();
+        double[] tmp_log_discounting_factor = workspace.getTmpLogDiscountingFactor();
         
         // Principal in the interval at the start. (Step zero is not used).
-        double start_principal = curSegmentStep.getUpperLimit() - segmentarray.get(1).getPriceStorageStep().getLowerLimit();
+        double start_principal = curSegmentStep.getUpperLimit() - segmentarray.get(1).getLowerLimit();
 
         // We run through all the steps
         for (int i = step; i > 0; i--) {
 
-            PriceStorageStep curSegment = segmentarray.get(i).getPriceStorageStep();
+            PriceStorageStep curSegment = segmentarray.get(i);
 
             segment = curSegment.getUpperLimit() - curSegment.getLowerLimit();
             weight = segment / start_principal;
@@ -126,19 +136,21 @@ class IntervallengthSeparateCalc {
 
         if (step > 1) {
 
-            IntervallengthCalc intervalCalc = new IntervallengthCalc();
+            IntervallengthCalc intervalCalc = workspace.getIntervalCalc();
 
             intervalCalc.setUpperlimit(curSegmentStep.getUpperLimit());
             intervalCalc.setRate(weighted_rate);
             intervalCalc.setLowerlimit(curSegmentStep.getLowerLimit());
             intervalCalc.setPeriods(periodsRemaining);
-            intervalCalc.setRoundDirection(roundDirection);
-            intervalCalc.setRoundToInteger(roundToInteger);
+            intervalCalc.setRoundingPolicy(roundingPolicy);
             intervalCalc.setRateDivisor(rateDivisor);
             intervalCalc.setInterestAmountRes(interestAmountRes);
             intervalCalc.setAdvance(false);
 
-            periods = intervalCalc.calculate().getNumberOfTerms();
+            AnnuityLoanPeriod estimate = workspace.getEstimate();
+            intervalCalc.calculate(estimate);
+
+            periods = estimate.getNumberOfTerms();
         } else {
             periods = periodsRemaining;
         }
@@ -276,25 +288,28 @@ class IntervallengthSeparateCalc {
 
         for (int i = step; i > 0; i--) {
 
-            PriceStorageStepWrapper curSegmentWrapper = segmentarray.get(i);
-            PriceStorageStep curSegment = curSegmentWrapper.getPriceStorageStep();
+            PriceStorageStep curSegment = segmentarray.get(i);
 
             // The principal that is reduced through the installments in segment 'i':
 
-            curSegmentWrapper.setTmpPrincipal(curSegment.getUpperLimit() - curSegment.getLowerLimit());
+            tmp_principal[i] = curSegment.getUpperLimit() - curSegment.getLowerLimit();
 
             // The discounting factor used in the annuity formula (called 'k' in the expression) for segment 'i':
 
-            curSegmentWrapper.setTmpDiscountingFactor(1 / (1 + curSegment.getAnnualInterest() / rateDivisor));
+            tmp_discounting_factor[i] = 1 / (1 + curSegment.getAnnualInterest() / rateDivisor);
+
+            // Its logarithm, used in every iteration below:
+
+            tmp_log_discounting_factor[i] = Math.log(tmp_discounting_factor[i]);
 
             // Annuity in segment 'i':
 
-            curSegmentWrapper.setTmpAnnuity(curSegmentWrapper.getTmpPrincipal() * (1 - curSegmentWrapper.getTmpDiscountingFactor())
-                    / (curSegmentWrapper.getTmpDiscountingFactor() - Math.pow(curSegmentWrapper.getTmpDiscountingFactor(), periodsRemaining + 1)));
+            tmp_annuity[i] = tmp_principal[i] * (1 - tmp_discounting_factor[i])
+                    / (tmp_discounting_factor[i] - Math.pow(tmp_discounting_factor[i], periodsRemaining + 1));
 
             // To be used in result-reporting:
 
-            sum_annuity += curSegmentWrapper.getTmpAnnuity();
+            sum_annuity += tmp_annuity[i];
 
         }
 
@@ -306,7 +321,22 @@ class IntervallengthSeparateCalc {
 
         double remaintime = periodsRemaining - periods;
 
-        /* 'remaintime' is the only unknown variable in the following iterations */
+        /*
+         * 'remaintime' is the only unknown variable in the following iterations.
+         * 
+         * The more periods that remain after the interval, the less is paid down in it: 'sum_installments' falls as
+         * 'remaintime' grows. With no periods remaining, the whole principal of the segments is paid down, which is at
+         * least 'downpaid'. With all periods remaining, nothing is paid down. The answer is thus between 0 and
+         * 'periodsRemaining'. We narrow this bracket for each iteration, and fall back to its midpoint whenever a
+         * Newton step would take us outside of it. Then the iterations cannot run astray, whatever the start guess.
+         */
+
+        double lower_bracket = 0;
+        double upper_bracket = periodsRemaining;
+
+        if (!(remaintime > lower_bracket && remaintime < upper_bracket)) {
+            remaintime = (lower_bracket + upper_bracket) / 2;
+        }
 
         int rounds = 0;
 
@@ -317,19 +347,20 @@ class IntervallengthSeparateCalc {
 
             for (int i = step; i > 0; i--) {
 
-                PriceStorageStepWrapper curSegmentWrapper = segmentarray.get(i);
-
                 // Help variable
                 comptime = remaintime + 1;
                 
                 // The discount factor of segment 'i'
-                k = curSegmentWrapper.getTmpDiscountingFactor();
+                k = tmp_discounting_factor[i];
                 
                 // The principal in segment 'i' at the start of 'periods'
-                double startprincipal = curSegmentWrapper.getTmpPrincipal();
+                double startprincipal = tmp_principal[i];
+                
+                // k raised to 'comptime'
+                double k_power = Math.exp(comptime * tmp_log_discounting_factor[i]);
                 
                 // Remaining principal at the end of 'periods'
-                double endprincipal = curSegmentWrapper.getTmpAnnuity() * (k - Math.pow(k, comptime)) / (1 - k);
+                double endprincipal = tmp_annuity[i] * (k - k_power) / (1 - k);
                 
                 // Installment in the period 'periods' in segment 'i'
                 double period_inst = startprincipal - endprincipal;
@@ -338,7 +369,7 @@ class IntervallengthSeparateCalc {
                 sum_installments += period_inst;
                 
                 // Summing the differentiated
-                angle += curSegmentWrapper.getTmpAnnuity() * Math.pow(k, comptime) * Math.log(k) / (1 - k);
+                angle += tmp_annuity[i] * k_power * tmp_log_discounting_factor[i] / (1 - k);
 
             }
 
@@ -357,7 +388,19 @@ class IntervallengthSeparateCalc {
              * 'diff' closer to zero:
              */
 
-            remaintime += -diff / angle;
+            if (diff > 0) {
+                lower_bracket = remaintime;
+            } else {
+                upper_bracket = remaintime;
+            }
+
+            double next = remaintime - diff / angle;
+
+            if (!(next > lower_bracket && next < upper_bracket)) {
+                next = (lower_bracket + upper_bracket) / 2;
+            }
+
+            remaintime = next;
 
             rounds++;
 
@@ -423,16 +466,14 @@ class IntervallengthSeparateCalc {
 
         for (int i = step - 1; i > 0; i--) {
 
-            PriceStorageStepWrapper curSegmentWrapper = segmentarray.get(i);
-            
             // The segment's annuity
-            segmentannuity = curSegmentWrapper.getTmpAnnuity();
+            segmentannuity = tmp_annuity[i];
             
             // The segments interest rate
-            segmentrate = curSegmentWrapper.getPriceStorageStep().getAnnualInterest() / rateDivisor;
+            segmentrate = segmentarray.get(i).getAnnualInterest() / rateDivisor;
             
             // The segment's initial principal
-            segmentprincipal = curSegmentWrapper.getTmpPrincipal();
+            segmentprincipal = tmp_principal[i];
             
             // The segment's interest amount (for each payment)
             segmentrateamount = segmentprincipal * segmentrate;
@@ -448,31 +489,41 @@ class IntervallengthSeparateCalc {
 
         }
 
-        // Then we transverse all payments, compute the installment on subtract it from the principal of the segment:
+        /*
+         * Then we find what remains of the principal of the segment after the payments of the interval. The rounded
+         * payment and the interest of the other segments are the same in every period, so in each period the
+         * installment is a fixed amount 'fixed_inst' less the interest of the segment itself:
+         * 
+         * partprinc = partprinc * (1 + segmentrate) - fixed_inst
+         * 
+         * After 'n' periods, this recursion gives:
+         * 
+         * partprinc = (partprinc - fixed_inst / segmentrate) * Math.pow(1 + segmentrate, n) + fixed_inst / segmentrate
+         * 
+         * so we need not transverse the payments one by one. 'n' is the number of whole periods in the start guess
+         * 'periods'.
+         */
 
         // This segment's principal (original loan amount)
         double partprinc = curSegmentStep.getUpperLimit() - other_principal;
         
         // The segment annuity plus other segment annuity
-        double intannuity = curSegmentStepWrapper.getTmpAnnuity() + other_annuity;
+        double intannuity = tmp_annuity[step] + other_annuity;
         
         // The segment's forward rate
         segmentrate = curSegmentStep.getAnnualInterest() / rateDivisor;
 
-        for (int j = 1; j <= periods; j++) {
-
-            // The segment's interest amounts
-            segmentrateamount = partprinc * segmentrate;
-            
-            // The step amount of interest
-            double interest_segmentbelop = segmentrateamount + other_rateamount + interestAmountRes;
+        // Customer may pay rounded annuities
+        double fixed_inst = roundingPolicy.round(intannuity + interestAmountRes)
+                - other_rateamount - interestAmountRes;
 
-            double trinnavdrag = Utils.roundoff(intannuity + interestAmountRes, roundDirection, roundToInteger)
-                    - interest_segmentbelop;
-            
-            // Customer may pay rounded annuities
-            partprinc -= trinnavdrag;
+        double payments = periods >= 1 ? Math.floor(periods) : 0;
 
+        if (segmentrate == 0) {
+            partprinc -= fixed_inst * payments;
+        } else {
+            partprinc = (partprinc - fixed_inst / segmentrate) * Math.pow(1 + segmentrate, payments) + fixed_inst
+                    / segmentrate;
         }
 
         // The portion of the principal that was avdratt plus the rest of the chair which was avdratt (which may be negative)
@@ -481,7 +532,7 @@ class IntervallengthSeparateCalc {
         AnnuityLoanPeriod answer = new AnnuityLoanPeriod();
         
         // The annuity rounded according to the current rounding parameters
-        answer.setPayment(Utils.roundoff(sum_annuity, roundDirection, roundToInteger));
+        answer.setPayment(roundingPolicy.round(sum_annuity));
         
         // The main answer feature gives: How many periods it takes to pay off segment 'step'
         answer.setNumberOfTerms(theseperiods);
@@ -507,12 +558,14 @@ class IntervallengthSeparateCalc {
      * The top / latest / most expensive segment should be the last - the highest seat numbers - i 'segmentarray'.
      */
     public void setSegmentarray(ArrayList<PriceStorageStep> segmentarray) {
-        
-        this.segmentarray = new ArrayList<IntervallengthSeparateCalc.PriceStorageStepWrapper>();
-        
-        for(PriceStorageStep step : segmentarray) {
-            this.segmentarray.add(new PriceStorageStepWrapper(step));
-        }
+        this.segmentarray = segmentarray;
+    }
+
+    /**
+     * @param workspace Work arrays for the segments, to be reused from interval to interval
+     */
+    public void setWorkspace(SegmentWorkspace workspace) {
+        this.workspace = workspace;
     }
 
     /**
@@ -530,17 +583,10 @@ class IntervallengthSeparateCalc {
     }
 
     /**
-     * @param round_direction NORMAL: Annuities are rounded after normal rules UP: Rounded up DOWN: Rounded down
-     */
-    public void setRoundDirection(Utils.RoundDirection round_direction) {
-        this.roundDirection = round_direction;
-    }
-
-    /**
-     * @param roundToInteger false: Payment rounded to nearest 1/100 true: Rounded to nearest integer
+     * @param roundingPolicy How the payments are rounded
      */
-    public void setRoundToInteger(boolean roundToInteger) {
-        this.roundToInteger = roundToInteger;
+    public void setRoundingPolicy(RoundingPolicy roundingPolicy) {
+        this.roundingPolicy = roundingPolicy;
     }
 
     /**
@@ -555,48 +601,4 @@ class IntervallengthSeparateCalc {
     public void setInterestAmountRes(double interest_amount_res) {
         this.interestAmountRes = interest_amount_res;
     }
-    
-    
-    
-    
-    private static class PriceStorageStepWrapper {
-        
-        PriceStorageStep priceStorageStep;
-        private double tmpPrincipal;
-        private double tmpDiscountingFactor;
-        private double tmpAnnuity;
-        
-        public PriceStorageStepWrapper(PriceStorageStep step) {
-            this.priceStorageStep = step;
-        }
-        
-        public double getTmpPrincipal() {
-            return tmpPrincipal;
-        }
-
-        public void setTmpPrincipal(double tmpPrincipal) {
-            this.tmpPrincipal = tmpPrincipal;
-        }
-
-        public double getTmpDiscountingFactor() {
-            return tmpDiscountingFactor;
-        }
-
-        public void setTmpDiscountingFactor(double tmpDiscountingFactor) {
-            this.tmpDiscountingFactor = tmpDiscountingFactor;
-        }
-
-        public double getTmpAnnuity() {
-            return tmpAnnuity;
-        }
-
-        public void setTmpAnnuity(double tmpAnnuity) {
-            this.tmpAnnuity = tmpAnnuity;
-        }
-
-        public PriceStorageStep getPriceStorageStep() {
-            return priceStorageStep;
-        }
-        
-    }
 }
@@ -0,0 +1,130 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import no.finansportalen.freecalc.freeloan.result.AnnuityLoanResult;
+import no.finansportalen.freecalc.freeloan.result.LoanRankingResult;
+
+/**
+ * <p>
+ * Finds the products with the lowest effective interest rate among many, for the same loan - the comparison list of a
+ * price portal.
+ * </p>
+ *
+ * <p>
+ * The cheap lower bound of FreeLoan.effectiveRateLowerBound() is computed for every product first, and the products
+ * are visited in order of rising bound. annuityLoan() is only computed for a product as long as its bound could beat
+ * the most expensive product ranked so far. Once the list is full and the next bound is above its most expensive
+ * rate, all remaining products are at least as expensive, and are skipped.
+ * </p>
+ *
+ * <p>
+ * A product whose bound or effective rate cannot be computed - for instance because the loan is outside its price
+ * list - is not ranked.
+ * </p>
+ */
+public class LoanRanking {
+
+    /**
+     * The bound disregards the rounding of the payments. A product is skipped only if its bound is this much (in
+     * percentage points) above the most expensive product ranked.
+     */
+    private static final double ROUNDING_MARGIN = 0.001;
+
+    /**
+     * The number of products to rank
+     */
+    private final int size;
+
+    public LoanRanking(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @param products
+     *            Each product prepared with the same loan. Might be changed, as by annuityLoan().
+     */
+    public LoanRankingResult rank(FreeLoan[] products) {
+
+        final double[] bounds = new double[products.length];
+        Integer[] order = new Integer[products.length];
+
+        int candidates = 0;
+        int skipped = 0;
+
+        for (int p = 0; p < products.length; p++) {
+            try {
+                bounds[p] = products[p].effectiveRateLowerBound();
+                order[candidates++] = p;
+            } catch (FreeLoanException e) {
+                skipped++;
+            }
+        }
+
+        Arrays.sort(order, 0, candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(bounds[a], bounds[b]);
+            }
+        });
+
+        // The products ranked so far, the cheapest first
+        int[] indices = new int[size];
+        AnnuityLoanResult[] results = new AnnuityLoanResult[size];
+        int ranked = 0;
+        int solved = 0;
+
+        for (int c = 0; c < candidates; c++) {
+
+            int p = order[c];
+
+            if (ranked == size && bounds[p] - ROUNDING_MARGIN >= results[size - 1].getEffectiveInterestRate()) {
+                // The bounds are rising, so neither this nor any of the remaining products can be ranked
+                skipped += candidates - c;
+                break;
+            }
+
+            AnnuityLoanResult result;
+
+            try {
+                result = products[p].annuityLoan();
+            } catch (FreeLoanException e) {
+                skipped++;
+                continue;
+            }
+
+            solved++;
+
+            double rate = result.getEffectiveInterestRate();
+
+            if (ranked == size && rate >= results[size - 1].getEffectiveInterestRate()) {
+                continue;
+            }
+
+            // Insertion into the sorted list. The most expensive falls out when the list is full.
+            int i = ranked < size ? ranked++ : size - 1;
+
+            while (i > 0 && results[i - 1].getEffectiveInterestRate() > rate) {
+                indices[i] = indices[i - 1];
+                results[i] = results[i - 1];
+                i--;
+            }
+
+            indices[i] = p;
+            results[i] = result;
+        }
+
+        if (ranked < size) {
+            int[] ranked_indices = new int[ranked];
+            AnnuityLoanResult[] ranked_results = new AnnuityLoanResult[ranked];
+            System.arraycopy(indices, 0, ranked_indices, 0, ranked);
+            System.arraycopy(results, 0, ranked_results, 0, ranked);
+            indices = ranked_indices;
+            results = ranked_results;
+        }
+
+        return new LoanRankingResult(indices, results, solved, skipped);
+    }
+
+}
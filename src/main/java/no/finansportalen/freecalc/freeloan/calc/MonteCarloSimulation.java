@@ -0,0 +1,82 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import no.finansportalen.freecalc.common.SplitMix64;
+import no.finansportalen.freecalc.freeloan.result.MonteCarloResult;
+import no.finansportalen.freecalc.freeloan.result.RateScenarioResult;
+
+/**
+ * <p>
+ * Distributions of the interest and the costs of a floating rate loan under a stochastic short rate. Every path is
+ * evaluated by RateScenarioEngine, with the rates drawn period by period from the ShortRateModel, and counted in the
+ * quantile sketches of a MonteCarloResult.
+ * </p>
+ *
+ * <p>
+ * Path number 'i' draws its random numbers from stream 'i' of the seed (see SplitMix64), so a path is the same no
+ * matter which range it is simulated in. The simulation might thus be divided in ranges of paths run at the same
+ * time, for instance one per processor, each with its own MonteCarloResult. The results are merged afterwards, and
+ * are the same as if all paths were run at once.
+ * </p>
+ *
+ * <p>
+ * No arrays are made per path: The rate path, the work array of the engine and the result of a single path are made
+ * once per range and reused.
+ * </p>
+ */
+public class MonteCarloSimulation {
+
+    private final RateScenarioEngine engine;
+
+    private final ShortRateModel model;
+
+    private final long seed;
+
+    /**
+     * The relative accuracy of the quantiles
+     */
+    private double accuracy = 0.001;
+
+    public MonteCarloSimulation(RateScenarioEngine engine, ShortRateModel model, long seed) {
+        this.engine = engine;
+        this.model = model;
+        this.seed = seed;
+    }
+
+    /**
+     * All paths simulated one after another
+     */
+    public MonteCarloResult run(int paths) {
+        MonteCarloResult result = new MonteCarloResult(accuracy);
+        run(0, paths, result);
+        return result;
+    }
+
+    /**
+     * The paths 'from' (inclusive) to 'to' (exclusive) simulated and added to 'result'
+     */
+    public void run(int from, int to, MonteCarloResult result) {
+
+        ShortRateModel.Path path = model.path(engine.getCapitalizationFreq());
+        double[] flows = new double[engine.getCalculationPeriods() + 1];
+        RateScenarioResult single = new RateScenarioResult(1);
+
+        for (int i = from; i < to; i++) {
+
+            path.reset(SplitMix64.stream(seed, i));
+            engine.evaluate(path, flows, single, 0);
+
+            result.getTotalInterest().add(single.getTotalInterest()[0]);
+            result.getTotalCost().add(single.getTotalCost()[0]);
+            result.getEffectiveInterestRate().add(single.getEffectiveInterestRate()[0]);
+            result.getMaxPayment().add(single.getMaxPayment()[0]);
+        }
+    }
+
+    /**
+     * Default 0.001 = 0.1%. Results to be merged must have the same accuracy.
+     */
+    public void setAccuracy(double accuracy) {
+        this.accuracy = accuracy;
+    }
+
+}
@@ -0,0 +1,306 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import no.finansportalen.freecalc.common.CashflowIrr;
+import no.finansportalen.freecalc.common.Deadline;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException.FreeLoanExceptionType;
+import no.finansportalen.freecalc.freeloan.result.PortfolioResult;
+
+/**
+ * <p>
+ * A book of outstanding loans, and the aggregate of their future payments: The cash flow and the interest of each
+ * future calculation period, the total remaining interest, and the effective interest rate weighted by principal.
+ * </p>
+ *
+ * <p>
+ * A loan is stored as a compact record: The remaining principal, the remaining number of calculation periods, serial
+ * or annuity loan, and its rate steps. The steps work as 'rateThresholds' in FreeLoan: The rate of a period is the
+ * rate of the highest step whose lower limit the remaining principal has reached. The records are kept in arrays of
+ * numbers - one array per field, and the steps of all loans after each other in common arrays - rather than as one
+ * object per loan, so a book of a million loans takes some tens of megabytes. The arrays grow as loans are added.
+ * </p>
+ *
+ * <p>
+ * The loans are not rounded and have no fees; this is the remaining debt as in the bank's books, not the price of a
+ * new loan.
+ * </p>
+ *
+ * <p>
+ * The portfolio is not changed when aggregated. Different ranges of loans might thus be aggregated at the same time,
+ * for instance one range per processor, each into its own PortfolioResult. The results are merged afterwards.
+ * </p>
+ */
+public class Portfolio {
+
+    /**
+     * Capitalizations (and payments) per year, the same for all loans
+     */
+    private final int capitalizationFreq;
+
+    private int size = 0;
+
+    private double[] principals = new double[16];
+
+    private int[] remainingPeriods = new int[16];
+
+    private boolean[] serials = new boolean[16];
+
+    /**
+     * The steps of loan 'i' are 'stepStarts[i]' to 'stepStarts[i + 1]' in 'stepLimits' and 'stepRates'
+     */
+    private int[] stepStarts = new int[17];
+
+    private double[] stepLimits = new double[16];
+
+    /**
+     * Nominal, annual rates in percent
+     */
+    private double[] stepRates = new double[16];
+
+    /**
+     * The longest remaining loan period in the book
+     */
+    private int maxPeriods = 0;
+
+    /**
+     * As in FreeLoan. null: The effective rates are solved to a present value within 0.000001 of the principal.
+     */
+    private Double maxRateError = null;
+
+    private Deadline deadline = null;
+
+    public Portfolio(int capitalizationFreq) {
+        this.capitalizationFreq = capitalizationFreq;
+    }
+
+    /**
+     * @param principal
+     *            The remaining debt
+     * @param limits
+     *            The lower limits of the rate steps, rising, the first one normally 0
+     * @param rates
+     *            The nominal, annual rate in percent of each step
+     * @param periods
+     *            The remaining number of calculation periods
+     * @param serial
+     *            false: Annuity loan. true: Serial loan
+     * @return The number of the loan in the portfolio
+     * @throws IllegalArgumentException
+     *             If there are no rate steps, a rate is missing for a limit, or there are no periods left
+     */
+    public int add(double principal, double[] limits, double[] rates, int periods, boolean serial) {
+
+        if (limits.length == 0 || limits.length != rates.length) {
+            throw new IllegalArgumentException("Invalid rate steps: " + limits.length + " limits, " + rates.length
+                    + " rates");
+        }
+
+        if (periods < 1) {
+            throw new IllegalArgumentException("Invalid number of periods: " + periods);
+        }
+
+        if (size == principals.length) {
+            principals = grow(principals, 2 * size);
+            remainingPeriods = grow(remainingPeriods, 2 * size);
+            serials = grow(serials, 2 * size);
+            stepStarts = grow(stepStarts, 2 * size + 1);
+        }
+
+        int start = stepStarts[size];
+
+        if (start + limits.length > stepLimits.length) {
+            int length = Math.max(2 * stepLimits.length, start + limits.length);
+            stepLimits = grow(stepLimits, length);
+            stepRates = grow(stepRates, length);
+        }
+
+        System.arraycopy(limits, 0, stepLimits, start, limits.length);
+        System.arraycopy(rates, 0, stepRates, start, rates.length);
+
+        principals[size] = principal;
+        remainingPeriods[size] = periods;
+        serials[size] = serial;
+        stepStarts[size + 1] = start + limits.length;
+
+        maxPeriods = Math.max(maxPeriods, periods);
+
+        return size++;
+    }
+
+    /**
+     * All loans aggregated
+     */
+    public PortfolioResult aggregate() throws FreeLoanException {
+        PortfolioResult result = new PortfolioResult(maxPeriods);
+        aggregate(0, size, result);
+        return result;
+    }
+
+    /**
+     * <p>
+     * The loans 'from' (inclusive) to 'to' (exclusive) added to 'result', which must be made for at least
+     * 'getMaxPeriods()' periods.
+     * </p>
+     *
+     * <p>
+     * Each loan is traversed period by period. An annuity is computed again whenever the rate changes, for the
+     * remaining principal and periods. The effective rate of a loan with one step follows directly from the nominal
+     * rate. For loans with more steps, it is found by CashflowIrr on the loan's payments, reused from loan to loan.
+     * The deadline is checked between the loans and by CashflowIrr.
+     * </p>
+     */
+    public void aggregate(int from, int to, PortfolioResult result) throws FreeLoanException {
+
+        double[] cash_flow = result.getCashFlow();
+        double[] interest = result.getInterest();
+
+        CashflowIrr cashflows = new CashflowIrr();
+        cashflows.setMaxRateError(maxRateError);
+        cashflows.setPeriodsPerYear(capitalizationFreq);
+        cashflows.setDeadline(deadline);
+
+        int rate_divisor = 100 * capitalizationFreq;
+
+        for (int l = from; l < to; l++) {
+
+            checkDeadline();
+
+            double principal = principals[l];
+            int periods = remainingPeriods[l];
+            int first_step = stepStarts[l];
+            int step = stepStarts[l + 1] - 1;
+
+            boolean one_step = step == first_step;
+
+            cashflows.clear();
+
+            double installment = principal / periods;
+            double rem_princ = principal;
+            double annuity = 0;
+            double annuity_rate = Double.NaN;
+            double total_interest = 0;
+
+            for (int i = 1; i <= periods; i++) {
+
+                while (step > first_step && rem_princ < stepLimits[step]) {
+                    step--;
+                }
+
+                double termren = stepRates[step] / rate_divisor;
+                double int_per = rem_princ * termren;
+                double inst_per;
+
+                if (i == periods) {
+                    inst_per = rem_princ;
+                } else if (serials[l]) {
+                    inst_per = installment;
+                } else {
+                    if (termren != annuity_rate) {
+                        annuity = termren == 0 ? rem_princ / (periods - i + 1) : rem_princ * termren
+                                / (1 - Math.pow(1 + termren, -(periods - i + 1)));
+                        annuity_rate = termren;
+                    }
+                    inst_per = annuity - int_per;
+                }
+
+                rem_princ -= inst_per;
+
+                cash_flow[i] += inst_per + int_per;
+                interest[i] += int_per;
+                total_interest += int_per;
+
+                if (!one_step) {
+                    cashflows.add(i, inst_per + int_per);
+                }
+            }
+
+            double effective_rate;
+
+            if (one_step) {
+                effective_rate = (Math.pow(1 + stepRates[first_step] / rate_divisor, capitalizationFreq) - 1) * 100;
+            } else {
+                effective_rate = effectiveRate(principal, cashflows, stepRates[stepStarts[l + 1] - 1] / rate_divisor);
+            }
+
+            result.add(principal, effective_rate, total_interest);
+        }
+    }
+
+    /**
+     * The effective annual rate in percent of paying the payments in 'cashflows' for 'principal'
+     */
+    private double effectiveRate(double principal, CashflowIrr cashflows, double initial_rate)
+            throws FreeLoanException {
+
+        double k = cashflows.solve(principal, 1 / (1 + initial_rate));
+
+        if (cashflows.isDeadlineExceeded()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
+        }
+
+        return (Math.pow(k, -capitalizationFreq) - 1) * 100;
+    }
+
+    /**
+     * Gives up with DEADLINE_EXCEEDED if the deadline has passed or the aggregation is cancelled
+     */
+    private void checkDeadline() throws FreeLoanException {
+        if (deadline != null && deadline.isExpired()) {
+            throw new FreeLoanException(FreeLoanExceptionType.DEADLINE_EXCEEDED);
+        }
+    }
+
+    private static double[] grow(double[] array, int length) {
+        double[] grown = new double[length];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static int[] grow(int[] array, int length) {
+        int[] grown = new int[length];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static boolean[] grow(boolean[] array, int length) {
+        boolean[] grown = new boolean[length];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * @return The number of loans in the portfolio
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The longest remaining loan period in the book, in calculation periods
+     */
+    public int getMaxPeriods() {
+        return maxPeriods;
+    }
+
+    public int getCapitalizationFreq() {
+        return capitalizationFreq;
+    }
+
+    /**
+     * @param maxRateError
+     *            The largest error accepted in the effective rates, in basis points, as in FreeLoan. Default: null -
+     *            a fixed tolerance of the present value
+     */
+    public void setMaxRateError(Double maxRateError) {
+        this.maxRateError = maxRateError;
+    }
+
+    /**
+     * @param deadline
+     *            Checked between the loans and the iterations. aggregate() gives up with DEADLINE_EXCEEDED when it has
+     *            passed or is cancelled. Default: null - no deadline
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+}
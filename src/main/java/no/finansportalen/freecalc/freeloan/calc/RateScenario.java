@@ -0,0 +1,79 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+/**
+ * <p>
+ * A path of nominal interest rates for a floating rate loan, evaluated by RateScenarioEngine.
+ * </p>
+ *
+ * <p>
+ * The engine asks for the rate of each calculation period in turn, from period 1 to the last one. The rates are
+ * nominal, annual rates in percent, as in the price list ('priceStorage') of FreeLoan.
+ * </p>
+ */
+public abstract class RateScenario {
+
+    /**
+     * @param period
+     *            The calculation period, starting at 1
+     * @param rate
+     *            The nominal rate of the segment in the loan's price list
+     * @return The nominal rate in this period of the path
+     */
+    public abstract double rate(int period, double rate);
+
+    /**
+     * All rates in the price list shifted by the same number of percentage points for the whole loan period
+     */
+    public static RateScenario parallelShift(final double shift) {
+        return new RateScenario() {
+            @Override
+            public double rate(int period, double rate) {
+                return rate + shift;
+            }
+        };
+    }
+
+    /**
+     * All rates in the price list shifted gradually, by the same amount in every period, until they have risen by
+     * 'shift' percentage points after 'periods' calculation periods. The rates stay there for the rest of the loan
+     * period.
+     */
+    public static RateScenario ramp(final double shift, final int periods) {
+        return new RateScenario() {
+            @Override
+            public double rate(int period, double rate) {
+                if (period >= periods) {
+                    return rate + shift;
+                }
+                return rate + shift * period / periods;
+            }
+        };
+    }
+
+    /**
+     * All rates in the price list shifted by 'shifts[period - 1]' percentage points. The last shift applies to the
+     * rest of the loan period when the array is shorter than the loan.
+     */
+    public static RateScenario shifts(final double[] shifts) {
+        return new RateScenario() {
+            @Override
+            public double rate(int period, double rate) {
+                return rate + shifts[Math.min(period, shifts.length) - 1];
+            }
+        };
+    }
+
+    /**
+     * The rates of the price list replaced by 'rates[period - 1]' for all segments. The last rate applies to the rest
+     * of the loan period when the array is shorter than the loan.
+     */
+    public static RateScenario rates(final double[] rates) {
+        return new RateScenario() {
+            @Override
+            public double rate(int period, double rate) {
+                return rates[Math.min(period, rates.length) - 1];
+            }
+        };
+    }
+
+}
@@ -0,0 +1,322 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import java.util.Arrays;
+
+import no.finansportalen.freecalc.common.CashflowIrr;
+import no.finansportalen.freecalc.common.RoundingPolicy;
+import no.finansportalen.freecalc.freeloan.result.RateScenarioResult;
+
+/**
+ * <p>
+ * Computes the payments and the costs of a floating rate loan for many interest rate paths - "rate shocks". The
+ * engine is made by FreeLoan.rateScenarioEngine(), which does the preparation of the data once: The principal, the
+ * number of periods, the segment limits and the fees are the same for all paths. Only the interest rates differ.
+ * </p>
+ *
+ * <p>
+ * The loan is traversed period by period, as in FreeLoan.serialLoan(). The interest rate of each period is the rate
+ * of the path. In an annuity loan, the annuity is computed again for the remaining principal and periods whenever the
+ * periodic interest rate changes - which is what the banks do when the rate of a floating rate loan is changed. When
+ * the segments run concurrently with different interest rates, the annuity is computed with the average rate of the
+ * remaining principal.
+ * </p>
+ *
+ * <p>
+ * In annuity-due, every payment is made one period earlier, and is discounted one period with the period's rate.
+ * </p>
+ *
+ * <p>
+ * The engine is not changed when paths are evaluated. Different ranges of paths might thus be evaluated at the same
+ * time, for instance one range per processor, as long as each range has its own work array and CashflowIrr. The
+ * results are written to the elements of the paths only.
+ * </p>
+ */
+public class RateScenarioEngine {
+
+    /**
+     * false: Annuity loan. true: Serial loan
+     */
+    private final boolean serial;
+
+    /**
+     * The loan amount received by the borrower
+     */
+    private final double received;
+
+    /**
+     * What the user receives plus origination fees
+     */
+    private final double principal;
+
+    /**
+     * The planned residual value of the loan
+     */
+    private final double balloon;
+
+    /**
+     * Total number of calculation periods
+     */
+    private final int calculationPeriods;
+
+    /**
+     * The number of intial interest-only periods
+     */
+    private final int installmentGracePeriods;
+
+    /**
+     * Capitalizations per year
+     */
+    private final int capitalizationFreq;
+
+    /**
+     * false: Annuity-immediate true: Annuity-due
+     */
+    private final boolean annuityDue;
+
+    /**
+     * true: The interest rate is the rate of the segment the remaining principal is in
+     */
+    private final boolean rateThresholds;
+
+    /**
+     * true: Every segment has its own interest rate at the same time
+     */
+    private final boolean rateSegments;
+
+    /**
+     * The segments of the price list. As in 'priceStorage', element 0 is not used.
+     */
+    private final double[] lowerLimits;
+    private final double[] upperLimits;
+    private final double[] rates;
+    private final double[] periodicalFees;
+
+    /**
+     * The segment the initial principal is in
+     */
+    private final int initialSegment;
+
+    /**
+     * The periodic fee as a percentage of the principal, in currency units
+     */
+    private final double percentageFee;
+
+    private final RoundingPolicy roundingPolicy;
+
+    RateScenarioEngine(boolean serial, double received, double principal, double balloon, int calculationPeriods,
+            int installmentGracePeriods, int capitalizationFreq, boolean annuityDue, boolean rateThresholds,
+            boolean rateSegments, double[] lowerLimits, double[] upperLimits, double[] rates, double[] periodicalFees,
+            int initialSegment, double percentageFee, RoundingPolicy roundingPolicy) {
+        this.serial = serial;
+        this.received = received;
+        this.principal = principal;
+        this.balloon = balloon;
+        this.calculationPeriods = calculationPeriods;
+        this.installmentGracePeriods = installmentGracePeriods;
+        this.capitalizationFreq = capitalizationFreq;
+        this.annuityDue = annuityDue;
+        this.rateThresholds = rateThresholds;
+        this.rateSegments = rateSegments;
+        this.lowerLimits = lowerLimits;
+        this.upperLimits = upperLimits;
+        this.rates = rates;
+        this.periodicalFees = periodicalFees;
+        this.initialSegment = initialSegment;
+        this.percentageFee = percentageFee;
+        this.roundingPolicy = roundingPolicy;
+    }
+
+    /**
+     * All paths evaluated one after another
+     */
+    public RateScenarioResult run(RateScenario[] scenarios) {
+        RateScenarioResult result = new RateScenarioResult(scenarios.length);
+        run(scenarios, 0, scenarios.length, result);
+        return result;
+    }
+
+    /**
+     * The paths 'from' (inclusive) to 'to' (exclusive) evaluated into the same elements of 'result'
+     */
+    public void run(RateScenario[] scenarios, int from, int to, RateScenarioResult result) {
+
+        double[] flows = new double[calculationPeriods + 1];
+        CashflowIrr cashflows = new CashflowIrr();
+
+        for (int i = from; i < to; i++) {
+            evaluate(scenarios[i], flows, cashflows, result, i);
+        }
+    }
+
+    /**
+     * @param scenario
+     *            The interest rate path
+     * @param flows
+     *            Work array of 'getCalculationPeriods() + 1' elements, reused from path to path
+     * @param result
+     *            Element 'index' is set
+     */
+    public void evaluate(RateScenario scenario, double[] flows, RateScenarioResult result, int index) {
+        evaluate(scenario, flows, new CashflowIrr(), result, index);
+    }
+
+    /**
+     * As evaluate() above, with the solver of the effective rate reused from path to path
+     */
+    void evaluate(RateScenario scenario, double[] flows, CashflowIrr cashflows, RateScenarioResult result, int index) {
+
+        Arrays.fill(flows, 0, calculationPeriods + 1, 0);
+
+        int rate_divisor = 100 * capitalizationFreq;
+
+        // In a serial loan, the installment is the same for all periods
+        double installment = 0;
+
+        if (calculationPeriods > installmentGracePeriods) {
+            installment = (principal - balloon) / (calculationPeriods - installmentGracePeriods);
+        }
+
+        double rem_princ = principal;
+        int now_segm = initialSegment;
+
+        // The annuity and the periodic rate it was computed with
+        double annuity = 0;
+        double annuity_rate = Double.NaN;
+
+        double first_payment = 0;
+        double max_payment = 0;
+        double total_interest = 0;
+        double total_paid = 0;
+
+        // The rate of the first period, the start of the search for the effective rate. Taken while the loop is in
+        // period 1, as a path like ShortRateModel.Path only gives the rate of the period it has reached.
+        double first_rate = 0;
+
+        for (int i = 1; i <= calculationPeriods; i++) {
+
+            if (i == 1) {
+                first_rate = scenario.rate(i, rates[initialSegment]);
+            }
+
+            // 1. In what segment are we? We start at the top, and change for each principal limit we pass. A principal
+            // on the lower limit of a segment is in the segment below, as when FreeLoan chose 'initialSegment'.
+            if (rateThresholds || rateSegments) {
+                while (now_segm > 1 && rem_princ <= lowerLimits[now_segm]) {
+                    now_segm--;
+                }
+            }
+
+            // 2. The interest amount of the period
+            double int_per;
+
+            if (rateSegments) {
+                int_per = 0;
+                for (int j = 1; j < now_segm; j++) {
+                    int_per += (upperLimits[j] - lowerLimits[j]) * scenario.rate(i, rates[j]);
+                }
+                int_per += (rem_princ - lowerLimits[now_segm]) * scenario.rate(i, rates[now_segm]);
+                int_per /= rate_divisor;
+            } else {
+                int_per = rem_princ * scenario.rate(i, rates[now_segm]) / rate_divisor;
+            }
+
+            double termren = rem_princ > 0 ? int_per / rem_princ : 0;
+
+            // 3. The payment, as if it was paid at the end of the period
+            double paym_per;
+
+            if (i == calculationPeriods) {
+                paym_per = rem_princ + int_per;
+            } else if (i <= installmentGracePeriods) {
+                paym_per = int_per;
+            } else if (serial) {
+                paym_per = installment + int_per;
+            } else {
+                if (termren != annuity_rate) {
+                    annuity = annuity(rem_princ - balloon, termren, calculationPeriods - i + 1) + balloon * termren;
+                    annuity_rate = termren;
+                }
+                paym_per = annuity;
+            }
+
+            // 4. Rounding. The remainder after rounding is added to / subtracted from the principal.
+            double paid;
+
+            if (annuityDue) {
+                paid = roundingPolicy.round(paym_per / (1 + termren));
+                rem_princ -= paid * (1 + termren) - int_per;
+            } else {
+                paid = roundingPolicy.round(paym_per);
+                rem_princ -= paid - int_per;
+            }
+
+            // 5. Fees
+            double fee_per = periodicalFees[now_segm] + percentageFee;
+
+            paid += fee_per;
+
+            flows[annuityDue ? i - 1 : i] += paid;
+
+            total_interest += int_per;
+            total_paid += paid;
+
+            if (i == installmentGracePeriods + 1) {
+                first_payment = paid;
+            }
+
+            if (paid > max_payment) {
+                max_payment = paid;
+            }
+        }
+
+        result.getFirstPayment()[index] = first_payment;
+        result.getMaxPayment()[index] = max_payment;
+        result.getTotalInterest()[index] = total_interest;
+        result.getTotalCost()[index] = total_paid - received;
+        result.getEffectiveInterestRate()[index] = effectiveRate(flows, cashflows, first_rate / rate_divisor);
+    }
+
+    /**
+     * The annuity paying off 'loan' in 'periods' periods with the periodic rate 'rate'
+     */
+    private static double annuity(double loan, double rate, int periods) {
+        if (rate == 0) {
+            return loan / periods;
+        }
+        return loan * rate / (1 - Math.pow(1 + rate, -periods));
+    }
+
+    /**
+     * The effective annual interest rate of the payments 'flows' when 'received' is received at the start, found by
+     * CashflowIrr as in FreeLoan. The payments are added at their periods, so equal payments in a row become one run.
+     */
+    private double effectiveRate(double[] flows, CashflowIrr cashflows, double initial_rate) {
+
+        cashflows.clear();
+
+        for (int t = 0; t <= calculationPeriods; t++) {
+            if (flows[t] != 0) {
+                cashflows.add(t, flows[t]);
+            }
+        }
+
+        double k = cashflows.solve(received, 1 / (1 + initial_rate));
+
+        return (Math.pow(k, -capitalizationFreq) - 1) * 100;
+    }
+
+    /**
+     * @return The number of calculation periods of the loan. The work array of evaluate() must be one element longer.
+     */
+    public int getCalculationPeriods() {
+        return calculationPeriods;
+    }
+
+    /**
+     * @return The number of calculation periods per year
+     */
+    public int getCapitalizationFreq() {
+        return capitalizationFreq;
+    }
+
+}
@@ -0,0 +1,101 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
+
+/**
+ * <p>
+ * Work arrays for IntervallengthSeparateCalc.calculate(): The principal, the discounting factor (and its logarithm)
+ * and the annuity of each segment of a loan with separate, concurrent interest rates. Element 'i' belongs to segment
+ * 'i' in 'segmentarray'.
+ * </p>
+ *
+ * <p>
+ * A FreeLoan keeps one workspace and lends it to all intervals of all its quotes, so nothing is allocated for the
+ * segments once the arrays are long enough for the price list. The workspace also holds the two interval calculators,
+ * which are set up anew for each interval. Like FreeLoan, a workspace must only be used by one
+ * thread at a time.
+ * </p>
+ */
+class SegmentWorkspace {
+
+    /**
+     * The principal that is reduced through the installments in each segment
+     */
+    private double[] tmpPrincipal = new double[0];
+
+    /**
+     * The discounting factor used in the annuity formula ('k') of each segment
+     */
+    private double[] tmpDiscountingFactor = new double[0];
+
+    /**
+     * The natural logarithm of the discounting factor of each segment
+     */
+    private double[] tmpLogDiscountingFactor = new double[0];
+
+    /**
+     * The annuity of each segment
+     */
+    private double[] tmpAnnuity = new double[0];
+
+    /**
+     * Computes the intervals of a loan with rate thresholds, and the start guess of the number of periods with separate
+     * rates. The two are never computed at the same time.
+     */
+    private IntervallengthCalc intervalCalc = new IntervallengthCalc();
+
+    /**
+     * Computes the intervals of a loan with separate rates. Made on first use, as it refers back to this workspace.
+     */
+    private IntervallengthSeparateCalc separateCalc;
+
+    /**
+     * The answer of the start guess, reused
+     */
+    private AnnuityLoanPeriod estimate = new AnnuityLoanPeriod();
+
+    /**
+     * Makes the arrays at least 'segments' long. The content is not kept when they grow.
+     */
+    void ensureCapacity(int segments) {
+        if (tmpPrincipal.length < segments) {
+            tmpPrincipal = new double[segments];
+            tmpDiscountingFactor = new double[segments];
+            tmpLogDiscountingFactor = new double[segments];
+            tmpAnnuity = new double[segments];
+        }
+    }
+
+    public double[] getTmpPrincipal() {
+        return tmpPrincipal;
+    }
+
+    public double[] getTmpDiscountingFactor() {
+        return tmpDiscountingFactor;
+    }
+
+    public double[] getTmpLogDiscountingFactor() {
+        return tmpLogDiscountingFactor;
+    }
+
+    public double[] getTmpAnnuity() {
+        return tmpAnnuity;
+    }
+
+    public IntervallengthCalc getIntervalCalc() {
+        return intervalCalc;
+    }
+
+    public IntervallengthSeparateCalc getSeparateCalc() {
+        if (separateCalc == null) {
+            separateCalc = new IntervallengthSeparateCalc();
+            separateCalc.setWorkspace(this);
+        }
+        return separateCalc;
+    }
+
+    public AnnuityLoanPeriod getEstimate() {
+        return estimate;
+    }
+
+}
@@ -0,0 +1,154 @@
+package no.finansportalen.freecalc.freeloan.calc;
+
+import no.finansportalen.freecalc.common.SplitMix64;
+
+/**
+ * <p>
+ * A stochastic model of the short interest rate, used by MonteCarloSimulation. Per calculation period of length dt
+ * (in years), the rate r, in percent, moves:
+ * </p>
+ *
+ * <p>
+ * Vasicek: r += speed * (mean - r) * dt + volatility * sqrt(dt) * Z
+ * </p>
+ *
+ * <p>
+ * CIR (Cox-Ingersoll-Ross): r += speed * (mean - r) * dt + volatility * sqrt(max(r, 0)) * sqrt(dt) * Z
+ * </p>
+ *
+ * <p>
+ * where Z is standard normal. The rates of the loan's price list follow the short rate: They are shifted by the
+ * difference between the short rate and 'initialRate', so the bank's margin over the short rate is kept.
+ * </p>
+ */
+public class ShortRateModel {
+
+    /**
+     * The short rate when the loan is taken, in percent
+     */
+    private final double initialRate;
+
+    /**
+     * The speed of the mean reversion, per year
+     */
+    private final double speed;
+
+    /**
+     * The long term mean of the short rate, in percent
+     */
+    private final double mean;
+
+    /**
+     * Vasicek: Standard deviation per year, in percentage points. CIR: Per year and square root of a percentage point.
+     */
+    private final double volatility;
+
+    /**
+     * false: Vasicek. true: CIR
+     */
+    private final boolean cir;
+
+    private ShortRateModel(double initialRate, double speed, double mean, double volatility, boolean cir) {
+        this.initialRate = initialRate;
+        this.speed = speed;
+        this.mean = mean;
+        this.volatility = volatility;
+        this.cir = cir;
+    }
+
+    public static ShortRateModel vasicek(double initialRate, double speed, double mean, double volatility) {
+        return new ShortRateModel(initialRate, speed, mean, volatility, false);
+    }
+
+    public static ShortRateModel cir(double initialRate, double speed, double mean, double volatility) {
+        return new ShortRateModel(initialRate, speed, mean, volatility, true);
+    }
+
+    /**
+     * @param periodsPerYear
+     *            The number of calculation periods per year
+     * @return A path to be started with 'Path.reset()' and reused for any number of paths
+     */
+    public Path path(int periodsPerYear) {
+        return new Path(1.0 / periodsPerYear);
+    }
+
+    /**
+     * <p>
+     * The rates of one simulated path. They are drawn when they are asked for, period by period, so no array of rates
+     * is needed. The periods must be asked for in rising order. A period earlier than the last one drawn gets the
+     * last rate drawn.
+     * </p>
+     */
+    public class Path extends RateScenario {
+
+        private final double dt;
+
+        private final double sqrtDt;
+
+        private final SplitMix64 random = new SplitMix64(0);
+
+        private double shortRate;
+
+        private int period;
+
+        /**
+         * Box-Muller gives two normal numbers at a time. The second one is kept for the next period.
+         */
+        private double spareNormal;
+
+        private boolean hasSpare;
+
+        private Path(double dt) {
+            this.dt = dt;
+            this.sqrtDt = Math.sqrt(dt);
+        }
+
+        /**
+         * Starts a new path from the initial rate, with random numbers from 'seed'
+         */
+        public void reset(long seed) {
+            random.reset(seed);
+            shortRate = initialRate;
+            period = 0;
+            hasSpare = false;
+        }
+
+        @Override
+        public double rate(int period, double rate) {
+
+            while (this.period < period) {
+
+                double diffusion = volatility * sqrtDt;
+
+                if (cir) {
+                    diffusion *= Math.sqrt(Math.max(shortRate, 0));
+                }
+
+                shortRate += speed * (mean - shortRate) * dt + diffusion * nextNormal();
+                this.period++;
+            }
+
+            return rate + shortRate - initialRate;
+        }
+
+        private double nextNormal() {
+
+            if (hasSpare) {
+                hasSpare = false;
+                return spareNormal;
+            }
+
+            // 1 - nextDouble() is in (0, 1], so the logarithm is finite
+            double radius = Math.sqrt(-2 * Math.log(1 - random.nextDouble()));
+            double angle = 2 * Math.PI * random.nextDouble();
+
+            spareNormal = radius * Math.sin(angle);
+            hasSpare = true;
+
+            return radius * Math.cos(angle);
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+package no.finansportalen.freecalc.freeloan.result;
+
+
+/**
+ * The derivatives of the effective interest rate of an annuity loan with respect to its inputs. The rates are in
+ * percent, as the effective interest rate.
+ */
+public class AnnuityLoanSensitivity {
+
+    /**
+     * Effective annual interest rate
+     */
+    private double effectiveInterestRate;
+
+    /**
+     * Change in effective rate per percentage point change of all nominal rates
+     */
+    private double rateDerivative;
+
+    /**
+     * Change in effective rate per currency unit of fixed origination fee
+     */
+    private double feeDerivative;
+
+    /**
+     * Change in effective rate per currency unit of periodic fee
+     */
+    private double periodicFeeDerivative;
+
+    /**
+     * Change in effective rate per currency unit received
+     */
+    private double receivedDerivative;
+
+    /**
+     * Change in effective rate per period of loan time
+     */
+    private double periodsDerivative;
+
+
+
+    /**
+     * @return Effective annual interest rate
+     */
+    public double getEffectiveInterestRate() {
+        return effectiveInterestRate;
+    }
+
+    public void setEffectiveInterestRate(double effectiveInterestRate) {
+        this.effectiveInterestRate = effectiveInterestRate;
+    }
+
+    /**
+     * @return Change in effective rate per percentage point change of all nominal rates
+     */
+    public double getRateDerivative() {
+        return rateDerivative;
+    }
+
+    public void setRateDerivative(double rateDerivative) {
+        this.rateDerivative = rateDerivative;
+    }
+
+    /**
+     * @return Change in effective rate per currency unit of fixed origination fee
+     */
+    public double getFeeDerivative() {
+        return feeDerivative;
+    }
+
+    public void setFeeDerivative(double feeDerivative) {
+        this.feeDerivative = feeDerivative;
+    }
+
+    /**
+     * @return Change in effective rate per currency unit of periodic fee
+     */
+    public double getPeriodicFeeDerivative() {
+        return periodicFeeDerivative;
+    }
+
+    public void setPeriodicFeeDerivative(double periodicFeeDerivative) {
+        this.periodicFeeDerivative = periodicFeeDerivative;
+    }
+
+    /**
+     * @return Change in effective rate per currency unit received
+     */
+    public double getReceivedDerivative() {
+        return receivedDerivative;
+    }
+
+    public void setReceivedDerivative(double receivedDerivative) {
+        this.receivedDerivative = receivedDerivative;
+    }
+
+    /**
+     * @return Change in effective rate per period of loan time
+     */
+    public double getPeriodsDerivative() {
+        return periodsDerivative;
+    }
+
+    public void setPeriodsDerivative(double periodsDerivative) {
+        this.periodsDerivative = periodsDerivative;
+    }
+
+}
@@ -22,6 +22,11 @@ public abstract class FreeLoanResult<T extends Period> {
     private double paybackPeriodCount;
     
     private T[] periods;
+    
+    /**
+     * The version of the product catalogue the price list was taken from. 0: Not from a catalogue
+     */
+    private long catalogueVersion;
 
     
     
@@ -65,6 +70,17 @@ public abstract class FreeLoanResult<T extends Period> {
     public void setPaybackPeriodCount(double paybackPeriodCount) {
         this.paybackPeriodCount = paybackPeriodCount;
     }
+
+    /**
+     * @return The version of the product catalogue the price list was taken from. 0: Not from a catalogue
+     */
+    public long getCatalogueVersion() {
+        return catalogueVersion;
+    }
+
+    public void setCatalogueVersion(long catalogueVersion) {
+        this.catalogueVersion = catalogueVersion;
+    }
     
     
     
@@ -0,0 +1,54 @@
+package no.finansportalen.freecalc.freeloan.result;
+
+/**
+ * <p>
+ * The cheapest products of a LoanRanking, by effective interest rate, the cheapest first.
+ * </p>
+ */
+public class LoanRankingResult {
+
+    /**
+     * The index of each product in the array that was ranked
+     */
+    private int[] indices;
+
+    /**
+     * The result of annuityLoan() for each product
+     */
+    private AnnuityLoanResult[] results;
+
+    /**
+     * The number of products annuityLoan() was computed for
+     */
+    private int solved;
+
+    /**
+     * The number of products not ranked without computing annuityLoan() to the end: Those skipped because their lower
+     * bound could not beat the products ranked, and those that failed
+     */
+    private int skipped;
+
+    public LoanRankingResult(int[] indices, AnnuityLoanResult[] results, int solved, int skipped) {
+        this.indices = indices;
+        this.results = results;
+        this.solved = solved;
+        this.skipped = skipped;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public AnnuityLoanResult[] getResults() {
+        return results;
+    }
+
+    public int getSolved() {
+        return solved;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+}
@@ -0,0 +1,65 @@
+package no.finansportalen.freecalc.freeloan.result;
+
+import no.finansportalen.freecalc.common.QuantileSketch;
+
+/**
+ * The distributions of the costs of a floating rate loan over simulated interest rate paths, as quantile sketches.
+ * Results of parts of a simulation are merged into one with merge().
+ */
+public class MonteCarloResult {
+
+    /**
+     * The sum of all interest paid
+     */
+    private QuantileSketch totalInterest;
+
+    /**
+     * All payments less the amount received
+     */
+    private QuantileSketch totalCost;
+
+    /**
+     * Effective annual interest rate
+     */
+    private QuantileSketch effectiveInterestRate;
+
+    /**
+     * The largest payment during the loan period
+     */
+    private QuantileSketch maxPayment;
+
+    /**
+     * @param accuracy
+     *            The relative accuracy of the quantiles, for instance 0.001 = 0.1%
+     */
+    public MonteCarloResult(double accuracy) {
+        totalInterest = new QuantileSketch(accuracy);
+        totalCost = new QuantileSketch(accuracy);
+        effectiveInterestRate = new QuantileSketch(accuracy);
+        maxPayment = new QuantileSketch(accuracy);
+    }
+
+    public void merge(MonteCarloResult other) {
+        totalInterest.merge(other.totalInterest);
+        totalCost.merge(other.totalCost);
+        effectiveInterestRate.merge(other.effectiveInterestRate);
+        maxPayment.merge(other.maxPayment);
+    }
+
+    public QuantileSketch getTotalInterest() {
+        return totalInterest;
+    }
+
+    public QuantileSketch getTotalCost() {
+        return totalCost;
+    }
+
+    public QuantileSketch getEffectiveInterestRate() {
+        return effectiveInterestRate;
+    }
+
+    public QuantileSketch getMaxPayment() {
+        return maxPayment;
+    }
+
+}
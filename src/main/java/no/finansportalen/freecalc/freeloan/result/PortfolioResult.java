@@ -0,0 +1,107 @@
+package no.finansportalen.freecalc.freeloan.result;
+
+/**
+ * <p>
+ * The aggregated future payments of a portfolio of loans. Element 'i' of the period arrays belongs to calculation
+ * period 'i' from now. Element 0 is not used.
+ * </p>
+ *
+ * <p>
+ * Results of parts of a portfolio are merged into one with merge().
+ * </p>
+ */
+public class PortfolioResult {
+
+    /**
+     * Installments and interest paid per period
+     */
+    private double[] cashFlow;
+
+    /**
+     * Interest paid per period
+     */
+    private double[] interest;
+
+    /**
+     * The number of loans
+     */
+    private long loans = 0;
+
+    /**
+     * The sum of the remaining principals
+     */
+    private double principal = 0;
+
+    /**
+     * The sum of all remaining interest
+     */
+    private double totalInterest = 0;
+
+    /**
+     * The sum of each loan's effective rate times its principal
+     */
+    private double weightedRates = 0;
+
+    /**
+     * @param periods
+     *            The longest remaining loan period
+     */
+    public PortfolioResult(int periods) {
+        cashFlow = new double[periods + 1];
+        interest = new double[periods + 1];
+    }
+
+    /**
+     * Counts one loan. (The period arrays are added to directly).
+     */
+    public void add(double principal, double effectiveRate, double totalInterest) {
+        this.loans++;
+        this.principal += principal;
+        this.totalInterest += totalInterest;
+        this.weightedRates += effectiveRate * principal;
+    }
+
+    /**
+     * Adds other, which must not be made for more periods than this
+     */
+    public void merge(PortfolioResult other) {
+
+        for (int i = 1; i < other.cashFlow.length; i++) {
+            cashFlow[i] += other.cashFlow[i];
+            interest[i] += other.interest[i];
+        }
+
+        loans += other.loans;
+        principal += other.principal;
+        totalInterest += other.totalInterest;
+        weightedRates += other.weightedRates;
+    }
+
+    /**
+     * @return Effective annual interest rate weighted by the remaining principals
+     */
+    public double getWeightedEffectiveRate() {
+        return principal == 0 ? 0 : weightedRates / principal;
+    }
+
+    public double[] getCashFlow() {
+        return cashFlow;
+    }
+
+    public double[] getInterest() {
+        return interest;
+    }
+
+    public long getLoans() {
+        return loans;
+    }
+
+    public double getPrincipal() {
+        return principal;
+    }
+
+    public double getTotalInterest() {
+        return totalInterest;
+    }
+
+}
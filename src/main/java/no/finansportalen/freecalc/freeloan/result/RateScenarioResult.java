@@ -0,0 +1,94 @@
+package no.finansportalen.freecalc.freeloan.result;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Payments and costs of a floating rate loan for a set of interest rate paths. Element 'i' of each array belongs to
+ * path 'i'.
+ * </p>
+ *
+ * <p>
+ * The payments are per calculation period and include periodic fees.
+ * </p>
+ */
+public class RateScenarioResult {
+
+    /**
+     * The first payment where installments are paid
+     */
+    private double[] firstPayment;
+
+    /**
+     * The largest payment during the loan period
+     */
+    private double[] maxPayment;
+
+    /**
+     * The sum of all interest paid
+     */
+    private double[] totalInterest;
+
+    /**
+     * All payments less the amount received
+     */
+    private double[] totalCost;
+
+    /**
+     * Effective annual interest rate
+     */
+    private double[] effectiveInterestRate;
+
+    public RateScenarioResult(int paths) {
+        firstPayment = new double[paths];
+        maxPayment = new double[paths];
+        totalInterest = new double[paths];
+        totalCost = new double[paths];
+        effectiveInterestRate = new double[paths];
+    }
+
+    /**
+     * @param values
+     *            For instance 'getTotalCost()'. Not changed.
+     * @param probability
+     *            Between 0 and 1
+     * @return The value that the share 'probability' of the paths are below or equal to, interpolated linearly
+     *         between the paths.
+     */
+    public static double quantile(double[] values, double probability) {
+
+        double[] sorted = new double[values.length];
+        System.arraycopy(values, 0, sorted, 0, values.length);
+        Arrays.sort(sorted);
+
+        double position = probability * (sorted.length - 1);
+        int below = (int) Math.floor(position);
+
+        if (below >= sorted.length - 1) {
+            return sorted[sorted.length - 1];
+        }
+
+        return sorted[below] + (position - below) * (sorted[below + 1] - sorted[below]);
+    }
+
+    public double[] getFirstPayment() {
+        return firstPayment;
+    }
+
+    public double[] getMaxPayment() {
+        return maxPayment;
+    }
+
+    public double[] getTotalInterest() {
+        return totalInterest;
+    }
+
+    public double[] getTotalCost() {
+        return totalCost;
+    }
+
+    public double[] getEffectiveInterestRate() {
+        return effectiveInterestRate;
+    }
+
+}
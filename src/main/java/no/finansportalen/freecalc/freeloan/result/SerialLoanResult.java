@@ -1,11 +1,17 @@
 package no.finansportalen.freecalc.freeloan.result;
 
 import no.finansportalen.freecalc.common.SerialLoanPeriod;
+import no.finansportalen.freecalc.common.SerialSchedule;
 
 public class SerialLoanResult extends FreeLoanResult<SerialLoanPeriod> {
 
     private double remainder;
 
+    /**
+     * The payment plan as runs of periods. null unless FreeLoan.setEncodeSchedule(true)
+     */
+    private SerialSchedule schedule;
+
     
     
     
@@ -16,5 +22,16 @@ public class SerialLoanResult extends FreeLoanResult<SerialLoanPeriod> {
     public void setRemainder(double remainder) {
         this.remainder = remainder;
     }
+
+    /**
+     * @return The payment plan as runs of periods, when FreeLoan.setEncodeSchedule(true). The periods are then null.
+     */
+    public SerialSchedule getSchedule() {
+        return schedule;
+    }
+
+    public void setSchedule(SerialSchedule schedule) {
+        this.schedule = schedule;
+    }
     
 }
@@ -0,0 +1,236 @@
+package no.finansportalen.freecalc.catalogue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import no.finansportalen.freecalc.freecard.calc.FreeCard;
+import no.finansportalen.freecalc.freecard.result.FreeCardResult;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.calc.PriceStorageStep;
+import no.finansportalen.freecalc.freeloan.result.AnnuityLoanResult;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the product registry: Versions, snapshots that are not changed by later publications, and quotes made while
+ * the catalogue is changed.
+ * </p>
+ */
+public class ProductRegistryTest {
+    
+    private static LoanProduct loanProduct(double rate) {
+        ArrayList<PriceStorageStep> price_storage = new ArrayList<PriceStorageStep>();
+        price_storage.add(new PriceStorageStep(rate, 50, 0, 999999));
+        price_storage.add(new PriceStorageStep(rate - 0.3, 50, 1000000, Double.MAX_VALUE));
+        LoanProduct product = new LoanProduct(price_storage);
+        product.setFeeProcessing(1500);
+        product.setRateThresholds(true);
+        return product;
+    }
+    
+    private static double quote(CatalogueSnapshot snapshot, String id, long[] version) throws FreeLoanException {
+        FreeLoan calc = new FreeLoan();
+        calc.setReceived(1500000.0);
+        calc.setNumberOfPeriods(240);
+        calc.setPeriodsPerYear(12);
+        assertTrue(snapshot.configureLoan(id, calc));
+        AnnuityLoanResult result = calc.annuityLoan();
+        version[0] = result.getCatalogueVersion();
+        return result.getEffectiveInterestRate();
+    }
+    
+    @Test
+    public void testVersions() throws FreeLoanException
+    {
+        ProductRegistry registry = new ProductRegistry();
+        assertEquals(0, registry.getSnapshot().getVersion());
+        
+        Map<String, LoanProduct> loans = new HashMap<String, LoanProduct>();
+        LoanProduct product = loanProduct(3.9);
+        loans.put("a", product);
+        
+        Map<String, CardProduct> cards = new HashMap<String, CardProduct>();
+        CardProduct card_product = new CardProduct();
+        card_product.setRateCash(21.0);
+        card_product.setRatePurchase(18.0);
+        card_product.setMinpayPerc(3.0);
+        card_product.setMinpayUnits(300.0);
+        cards.put("card", card_product);
+        
+        CatalogueSnapshot first = registry.publish(loans, cards);
+        assertEquals(1, first.getVersion());
+        
+        long[] version = new long[1];
+        double rate = quote(first, "a", version);
+        assertEquals(1, version[0]);
+        
+        // Changing the product after publishing does not change the catalogue
+        product.getPriceStorage().get(0).setAnnualInterest(5.0);
+        assertEquals(rate, quote(registry.getSnapshot(), "a", version), 0);
+        
+        // ..before it is published again. The old snapshot is kept as it was.
+        CatalogueSnapshot second = registry.putLoanProduct("a", product);
+        assertEquals(2, second.getVersion());
+        assertTrue(quote(second, "a", version) > rate);
+        assertEquals(2, version[0]);
+        assertEquals(rate, quote(first, "a", version), 0);
+        
+        assertEquals(false, second.configureLoan("b", new FreeLoan()));
+        assertEquals(second, registry.removeLoanProduct("b"));
+        assertEquals(3, registry.removeLoanProduct("a").getVersion());
+        assertTrue(registry.getSnapshot().getLoanProductIds().isEmpty());
+        
+        // Card products are kept when loan products are changed
+        FreeCard card = new FreeCard();
+        card.setReceivedPurchase(10000);
+        card.setNumberOfMonths(12);
+        assertTrue(registry.getSnapshot().configureCard("card", card));
+        FreeCardResult card_result = card.calculate();
+        assertEquals(3, card_result.getCatalogueVersion());
+    }
+    
+    @Test
+    public void testConcurrentPublish() throws Exception
+    {
+        final ProductRegistry registry = new ProductRegistry();
+        registry.putLoanProduct("a", loanProduct(3.0));
+        
+        final int versions = 200;
+        final Map<Long, Double> seen = new TreeMap<Long, Double>();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        
+        Thread[] readers = new Thread[4];
+        
+        for(int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    long[] version = new long[1];
+                    try {
+                        while(registry.getSnapshot().getVersion() < versions) {
+                            double rate = quote(registry.getSnapshot(), "a", version);
+                            synchronized(seen) {
+                                Double earlier = seen.put(version[0], rate);
+                                // One version is always quoted the same
+                                assertTrue(earlier == null || earlier == rate);
+                            }
+                        }
+                    } catch(Throwable e) {
+                        synchronized(errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        
+        // The rate rises with each version
+        for(int v = 2; v <= versions; v++) {
+            registry.putLoanProduct("a", loanProduct(3.0 + v / 100.0));
+        }
+        
+        for(Thread reader : readers) {
+            reader.join();
+        }
+        
+        assertEquals(new ArrayList<Throwable>(), errors);
+        
+        double last = 0;
+        for(double rate : seen.values()) {
+            assertTrue(rate > last);
+            last = rate;
+        }
+    }
+    
+    @Test
+    public void testQuoteCache() throws FreeLoanException
+    {
+        ProductRegistry registry = new ProductRegistry();
+        
+        Map<String, LoanProduct> loans = new HashMap<String, LoanProduct>();
+        for(int p = 0; p < 5; p++) {
+            loans.put("p" + p, loanProduct(3.0 + p / 10.0));
+        }
+        registry.publish(loans, new HashMap<String, CardProduct>());
+        
+        QuoteCache<AnnuityLoanResult> cache = new QuoteCache<AnnuityLoanResult>(CatalogueChange.Kind.LOAN) {
+            @Override
+            protected AnnuityLoanResult quote(CatalogueSnapshot snapshot, String id) throws FreeLoanException {
+                FreeLoan calc = new FreeLoan();
+                calc.setReceived(1500000.0);
+                calc.setNumberOfPeriods(240);
+                calc.setPeriodsPerYear(12);
+                snapshot.configureLoan(id, calc);
+                return calc.annuityLoan();
+            }
+            @Override
+            protected double rankingKey(AnnuityLoanResult result) {
+                return result.getEffectiveInterestRate();
+            }
+        };
+        cache.load(registry.getSnapshot());
+        registry.addListener(cache);
+        
+        final List<CatalogueChange> events = new ArrayList<CatalogueChange>();
+        registry.addListener(new CatalogueListener() {
+            public void catalogueChanged(CatalogueSnapshot snapshot, List<CatalogueChange> changes) {
+                events.addAll(changes);
+            }
+        });
+        
+        assertEquals(5, cache.getQuotes());
+        assertEquals(Arrays.asList("p0", "p1", "p2", "p3", "p4"), cache.getRanking());
+        
+        // The same terms again make no new version and no quotes
+        assertEquals(1, registry.putLoanProduct("p2", loanProduct(3.2)).getVersion());
+        registry.publish(loans, new HashMap<String, CardProduct>());
+        assertEquals(5, cache.getQuotes());
+        assertEquals(0, events.size());
+        
+        // One rate changed: Only that product is quoted again, and moved in the ranking
+        LoanProduct changed = loanProduct(3.2);
+        changed.getPriceStorage().get(0).setAnnualInterest(2.5);
+        registry.putLoanProduct("p2", changed);
+        
+        assertEquals(6, cache.getQuotes());
+        assertEquals(2, cache.getVersion());
+        assertEquals(Arrays.asList("p2", "p0", "p1", "p3", "p4"), cache.getRanking());
+        long[] version = new long[1];
+        assertEquals(quote(registry.getSnapshot(), "p2", version), cache.getResult("p2").getEffectiveInterestRate(), 0);
+        
+        assertEquals(1, events.size());
+        assertEquals(CatalogueChange.Type.CHANGED, events.get(0).getType());
+        assertTrue(events.get(0).isPricesChanged());
+        assertEquals(false, events.get(0).isFeesChanged());
+        
+        // A fee changed
+        events.clear();
+        LoanProduct fee = loanProduct(3.4);
+        fee.setFeeProcessing(50000);
+        registry.putLoanProduct("p4", fee);
+        assertEquals(false, events.get(0).isPricesChanged());
+        assertTrue(events.get(0).isFeesChanged());
+        assertEquals(7, cache.getQuotes());
+        
+        // The results carried over are those of the products as they are
+        for(String id : registry.getSnapshot().getLoanProductIds()) {
+            assertEquals(quote(registry.getSnapshot(), id, version), cache.getResult(id).getEffectiveInterestRate(), 0);
+        }
+        
+        registry.removeLoanProduct("p0");
+        assertEquals(null, cache.getResult("p0"));
+        assertEquals(Arrays.asList("p2", "p1", "p3", "p4"), cache.getRanking());
+        assertEquals(7, cache.getQuotes());
+    }
+    
+}
@@ -0,0 +1,76 @@
+package no.finansportalen.freecalc.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the runs, present values and the solver of CashflowIrr against payments discounted one by one.
+ * </p>
+ */
+public class CashflowIrrTest {
+
+    @Test
+    public void testRuns()
+    {
+        CashflowIrr cashflows = new CashflowIrr();
+
+        // 12 interest-only payments, 228 annuities and a residue with the last one
+        for(int i = 1; i <= 12; i++) {
+            cashflows.add(i, 5000);
+        }
+        for(int i = 13; i <= 240; i++) {
+            cashflows.add(i, 9876.54);
+        }
+        cashflows.add(240, -0.37);
+
+        assertEquals(3, cashflows.size());
+        assertEquals(13, cashflows.getStart(1), 0);
+        assertEquals(12, cashflows.getCount(0), 0);
+        assertEquals(228, cashflows.getCount(1), 0);
+
+        for(double k = 0.999; k > 0.99; k -= 0.002) {
+            double PV = -0.37 * Math.pow(k, 240);
+            double PV_dif = -0.37 * 240 * Math.pow(k, 239);
+            for(int i = 1; i <= 240; i++) {
+                double payment = i <= 12 ? 5000 : 9876.54;
+                PV += payment * Math.pow(k, i);
+                PV_dif += payment * i * Math.pow(k, i - 1);
+            }
+
+            assertEquals(PV, cashflows.presentValue(k), PV * 1e-12);
+            assertEquals(PV_dif, cashflows.getDerivative(), PV_dif * 1e-10);
+        }
+    }
+
+
+    @Test
+    public void testSolve() throws Exception
+    {
+        // An annuity of 1,000,000 over 120 months at 0.5% per month
+        double k = 1 / 1.005;
+        double payment = 1000000 * (1 - k) / (k - Math.pow(k, 121));
+
+        CashflowIrr cashflows = new CashflowIrr();
+        cashflows.addRun(1, 120, payment);
+
+        assertEquals(k, cashflows.solve(1000000, 1 / 1.01), 1e-12);
+        assertEquals(1000000, cashflows.presentValue(cashflows.solve(1000000, 1 / 1.01)), 0.000001);
+
+        // With an error budget instead, the rate is within a hundredth of a basis point
+        cashflows.setMaxRateError(0.01);
+
+        double er = (Math.pow(1 / cashflows.solve(1000000, 1 / 1.01), 12) - 1) * 100;
+        assertEquals((Math.pow(1.005, 12) - 1) * 100, er, 0.0001);
+
+        // A run that does not start at a whole period, as the card payments after the due date
+        cashflows.clear();
+        cashflows.addRun(1.5, 120, payment);
+        cashflows.setMaxRateError(null);
+
+        double delayed = cashflows.solve(1000000 * Math.pow(k, 0.5), 1 / 1.01);
+        assertEquals(k, delayed, 1e-12);
+    }
+
+}
@@ -0,0 +1,62 @@
+package no.finansportalen.freecalc.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the powers of DiscountPowers against Math.pow(), and counting the calls to Math.pow() in a solve.
+ * </p>
+ */
+public class DiscountPowersTest {
+
+    @Test
+    public void testPower()
+    {
+        SplitMix64 random = new SplitMix64(7);
+
+        for(int i = 0; i < 10000; i++) {
+            double k = 0.9 + random.nextDouble() * 0.11;
+            int n = (int) (random.nextDouble() * 3000);
+
+            double expected = Math.pow(k, n);
+            assertEquals(expected, DiscountPowers.power(k, n), Math.abs(expected) * 1e-12);
+            assertEquals(1 / expected, DiscountPowers.power(k, -n), Math.abs(1 / expected) * 1e-12);
+        }
+
+        assertEquals(1, DiscountPowers.power(0.5, 0), 0);
+        assertEquals(0.125, DiscountPowers.power(0.5, 3), 0);
+        assertEquals(8, DiscountPowers.power(0.5, -3), 0);
+    }
+
+
+    @Test
+    public void testPowers()
+    {
+        // An annuity-immediate loan of 300 periods in three intervals, and the residue in the last period
+        double[] exponents = {1, 61, 181, 301, 300};
+
+        DiscountPowers powers = new DiscountPowers(exponents);
+
+        // The rounds of a solve: Not one call to Math.pow(), where the direct way makes one per exponent and round
+        for(double k = 0.999; k > 0.99; k -= 0.001) {
+            powers.compute(k);
+            for(int i = 0; i < exponents.length; i++) {
+                assertEquals(Math.pow(k, exponents[i]), powers.get(i), Math.pow(k, exponents[i]) * 1e-13);
+            }
+        }
+
+        assertEquals(0, powers.getPowCalls());
+
+        // A loan period that is not a whole number of calculation periods: Math.pow() for that exponent only
+        DiscountPowers fractional = new DiscountPowers(new double[] {1, 61, 181, 300.5, 300});
+
+        fractional.compute(0.995);
+
+        assertEquals(1, fractional.getPowCalls());
+        assertEquals(Math.pow(0.995, 300.5), fractional.get(3), 1e-15);
+        assertEquals(Math.pow(0.995, 300), fractional.get(4), Math.pow(0.995, 300) * 1e-13);
+    }
+
+}
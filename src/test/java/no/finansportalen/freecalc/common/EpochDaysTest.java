@@ -0,0 +1,80 @@
+package no.finansportalen.freecalc.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing EpochDays against GregorianCalendar, and the day counts.
+ * </p>
+ */
+public class EpochDaysTest {
+
+    @Test
+    public void testEpochDays()
+    {
+        assertEquals(0, EpochDays.of(1970, 1, 1));
+        assertEquals(11017, EpochDays.of(2000, 3, 1));
+        assertEquals(-1, EpochDays.of(1969, 12, 31));
+
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.setGregorianChange(new java.util.Date(Long.MIN_VALUE));
+        calendar.clear();
+        calendar.set(1600, Calendar.JANUARY, 1);
+
+        int day = EpochDays.of(1600, 1, 1);
+
+        // Every day for 800 years, both ways
+        while(calendar.get(Calendar.YEAR) < 2400) {
+            int year = calendar.get(Calendar.YEAR);
+            int month = calendar.get(Calendar.MONTH) + 1;
+            int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
+
+            assertEquals(calendar.getTimeInMillis() / 86400000L, day);
+            assertEquals(day, EpochDays.of(year, month, dayOfMonth));
+
+            int[] date = EpochDays.toDate(day);
+            assertEquals(year, date[0]);
+            assertEquals(month, date[1]);
+            assertEquals(dayOfMonth, date[2]);
+
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            day++;
+        }
+    }
+
+
+    @Test
+    public void testPlusMonths()
+    {
+        int end_of_january = EpochDays.of(2024, 1, 31);
+
+        assertEquals(EpochDays.of(2024, 2, 29), EpochDays.plusMonths(end_of_january, 1));
+        assertEquals(EpochDays.of(2025, 2, 28), EpochDays.plusMonths(end_of_january, 13));
+        assertEquals(EpochDays.of(2024, 4, 30), EpochDays.plusMonths(end_of_january, 3));
+        assertEquals(EpochDays.of(2023, 12, 31), EpochDays.plusMonths(end_of_january, -1));
+        assertEquals(EpochDays.of(2044, 1, 31), EpochDays.plusMonths(end_of_january, 240));
+    }
+
+
+    @Test
+    public void testDayCount()
+    {
+        int start = EpochDays.of(2024, 1, 31);
+
+        assertEquals(29 / 365.0, DayCount.ACT_365.yearFraction(start, EpochDays.of(2024, 2, 29)), 0);
+        assertEquals(366 / 365.0, DayCount.ACT_365.yearFraction(start, EpochDays.of(2025, 1, 31)), 0);
+
+        // 30E/360: The 31st counts as the 30th, February as it is
+        assertEquals(29 / 360.0, DayCount.THIRTY_360.yearFraction(start, EpochDays.of(2024, 2, 29)), 1e-15);
+        assertEquals(60 / 360.0, DayCount.THIRTY_360.yearFraction(start, EpochDays.of(2024, 3, 31)), 1e-15);
+        assertEquals(1, DayCount.THIRTY_360.yearFraction(start, EpochDays.of(2025, 1, 31)), 0);
+        assertEquals(20, DayCount.THIRTY_360.yearFraction(EpochDays.of(2024, 1, 15), EpochDays.of(2044, 1, 15)), 0);
+    }
+
+}
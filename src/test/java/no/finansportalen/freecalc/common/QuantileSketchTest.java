@@ -0,0 +1,51 @@
+package no.finansportalen.freecalc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the quantiles of QuantileSketch against sorted numbers, and that NaN is not counted.
+ * </p>
+ */
+public class QuantileSketchTest {
+
+    @Test
+    public void testQuantiles()
+    {
+        QuantileSketch sketch = new QuantileSketch(0.01);
+        for(int i = -500; i <= 1000; i++) {
+            sketch.add(i);
+        }
+
+        assertEquals(1501, sketch.getCount());
+        assertEquals(-500, sketch.getMin(), 0);
+        assertEquals(1000, sketch.getMax(), 0);
+        assertEquals(250, sketch.quantile(0.5), 250 * 0.01);
+        assertEquals(850, sketch.quantile(0.9), 850 * 0.01);
+    }
+
+
+    @Test
+    public void testNaN()
+    {
+        QuantileSketch sketch = new QuantileSketch(0.01);
+        sketch.add(1);
+        sketch.add(2);
+
+        try {
+            sketch.add(Double.NaN);
+            fail("NaN added");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Neither the count nor the minimum and maximum are touched
+        assertEquals(2, sketch.getCount());
+        assertEquals(1, sketch.getMin(), 0);
+        assertEquals(2, sketch.getMax(), 0);
+    }
+
+}
@@ -0,0 +1,67 @@
+package no.finansportalen.freecalc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import no.finansportalen.freecalc.common.Utils.RoundDirection;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing RoundingPolicy against Utils.roundoff(), and the currency table and cash rounding.
+ * </p>
+ */
+public class RoundingPolicyTest {
+
+    @Test
+    public void testSameAsRoundoff()
+    {
+        SplitMix64 random = new SplitMix64(11);
+
+        for(RoundDirection direction : RoundDirection.values()) {
+            for(boolean roundToInteger : new boolean[] {false, true}) {
+                RoundingPolicy policy = RoundingPolicy.of(direction, roundToInteger);
+
+                for(int i = 0; i < 10000; i++) {
+                    double number = (random.nextDouble() - 0.1) * 100000;
+                    assertEquals(Utils.roundoff(number, direction, roundToInteger), policy.round(number), 0);
+                }
+            }
+        }
+
+        assertSame(RoundingPolicy.DEFAULT, RoundingPolicy.of(RoundDirection.NORMAL, false));
+    }
+
+
+    @Test
+    public void testCurrencies()
+    {
+        assertEquals(2, RoundingPolicy.forCurrency("NOK").getDecimals());
+        assertEquals(2, RoundingPolicy.forCurrency("EUR").getDecimals());
+        assertEquals(0, RoundingPolicy.forCurrency("JPY").getDecimals());
+        assertEquals(3, RoundingPolicy.forCurrency("KWD").getDecimals());
+
+        assertEquals(1235, RoundingPolicy.forCurrency("ISK").round(1234.5), 0);
+        assertEquals(12.346, RoundingPolicy.forCurrency("BHD").round(12.3456), 0);
+
+        // Cash rounding to 0.05, as for Swiss francs
+        RoundingPolicy cash = RoundingPolicy.forCurrency("CHF").withIncrement(5);
+
+        assertEquals(12.35, cash.round(12.33), 0);
+        assertEquals(12.30, cash.round(12.32), 0);
+        assertEquals(12.35, cash.withDirection(RoundDirection.UP).round(12.31), 0);
+        assertEquals(12.30, cash.withDirection(RoundDirection.DOWN).round(12.34), 0);
+        assertEquals(12.30, cash.withDirection(RoundDirection.UP).roundNearest(12.31), 0);
+
+        // Back to the minor unit
+        assertEquals(12.33, cash.withDecimals(2).round(12.33), 0);
+
+        // Back to the minor unit of the currency, not two decimals. A policy already there is kept, cash rounding
+        // included.
+        assertEquals(3, RoundingPolicy.forCurrency("KWD").withDecimals(0).withCurrencyDecimals().getDecimals());
+        assertEquals(0, RoundingPolicy.forCurrency("JPY").withCurrencyDecimals().getDecimals());
+        assertEquals(5, cash.withCurrencyDecimals().getIncrement());
+    }
+
+}
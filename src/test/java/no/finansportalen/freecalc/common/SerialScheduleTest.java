@@ -0,0 +1,82 @@
+package no.finansportalen.freecalc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.finansportalen.freecalc.freeloan.LoanFixtures;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.result.SerialLoanResult;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the runs of SerialSchedule against the periods of FreeLoan.serialLoan().
+ * </p>
+ */
+public class SerialScheduleTest {
+
+    @Test
+    public void testEncodeSchedule() throws FreeLoanException
+    {
+        for(boolean annuity_due : new boolean[] {false, true}) {
+            for(boolean rate_thresholds : new boolean[] {false, true}) {
+                FreeLoan calc = LoanFixtures.twoStepLoan(2000000, 240, 0, 950, 50, annuity_due, rate_thresholds);
+                SerialLoanResult plain = calc.serialLoan();
+                
+                final List<double[]> streamed = new ArrayList<double[]>();
+                calc.serialLoan(new ScheduleSink() {
+                    public void period(int period, double payment, double interest, double installment, double periodicFee, double remainingPrincipal) {
+                        streamed.add(new double[] {period, payment, interest, installment, periodicFee, remainingPrincipal});
+                    }
+                });
+                
+                calc.setEncodeSchedule(true);
+                SerialLoanResult encoded = calc.serialLoan();
+                
+                assertNull(encoded.getPeriods());
+                assertEquals(plain.getEffectiveInterestRate(), encoded.getEffectiveInterestRate(), 0);
+                assertEquals(plain.getRemainder(), encoded.getRemainder(), 0);
+                
+                // A run per segment and for the interest-only periods, not per period
+                SerialSchedule schedule = encoded.getSchedule();
+                assertTrue(schedule.size() <= 5);
+                assertEquals(240, schedule.getLastPeriod());
+                
+                // Expanded, the rows are the same to the last decimal
+                SerialLoanPeriod[] rows = schedule.expand();
+                assertEquals(plain.getPeriods().length, rows.length);
+                for(int i = annuity_due ? 0 : 1; i < rows.length; i++) {
+                    assertEquals(plain.getPeriods()[i].getPayment(), rows[i].getPayment(), 0);
+                    assertEquals(plain.getPeriods()[i].getInstallment(), rows[i].getInstallment(), 0);
+                    assertEquals(plain.getPeriods()[i].getPeriodicFee(), rows[i].getPeriodicFee(), 0);
+                }
+                
+                final List<double[]> expanded = new ArrayList<double[]>();
+                schedule.expand(new ScheduleSink() {
+                    public void period(int period, double payment, double interest, double installment, double periodicFee, double remainingPrincipal) {
+                        expanded.add(new double[] {period, payment, interest, installment, periodicFee, remainingPrincipal});
+                    }
+                });
+                assertEquals(streamed.size(), expanded.size());
+                for(int i = 0; i < streamed.size(); i++) {
+                    for(int j = 0; j < 6; j++) {
+                        assertEquals(streamed.get(i)[j], expanded.get(i)[j], 0);
+                    }
+                }
+                
+                // The interest declines by the installment times the rate within a run. With interest in advance, the
+                // last run is the last period without interest.
+                int run = schedule.size() - (annuity_due ? 2 : 1);
+                double[] last_row = expanded.get(expanded.size() - (annuity_due ? 2 : 1));
+                assertEquals(last_row[2], schedule.getFirstInterest(run) - (schedule.getCount(run) - 1) * schedule.getInterestDecline(run), 0.01);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package no.finansportalen.freecalc.export;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.PriceStorageStep;
+import no.finansportalen.freecalc.freeloan.result.AnnuityLoanResult;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the columnar export of a sweep over products, amounts and loan periods, by reading the file back.
+ * </p>
+ */
+public class QuoteBatchWriterTest {
+    
+    @Test
+    public void testLoanSweep() throws Exception
+    {
+        double[] amounts = new double[25];
+        for(int a = 0; a < amounts.length; a++) {
+            amounts[a] = 100000 + a * 100000;
+        }
+        int[] tenors = {120, 240, 360};
+        
+        File file = File.createTempFile("quotes", ".flqb");
+        file.deleteOnExit();
+        
+        ArrayList<double[]> expected = new ArrayList<double[]>();
+        
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            // A small batch, so the sweep is written in several
+            QuoteBatchWriter writer = new QuoteBatchWriter(out.getChannel(), false, 64);
+            
+            for(int product = 0; product < 3; product++) {
+                for(int tenor : tenors) {
+                    
+                    ArrayList<PriceStorageStep> price_storage = new ArrayList<PriceStorageStep>();
+                    price_storage.add(new PriceStorageStep(3.9 + product / 10.0, 50, 0, 999999));
+                    price_storage.add(new PriceStorageStep(3.6 + product / 10.0, 50, 1000000, Double.MAX_VALUE));
+                    
+                    FreeLoan calc = new FreeLoan();
+                    calc.setNumberOfPeriods(tenor);
+                    calc.setPeriodsPerYear(12);
+                    calc.setFeeProcessing(1500);
+                    calc.setRateThresholds(true);
+                    calc.setPriceStorage(price_storage);
+                    
+                    AnnuityLoanResult[] sweep = calc.annuityLoanSweep(amounts);
+                    
+                    for(int a = 0; a < amounts.length; a++) {
+                        writer.addLoan(product, amounts[a], tenor, sweep[a]);
+                        expected.add(new double[] {product, amounts[a], tenor, sweep[a].getEffectiveInterestRate(), sweep[a].getResidue(), sweep[a].getPaybackPeriodCount(), sweep[a].getRounds()});
+                    }
+                }
+            }
+            
+            writer.close();
+            assertEquals(expected.size(), writer.getRows());
+        } finally {
+            out.close();
+        }
+        
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while(data.hasRemaining() && channel.read(data) >= 0) {
+                // Reading the whole file
+            }
+            data.flip();
+            
+            assertEquals('F', data.get());
+            assertEquals('L', data.get());
+            assertEquals('Q', data.get());
+            assertEquals('B', data.get());
+            assertEquals(1, data.getInt());
+            
+            int columns = data.getInt();
+            int[] types = new int[columns];
+            String[] names = new String[columns];
+            for(int c = 0; c < columns; c++) {
+                types[c] = data.getInt();
+                byte[] name = new byte[data.getInt()];
+                data.get(name);
+                names[c] = new String(name, "US-ASCII");
+            }
+            assertEquals("effectiveRate", names[3]);
+            assertEquals(QuoteBatchWriter.TYPE_INT, types[6]);
+            
+            int row = 0;
+            int rows;
+            
+            while((rows = data.getInt()) > 0) {
+                
+                double[][] batch = new double[columns][rows];
+                
+                for(int c = 0; c < columns; c++) {
+                    for(int r = 0; r < rows; r++) {
+                        if(types[c] == QuoteBatchWriter.TYPE_INT) {
+                            batch[c][r] = data.getInt();
+                        } else if(types[c] == QuoteBatchWriter.TYPE_LONG) {
+                            batch[c][r] = data.getLong();
+                        } else {
+                            batch[c][r] = data.getDouble();
+                        }
+                    }
+                }
+                
+                for(int r = 0; r < rows; r++) {
+                    for(int c = 0; c < 7; c++) {
+                        assertEquals(expected.get(row)[c], batch[c][r], 0);
+                    }
+                    row++;
+                }
+            }
+            
+            assertEquals(expected.size(), row);
+            assertEquals(false, data.hasRemaining());
+        } finally {
+            in.close();
+        }
+    }
+    
+}
@@ -0,0 +1,132 @@
+package no.finansportalen.freecalc.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import no.finansportalen.freecalc.common.SerialLoanPeriod;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.PriceStorageStep;
+import no.finansportalen.freecalc.freeloan.result.SerialLoanResult;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the export of serial loan payment plans, in both layouts, against the periods returned by serialLoan().
+ * </p>
+ */
+public class ScheduleBufferWriterTest {
+    
+    private static final int LOANS = 3;
+    
+    private static final int BLOCK_RECORDS = 100;
+    
+    private static FreeLoan serialLoan(int loan) {
+        ArrayList<PriceStorageStep> price_storage = new ArrayList<PriceStorageStep>();
+        price_storage.add(new PriceStorageStep(3.9 + loan / 10.0, 50, 0, 999999));
+        price_storage.add(new PriceStorageStep(3.6 + loan / 10.0, 50, 1000000, Double.MAX_VALUE));
+        
+        FreeLoan calc = new FreeLoan();
+        calc.setReceived(1500000.0 + loan * 100000);
+        calc.setNumberOfPeriods(240 + loan * 12);
+        calc.setPeriodsPerYear(12);
+        calc.setFeeProcessing(1500);
+        calc.setRateThresholds(true);
+        calc.setPriceStorage(price_storage);
+        return calc;
+    }
+    
+    @Test
+    public void testRows() throws Exception
+    {
+        testExport(false);
+    }
+    
+    @Test
+    public void testColumns() throws Exception
+    {
+        testExport(true);
+    }
+    
+    private void testExport(boolean columnar) throws Exception
+    {
+        File file = File.createTempFile("schedules", ".bin");
+        file.deleteOnExit();
+        
+        SerialLoanPeriod[][] expected = new SerialLoanPeriod[LOANS][];
+        int periods = 0;
+        
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            ScheduleBufferWriter writer = new ScheduleBufferWriter(out.getChannel(), BLOCK_RECORDS, columnar);
+            
+            for(int loan = 0; loan < LOANS; loan++) {
+                SerialLoanResult result = serialLoan(loan).serialLoan();
+                expected[loan] = result.getPeriods();
+                periods += expected[loan].length - 1;
+                
+                writer.setLoan(loan);
+                SerialLoanResult streamed = serialLoan(loan).serialLoan(writer);
+                assertNull(streamed.getPeriods());
+                assertEquals(result.getEffectiveInterestRate(), streamed.getEffectiveInterestRate(), 0);
+            }
+            
+            writer.close();
+            assertEquals(periods, writer.getRecords());
+        } finally {
+            out.close();
+        }
+        
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while(data.hasRemaining() && channel.read(data) >= 0) {
+                // Reading the whole file
+            }
+            
+            int blocks = (periods + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+            assertEquals(columnar ? blocks * (4 + BLOCK_RECORDS * ScheduleBufferWriter.RECORD_BYTES) : periods * ScheduleBufferWriter.RECORD_BYTES, data.capacity());
+            
+            int record = 0;
+            
+            for(int loan = 0; loan < LOANS; loan++) {
+                for(int i = 1; i < expected[loan].length; i++) {
+                    
+                    int block_start = record / BLOCK_RECORDS * (4 + BLOCK_RECORDS * ScheduleBufferWriter.RECORD_BYTES);
+                    int r = record % BLOCK_RECORDS;
+                    
+                    if(columnar) {
+                        assertEquals(Math.min(BLOCK_RECORDS, periods - record + r), data.getInt(block_start));
+                        assertEquals(loan, data.getInt(block_start + 4 + 4 * r));
+                        assertEquals(i, data.getInt(block_start + 4 + 4 * BLOCK_RECORDS + 4 * r));
+                        assertEquals(expected[loan][i].getPayment(), data.getDouble(block_start + 4 + 8 * BLOCK_RECORDS + 8 * r), 0);
+                        assertEquals(expected[loan][i].getInstallment(), data.getDouble(block_start + 4 + 24 * BLOCK_RECORDS + 8 * r), 0);
+                        assertEquals(expected[loan][i].getPeriodicFee(), data.getDouble(block_start + 4 + 32 * BLOCK_RECORDS + 8 * r), 0);
+                    } else {
+                        int start = record * ScheduleBufferWriter.RECORD_BYTES;
+                        assertEquals(loan, data.getInt(start));
+                        assertEquals(i, data.getInt(start + 4));
+                        assertEquals(expected[loan][i].getPayment(), data.getDouble(start + 8), 0);
+                        assertEquals(expected[loan][i].getPayment() - expected[loan][i].getInstallment() - expected[loan][i].getPeriodicFee(), data.getDouble(start + 16), 1e-9);
+                        assertEquals(expected[loan][i].getInstallment(), data.getDouble(start + 24), 0);
+                        assertEquals(expected[loan][i].getPeriodicFee(), data.getDouble(start + 32), 0);
+                    }
+                    
+                    record++;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+}
@@ -1,16 +1,24 @@
 package no.finansportalen.freecalc.freecard;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import no.finansportalen.freecalc.FreeCalcTest;
 import no.finansportalen.freecalc.common.Utils.RoundDirection;
 import no.finansportalen.freecalc.freecard.calc.FreeCard;
 import no.finansportalen.freecalc.freecard.result.FreeCardResult;
+import no.finansportalen.freecalc.freecard.result.MinimumPaymentResult;
 import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException.FreeLoanExceptionType;
 
 import org.junit.Test;
 
@@ -180,6 +188,166 @@ public class FreeCardTest extends FreeCalcTest<JsonProduct, JsonResult> {
     }
     
 
+    @Test
+    public void testMinimumPayments() throws FreeLoanException {
+        FreeCard freeCard = minimumPaymentCard(24, 0, 3.0, 250.0);
+        freeCard.setDueDays(30);
+        MinimumPaymentResult result = freeCard.minimumPayments();
+        
+        // What is paid is the debt with interest and fees, to the rounding of the last payment
+        assertEquals(10000 + result.getTotalInterest() + result.getTotalFees(), result.getTotalPaid(), 0.005);
+        assertEquals(0, result.getTotalFees(), 0);
+        assertEquals(roundedPercent(3, 10000 * 1.02), result.getFirstPayment(), 0);
+        
+        // With interest from the first day and payments at the end of the month, the rate is the nominal one
+        assertEquals((Math.pow(1.02, 12) - 1) * 100, result.getEffectiveRate(), 0.001);
+        
+        // The interest-free days save the interest of the first month and a half
+        freeCard.setInterestFreeDays(45);
+        MinimumPaymentResult interestFree = freeCard.minimumPayments();
+        assertTrue(interestFree.getTotalInterest() < result.getTotalInterest());
+        assertTrue(interestFree.getEffectiveRate() < result.getEffectiveRate());
+        assertEquals(10000 + interestFree.getTotalInterest(), interestFree.getTotalPaid(), 0.005);
+        
+        // Fees are charged until the debt is paid
+        freeCard.setFeePeriod(30);
+        freeCard.setFeeAnnual(300);
+        MinimumPaymentResult fees = freeCard.minimumPayments();
+        assertEquals(30 * fees.getMonths() + 300 * ((fees.getMonths() + 11) / 12), fees.getTotalFees(), 0.000001);
+        assertEquals(10000 + fees.getTotalInterest() + fees.getTotalFees(), fees.getTotalPaid(), 0.005);
+        
+        // A minimum payment below the interest never pays the debt
+        try {
+            minimumPaymentCard(24, 0, 1.0, 0.0).minimumPayments();
+            fail();
+        } catch (FreeLoanException e) {
+            assertEquals(FreeLoanExceptionType.PAYMENT_TOO_SMALL, e.getType());
+        }
+    }
+    
+    
+    @Test
+    public void testMinimumPaymentsDueDays() throws FreeLoanException {
+        FreeCard freeCard = minimumPaymentCard(24, 0, 3.0, 250.0);
+        freeCard.setDueDays(30);
+        MinimumPaymentResult endOfMonth = freeCard.minimumPayments();
+        
+        // The same bills, paid 30 days later
+        freeCard.setDueDays(60);
+        MinimumPaymentResult due = freeCard.minimumPayments();
+        assertEquals(endOfMonth.getMonths(), due.getMonths());
+        assertEquals(endOfMonth.getTotalPaid(), due.getTotalPaid(), 0);
+        
+        // Every bill of 3 %, but at least 250, discounted from a month after it is made
+        double k = Math.pow(1 + due.getEffectiveRate() / 100, -1.0 / 12);
+        double pv = 0;
+        double balance = 10000;
+        for (int month = 1; month <= due.getMonths(); month++) {
+            double bill = balance * 1.02;
+            double payment = Math.min(Math.max(roundedPercent(3, bill), 250), Math.round(bill * 100) / 100.0);
+            pv += payment * Math.pow(k, month + 1);
+            balance = bill - payment;
+        }
+        assertEquals(10000, pv, 0.01);
+        assertTrue(due.getEffectiveRate() < endOfMonth.getEffectiveRate());
+    }
+    
+    
+    @Test
+    public void testMinimumPaymentsCatalogue() throws Exception {
+        
+        // The whole catalogue, one FreeCard per product, sequentially and on all processors
+        final double[][] sequential = new double[products.size()][];
+        for (int i = 0; i < products.size(); i++) {
+            sequential[i] = minimumPaymentOutcome(products.get(i));
+        }
+        
+        final double[][] parallel = new double[products.size()][];
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                final int step = threads;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = first; i < parallel.length; i += step) {
+                            parallel[i] = minimumPaymentOutcome(products.get(i));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        int paid = 0;
+        for (int i = 0; i < products.size(); i++) {
+            assertEquals(sequential[i].length, parallel[i].length);
+            for (int j = 0; j < sequential[i].length; j++) {
+                assertEquals(sequential[i][j], parallel[i][j], 0);
+            }
+            if (sequential[i].length > 1) {
+                paid++;
+                assertTrue(sequential[i][2] > 15000);
+            }
+        }
+        assertTrue(paid > 0);
+    }
+    
+    
+    /**
+     * 15,000 charged as in the government template, on the terms of 'product'. {error number} when the minimum
+     * payments do not pay the debt, otherwise {months, first payment, total paid, effective rate}.
+     */
+    private static double[] minimumPaymentOutcome(JsonProduct product) throws FreeLoanException {
+        double rate = product.getNom_rate_purc();
+        if (product.getRateperiod_purc().equals("mnd")) {
+            rate = rate * 12;
+        }
+        
+        FreeCard freeCard = new FreeCard();
+        freeCard.setReceivedCash(2000);
+        freeCard.setReceivedPurchase(13000);
+        freeCard.setInterestFreeDays(product.getInterestfree_days());
+        freeCard.setFeeAnnual(product.getAn_ff());
+        freeCard.setFeePeriod(product.getPe_ff());
+        freeCard.setRateCash(rate);
+        freeCard.setRatePurchase(rate);
+        freeCard.setMinpayPerc(product.getMinpay_perc());
+        freeCard.setMinpayUnits(product.getMinpay_units());
+        
+        try {
+            MinimumPaymentResult result = freeCard.minimumPayments();
+            return new double[] {result.getMonths(), result.getFirstPayment(), result.getTotalPaid(), result.getEffectiveRate()};
+        } catch (FreeLoanException e) {
+            return new double[] {e.getErrNum()};
+        }
+    }
+    
+    
+    private static FreeCard minimumPaymentCard(double rate, int interestFreeDays, Double minpayPerc, Double minpayUnits) {
+        FreeCard freeCard = new FreeCard();
+        freeCard.setReceivedPurchase(10000);
+        freeCard.setInterestFreeDays(interestFreeDays);
+        freeCard.setRateCash(rate);
+        freeCard.setRatePurchase(rate);
+        freeCard.setMinpayPerc(minpayPerc);
+        freeCard.setMinpayUnits(minpayUnits);
+        return freeCard;
+    }
+    
+    
+    private static double roundedPercent(double percent, double bill) {
+        return Math.round(percent / 100 * bill * 100) / 100.0;
+    }
+    
+
     public void testFreeCard(FreeCardTestInput input, String resultsFile) {
 
         // Not current Finansportalen scope used?
@@ -0,0 +1,563 @@
+package no.finansportalen.freecalc.freeloan;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import no.finansportalen.freecalc.common.Utils;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.calc.PriceStorageStep;
+
+/**
+ * <p>
+ * Differential testing of the calculation modes of FreeLoan: Random, valid loan configurations are made from seeds,
+ * each configuration is calculated by a reference engine (normally the plain FreeLoan path) and by the engines under
+ * test, and the outcomes are compared. The configurations cover balloon, interest-only periods, annuity-due,
+ * 'capitalizationFreq' other than 12, thresholds and segments, period mode, rounding and price lists of one to four
+ * steps.
+ * </p>
+ *
+ * <p>
+ * The seeds are split into one range per processor. A configuration that fails is shrunk: Simpler configurations
+ * (fewer steps, no balloon, shorter loan and so on) are tried, and kept as long as they still fail, so the failure is
+ * reported with the simplest configuration found. The seed of a failure is enough to recreate it, and is written to a
+ * seed file that later test runs replay (readSeeds()).
+ * </p>
+ */
+public class DifferentialTester {
+
+    /**
+     * The error of an engine that threw something else than FreeLoanException
+     */
+    public static final int CRASH = Integer.MIN_VALUE;
+
+    private static final String[] FIELDS = {"effectiveInterestRate", "paybackPeriodCount", "residue"};
+
+
+    /**
+     * One calculation mode. Called from several threads at a time, so every call must make its own FreeLoan
+     * (Configuration.toFreeLoan()).
+     */
+    public interface Engine {
+
+        String getName();
+
+        /**
+         * @return effectiveInterestRate, paybackPeriodCount and residue (or remainder)
+         */
+        double[] calculate(Configuration configuration) throws FreeLoanException;
+    }
+
+
+    private final Engine reference;
+
+    private final Engine[] engines;
+
+    /**
+     * The largest accepted absolute difference from the reference, per field
+     */
+    private final double[] tolerances;
+
+    private final int threads;
+
+
+    public DifferentialTester(Engine reference, Engine[] engines, double[] tolerances) {
+        this(reference, engines, tolerances, Runtime.getRuntime().availableProcessors());
+    }
+
+    public DifferentialTester(Engine reference, Engine[] engines, double[] tolerances, int threads) {
+        this.reference = reference;
+        this.engines = engines;
+        this.tolerances = tolerances;
+        this.threads = threads;
+    }
+
+
+    /**
+     * The configurations of the seeds 'first' to 'first + count - 1'
+     *
+     * @return The failures, shrunk, in the order of the seeds
+     */
+    public List<Failure> run(long first, int count) {
+        long[] seeds = new long[count];
+        for(int i = 0; i < count; i++) {
+            seeds[i] = first + i;
+        }
+        return run(seeds);
+    }
+
+
+    public List<Failure> run(final long[] seeds) {
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        List<Failure> failures = new ArrayList<Failure>();
+
+        try {
+            List<Future<List<Failure>>> futures = new ArrayList<Future<List<Failure>>>();
+            int range = Math.max((seeds.length + threads - 1) / threads, 1);
+
+            for(int from = 0; from < seeds.length; from += range) {
+                final int start = from;
+                final int end = Math.min(from + range, seeds.length);
+
+                futures.add(executor.submit(new Callable<List<Failure>>() {
+
+                    @Override
+                    public List<Failure> call() {
+                        List<Failure> found = new ArrayList<Failure>();
+                        for(int i = start; i < end; i++) {
+                            Failure failure = check(seeds[i]);
+                            if(failure != null) {
+                                found.add(failure);
+                            }
+                        }
+                        return found;
+                    }
+                }));
+            }
+
+            for(Future<List<Failure>> future : futures) {
+                failures.addAll(future.get());
+            }
+
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch(ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        return failures;
+    }
+
+
+    /**
+     * @return The failure of the configuration of 'seed', shrunk, or null if all engines agree with the reference
+     */
+    public Failure check(long seed) {
+
+        Configuration configuration = Configuration.generate(seed);
+
+        String difference = difference(configuration);
+
+        if(difference == null) {
+            return null;
+        }
+
+        Configuration original = configuration;
+
+        // Shrinking: The first simpler configuration that still fails is kept, until none does
+        boolean shrunk = true;
+
+        for(int round = 0; shrunk && round < 1000; round++) {
+            shrunk = false;
+            for(Configuration candidate : configuration.shrinks()) {
+                String candidate_difference = difference(candidate);
+                if(candidate_difference != null) {
+                    configuration = candidate;
+                    difference = candidate_difference;
+                    shrunk = true;
+                    break;
+                }
+            }
+        }
+
+        return new Failure(seed, original, configuration, difference);
+    }
+
+
+    /**
+     * @return A description of the first difference from the reference, or null if there is none
+     */
+    private String difference(Configuration configuration) {
+
+        Outcome expected = outcome(reference, configuration);
+
+        for(Engine engine : engines) {
+
+            Outcome actual = outcome(engine, configuration);
+
+            if(actual.error != expected.error) {
+                return engine.getName() + ": error " + actual.error + ", " + reference.getName() + ": error " + expected.error;
+            }
+
+            if(actual.error == 0) {
+                for(int f = 0; f < FIELDS.length; f++) {
+                    // NaN in both is agreement
+                    if(!(Math.abs(actual.values[f] - expected.values[f]) <= tolerances[f]) && !(Double.isNaN(actual.values[f]) && Double.isNaN(expected.values[f]))) {
+                        return engine.getName() + ": " + FIELDS[f] + " " + actual.values[f] + ", " + reference.getName() + ": " + expected.values[f];
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    private static Outcome outcome(Engine engine, Configuration configuration) {
+        try {
+            return new Outcome(engine.calculate(configuration), 0);
+        } catch(FreeLoanException e) {
+            return new Outcome(null, e.getErrNum());
+        } catch(RuntimeException e) {
+            return new Outcome(null, CRASH);
+        }
+    }
+
+
+    /**
+     * @return The seeds in 'in', one per line. Empty lines and lines starting with '#' are skipped.
+     */
+    public static long[] readSeeds(InputStream in) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        List<Long> seeds = new ArrayList<Long>();
+
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.length() > 0 && !line.startsWith("#")) {
+                    seeds.add(Long.valueOf(line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        long[] result = new long[seeds.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = seeds.get(i);
+        }
+        return result;
+    }
+
+
+    /**
+     * Appends the seeds of 'failures' to 'file', each after a comment with the shrunk configuration and the
+     * difference, so the file can be replayed as a regression fixture
+     */
+    public static void writeSeeds(List<Failure> failures, File file) throws IOException {
+
+        Writer writer = new FileWriter(file, true);
+
+        try {
+            for(Failure failure : failures) {
+                writer.write("# " + failure.getShrunk() + " - " + failure.getDifference() + "\n");
+                writer.write(failure.getSeed() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    private static class Outcome {
+
+        private final double[] values;
+
+        private final int error;
+
+        private Outcome(double[] values, int error) {
+            this.values = values;
+            this.error = error;
+        }
+    }
+
+
+    public static class Failure {
+
+        private final long seed;
+
+        private final Configuration original;
+
+        private final Configuration shrunk;
+
+        private final String difference;
+
+        private Failure(long seed, Configuration original, Configuration shrunk, String difference) {
+            this.seed = seed;
+            this.original = original;
+            this.shrunk = shrunk;
+            this.difference = difference;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        public Configuration getOriginal() {
+            return original;
+        }
+
+        public Configuration getShrunk() {
+            return shrunk;
+        }
+
+        public String getDifference() {
+            return difference;
+        }
+
+        @Override
+        public String toString() {
+            return "seed " + seed + ": " + difference + " - " + shrunk;
+        }
+    }
+
+
+    /**
+     * <p>
+     * A loan configuration. Not changed once made; the shrinks are copies.
+     * </p>
+     */
+    public static class Configuration implements Cloneable {
+
+        private static final int[] PERIODS_PER_YEAR = {1, 2, 4, 12, 24};
+
+        private static final int[] CAPITALIZATION_FREQS = {1, 2, 3, 4, 6, 12};
+
+        private double received;
+        private double balloon;
+        private int numberOfPeriods;
+        private Double firstPayment;
+        private int periodsPerYear;
+        private int capitalizationFreq;
+        private int interestonlyPeriods;
+        private boolean annuityDue;
+        private boolean rateThresholds;
+        private boolean rateSegments;
+        private Utils.RoundDirection roundDirection;
+        private boolean roundToInteger;
+        private double feeProcessing;
+
+        /**
+         * The lower limit, the rate and the periodic fee of each step. The first lower limit is 0.
+         */
+        private double[] lowerLimits;
+        private double[] rates;
+        private double[] fees;
+
+        /**
+         * The upper limit of the last step
+         */
+        private double maxAmount;
+
+
+        public static Configuration generate(long seed) {
+
+            Random random = new Random(seed);
+            Configuration c = new Configuration();
+
+            c.received = 10000 + random.nextInt(10000000);
+            c.periodsPerYear = PERIODS_PER_YEAR[random.nextInt(PERIODS_PER_YEAR.length)];
+            c.capitalizationFreq = random.nextInt(4) == 0 ? CAPITALIZATION_FREQS[random.nextInt(CAPITALIZATION_FREQS.length)] : 12;
+            c.numberOfPeriods = 1 + random.nextInt(30 * c.periodsPerYear);
+            c.balloon = random.nextInt(4) == 0 ? random.nextInt((int) (c.received / 2)) : 0;
+            c.interestonlyPeriods = random.nextInt(4) == 0 ? random.nextInt(c.numberOfPeriods) : 0;
+            c.annuityDue = random.nextInt(4) == 0;
+            c.rateThresholds = random.nextBoolean();
+            c.rateSegments = !c.annuityDue && random.nextInt(3) == 0;
+            c.roundDirection = Utils.RoundDirection.values()[random.nextInt(Utils.RoundDirection.values().length)];
+            c.roundToInteger = random.nextBoolean();
+            c.feeProcessing = random.nextInt(3) == 0 ? 0 : random.nextInt(5000);
+
+            int steps = 1 + random.nextInt(4);
+            c.lowerLimits = new double[steps];
+            c.rates = new double[steps];
+            c.fees = new double[steps];
+
+            for(int s = 0; s < steps; s++) {
+                c.lowerLimits[s] = s == 0 ? 0 : c.lowerLimits[s - 1] + 1000 + random.nextInt(3000000);
+                c.rates[s] = random.nextInt(1500) / 100.0;
+                c.fees[s] = random.nextInt(3) == 0 ? 0 : random.nextInt(100);
+            }
+
+            c.maxAmount = random.nextInt(10) == 0 ? c.lowerLimits[steps - 1] + random.nextInt(5000000) : Double.MAX_VALUE;
+
+            // Period mode: A first payment a little above or below the interest of the loan
+            if(!c.rateSegments && random.nextInt(5) == 0) {
+                double interest = c.received * c.rates[steps - 1] / 100 / c.periodsPerYear;
+                c.firstPayment = Double.valueOf(Math.floor(interest * (0.8 + random.nextDouble() * 2) + c.received / (1 + random.nextInt(400))));
+            }
+
+            return c;
+        }
+
+
+        public FreeLoan toFreeLoan() {
+
+            ArrayList<PriceStorageStep> price_storage = new ArrayList<PriceStorageStep>();
+
+            for(int s = 0; s < lowerLimits.length; s++) {
+                double upper = s == lowerLimits.length - 1 ? maxAmount : lowerLimits[s + 1] - 1;
+                price_storage.add(new PriceStorageStep(rates[s], fees[s], lowerLimits[s], upper));
+            }
+
+            FreeLoan calc = new FreeLoan();
+            calc.setReceived(received);
+            calc.setBalloon(balloon);
+            if(firstPayment != null) {
+                calc.setFirstPayment(firstPayment);
+            } else {
+                calc.setNumberOfPeriods(numberOfPeriods);
+            }
+            calc.setPeriodsPerYear(periodsPerYear);
+            calc.setCapitalizationFreq(capitalizationFreq);
+            calc.setInterestonlyPeriods(interestonlyPeriods);
+            calc.setInterestonlyPeriodsMax(interestonlyPeriods);
+            calc.setAnnuityDue(annuityDue);
+            calc.setRateThresholds(rateThresholds);
+            calc.setRateSegments(rateSegments);
+            calc.setRoundDirection(roundDirection);
+            calc.setRoundToInteger(roundToInteger);
+            calc.setFeeProcessing(feeProcessing);
+            calc.setPriceStorage(price_storage);
+            return calc;
+        }
+
+
+        /**
+         * @return Simpler configurations, the most simplifying first
+         */
+        public List<Configuration> shrinks() {
+
+            List<Configuration> shrinks = new ArrayList<Configuration>();
+
+            if(lowerLimits.length > 1) {
+                Configuration c = copy();
+                c.lowerLimits = Arrays.copyOf(lowerLimits, lowerLimits.length - 1);
+                c.rates = Arrays.copyOf(rates, rates.length - 1);
+                c.fees = Arrays.copyOf(fees, fees.length - 1);
+                shrinks.add(c);
+            }
+            if(firstPayment != null) {
+                Configuration c = copy();
+                c.firstPayment = null;
+                shrinks.add(c);
+            }
+            if(rateSegments) {
+                Configuration c = copy();
+                c.rateSegments = false;
+                shrinks.add(c);
+            }
+            if(rateThresholds) {
+                Configuration c = copy();
+                c.rateThresholds = false;
+                shrinks.add(c);
+            }
+            if(annuityDue) {
+                Configuration c = copy();
+                c.annuityDue = false;
+                shrinks.add(c);
+            }
+            if(balloon != 0) {
+                Configuration c = copy();
+                c.balloon = 0;
+                shrinks.add(c);
+            }
+            if(interestonlyPeriods != 0) {
+                Configuration c = copy();
+                c.interestonlyPeriods = 0;
+                shrinks.add(c);
+            }
+            if(capitalizationFreq != 12) {
+                Configuration c = copy();
+                c.capitalizationFreq = 12;
+                shrinks.add(c);
+            }
+            if(periodsPerYear != 12) {
+                Configuration c = copy();
+                c.periodsPerYear = 12;
+                shrinks.add(c);
+            }
+            if(feeProcessing != 0) {
+                Configuration c = copy();
+                c.feeProcessing = 0;
+                shrinks.add(c);
+            }
+            for(int s = 0; s < fees.length; s++) {
+                if(fees[s] != 0) {
+                    Configuration c = copy();
+                    c.fees = new double[fees.length];
+                    shrinks.add(c);
+                    break;
+                }
+            }
+            if(maxAmount != Double.MAX_VALUE) {
+                Configuration c = copy();
+                c.maxAmount = Double.MAX_VALUE;
+                shrinks.add(c);
+            }
+            if(roundDirection != Utils.RoundDirection.NORMAL || roundToInteger) {
+                Configuration c = copy();
+                c.roundDirection = Utils.RoundDirection.NORMAL;
+                c.roundToInteger = false;
+                shrinks.add(c);
+            }
+            if(numberOfPeriods > 1 && firstPayment == null) {
+                Configuration c = copy();
+                c.numberOfPeriods = numberOfPeriods / 2;
+                c.interestonlyPeriods = Math.min(interestonlyPeriods, c.numberOfPeriods - 1);
+                shrinks.add(c);
+            }
+            if(received >= 20000 && firstPayment == null) {
+                Configuration c = copy();
+                c.received = Math.floor(received / 20000) * 10000;
+                c.balloon = Math.min(balloon, Math.floor(c.received / 2));
+                shrinks.add(c);
+            }
+
+            return Collections.unmodifiableList(shrinks);
+        }
+
+
+        private Configuration copy() {
+            try {
+                return (Configuration) clone();
+            } catch(CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public double getReceived() {
+            return received;
+        }
+
+        public double getBalloon() {
+            return balloon;
+        }
+
+        public int getSteps() {
+            return lowerLimits.length;
+        }
+
+        @Override
+        public String toString() {
+            return "received " + received + ", balloon " + balloon + ", " + (firstPayment != null ? "firstPayment " + firstPayment : "numberOfPeriods " + numberOfPeriods)
+                    + ", periodsPerYear " + periodsPerYear + ", capitalizationFreq " + capitalizationFreq + ", interestonlyPeriods " + interestonlyPeriods
+                    + ", annuityDue " + annuityDue + ", rateThresholds " + rateThresholds + ", rateSegments " + rateSegments + ", " + roundDirection
+                    + (roundToInteger ? " to integer" : "") + ", feeProcessing " + feeProcessing + ", lowerLimits " + Arrays.toString(lowerLimits)
+                    + ", rates " + Arrays.toString(rates) + ", fees " + Arrays.toString(fees) + ", maxAmount " + maxAmount;
+        }
+    }
+
+}
@@ -1,19 +1,34 @@
 package no.finansportalen.freecalc.freeloan;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import no.finansportalen.freecalc.FreeCalcTest;
 import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
+import no.finansportalen.freecalc.common.DayCount;
+import no.finansportalen.freecalc.common.Deadline;
+import no.finansportalen.freecalc.common.EpochDays;
+import no.finansportalen.freecalc.common.RoundingPolicy;
+import no.finansportalen.freecalc.common.ScheduleSink;
 import no.finansportalen.freecalc.common.SerialLoanPeriod;
 import no.finansportalen.freecalc.common.Utils;
 import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
 import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.calc.LoanRanking;
 import no.finansportalen.freecalc.freeloan.calc.PriceStorageStep;
 import no.finansportalen.freecalc.freeloan.result.AnnuityLoanResult;
+import no.finansportalen.freecalc.freeloan.result.AnnuityLoanSensitivity;
 import no.finansportalen.freecalc.freeloan.result.FreeLoanResult;
+import no.finansportalen.freecalc.freeloan.result.LoanRankingResult;
 import no.finansportalen.freecalc.freeloan.result.SerialLoanResult;
 
 import org.junit.Test;
@@ -626,6 +641,534 @@ public class FreeLoanTest extends FreeCalcTest<JsonProduct, JsonResult> {
     }
     
     
+    @Test
+    public void testRoundToIntegerKeepsCurrency() throws FreeLoanException
+    {
+        
+        // Yen have no minor unit: Turning integer rounding off keeps the payments whole
+        FreeLoan calc = LoanFixtures.twoStepLoan(2000000, 240, 0, 1500, 50, false, false);
+        calc.setRoundingPolicy(RoundingPolicy.forCurrency("JPY"));
+        calc.setRoundToInteger(true);
+        calc.setRoundToInteger(false);
+        
+        double payment = LoanFixtures.firstPayment(calc.annuityLoan().getPeriods());
+        assertEquals(Math.rint(payment), payment, 0);
+    }
+    
+    
+    @Test
+    public void testAnnuityInverse() throws FreeLoanException
+    {
+        
+        double received = 1500000;
+        int numberofperiods = 240;
+        
+        for(JsonProduct product : products) {
+            
+            FreeLoan calc = prepareCalc(received, 0, numberofperiods, null, 12, 0, false, Utils.RoundDirection.NORMAL, false, false, false, true, false, Utils.Accuracy.NORMAL, product);
+            
+            if(calc == null) {
+                continue;
+            }
+            
+            AnnuityLoanResult result;
+            try {
+                result = calc.annuityLoan();
+            } catch(FreeLoanException e) {
+                continue;
+            }
+            
+            // The first payment per calculation period, and in the unit of 'firstPayment'
+            double period_payment = LoanFixtures.firstPayment(result.getPeriods());
+            double payment = period_payment / emptyToZero(product.getKap_periode());
+            
+            // The amount itself fits the payment, so the biggest loan is at least as big
+            double maxReceived = calc.maxReceivedForPayment(payment);
+            assertTrue(maxReceived >= received);
+            calc.setReceived(maxReceived);
+            assertTrue(LoanFixtures.firstPayment(calc.annuityLoan().getPeriods()) <= period_payment + 0.000001);
+            
+            // ..and so does the number of periods, but not one period less
+            calc.setReceived(received);
+            int periods_for_payment = calc.periodsForPayment(payment);
+            assertTrue(periods_for_payment <= numberofperiods);
+            calc.setNumberOfPeriods(periods_for_payment - 1);
+            assertTrue(LoanFixtures.firstPayment(calc.annuityLoan().getPeriods()) > period_payment);
+            
+            // A level payment with the same effective rate is the annuity, when there is only one interval
+            if(result.getPeriods()[1].getNumberOfTerms() == numberofperiods) {
+                calc.setNumberOfPeriods(numberofperiods);
+                assertEquals(payment, calc.paymentForEffectiveRate(result.getEffectiveInterestRate()), 0.011);
+            }
+        }
+    }
+    
+    
+    @Test
+    public void testAnnuitySensitivity() throws FreeLoanException
+    {
+        
+        // Plain, annuity-due, thresholds with balloon and interest-only periods
+        boolean[][] variants = {{false, false}, {true, false}, {false, true}};
+        
+        for(boolean[] variant : variants) {
+            
+            boolean annuity_due = variant[0];
+            boolean rate_thresholds = variant[1];
+            
+            AnnuityLoanSensitivity sensitivity = LoanFixtures.twoStepLoan(2000000, 240, 0, 1500, 50, annuity_due, rate_thresholds).annuityLoanSensitivity();
+            
+            // Central differences. The bumps must be big enough to make the rounding of the payments insignificant
+            double rate = (LoanFixtures.twoStepLoan(2000000, 240, 0.01, 1500, 50, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()
+                    - LoanFixtures.twoStepLoan(2000000, 240, -0.01, 1500, 50, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()) / 0.02;
+            double fee = (LoanFixtures.twoStepLoan(2000000, 240, 0, 2500, 50, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()
+                    - LoanFixtures.twoStepLoan(2000000, 240, 0, 500, 50, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()) / 2000;
+            double periodic_fee = (LoanFixtures.twoStepLoan(2000000, 240, 0, 1500, 60, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()
+                    - LoanFixtures.twoStepLoan(2000000, 240, 0, 1500, 40, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()) / 20;
+            double received = (LoanFixtures.twoStepLoan(2001000, 240, 0, 1500, 50, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()
+                    - LoanFixtures.twoStepLoan(1999000, 240, 0, 1500, 50, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()) / 2000;
+            
+            assertEquals(rate, sensitivity.getRateDerivative(), Math.abs(rate) * 0.01);
+            assertEquals(fee, sensitivity.getFeeDerivative(), Math.abs(fee) * 0.01);
+            assertEquals(periodic_fee, sensitivity.getPeriodicFeeDerivative(), Math.abs(periodic_fee) * 0.01);
+            assertEquals(received, sensitivity.getReceivedDerivative(), Math.abs(received) * 0.02);
+            
+            // The loan time can only change by whole periods
+            if(!rate_thresholds) {
+                double periods = (LoanFixtures.twoStepLoan(2000000, 241, 0, 1500, 50, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()
+                        - LoanFixtures.twoStepLoan(2000000, 239, 0, 1500, 50, annuity_due, rate_thresholds).annuityLoan().getEffectiveInterestRate()) / 2;
+                assertEquals(periods, sensitivity.getPeriodsDerivative(), Math.abs(periods) * 0.02);
+            }
+        }
+    }
+    
+    
+    @Test
+    public void testAnnuitySweep() throws FreeLoanException
+    {
+        
+        double[] amounts = new double[30];
+        for(int a = 0; a < amounts.length; a++) {
+            amounts[a] = 50000 + a * 200000;
+        }
+        
+        for(boolean rate_segments : new boolean[] {false, true}) {
+            
+            ArrayList<PriceStorageStep> price_storage = new ArrayList<PriceStorageStep>();
+            price_storage.add(new PriceStorageStep(3.9, 50, 0, 999999));
+            price_storage.add(new PriceStorageStep(3.6, 50, 1000000, 5000000));
+            
+            FreeLoan calc = new FreeLoan();
+            calc.setNumberOfPeriods(240);
+            calc.setPeriodsPerYear(12);
+            calc.setFeeProcessing(1500);
+            calc.setRateThresholds(true);
+            calc.setRateSegments(rate_segments);
+            calc.setPriceStorage(price_storage);
+            
+            AnnuityLoanResult[] sweep = calc.annuityLoanSweep(amounts);
+            
+            int sweep_rounds = 0;
+            int single_rounds = 0;
+            
+            for(int a = 0; a < amounts.length; a++) {
+                
+                calc.setReceived(amounts[a]);
+                
+                try {
+                    AnnuityLoanResult single = calc.annuityLoan();
+                    assertEquals(single.getEffectiveInterestRate(), sweep[a].getEffectiveInterestRate(), 1e-8);
+                    assertEquals(LoanFixtures.firstPayment(single.getPeriods()), LoanFixtures.firstPayment(sweep[a].getPeriods()), 0);
+                    sweep_rounds += sweep[a].getRounds();
+                    single_rounds += single.getRounds();
+                } catch (FreeLoanException e) {
+                    assertEquals(FreeLoanException.FreeLoanExceptionType.NO_SEGMENT_FOUND, e.getType());
+                    assertNull(sweep[a]);
+                }
+            }
+            
+            // Above the highest segment
+            assertNull(sweep[amounts.length - 1]);
+            
+            // Each amount starts from the solution of the previous one
+            assertTrue(sweep_rounds < single_rounds);
+        }
+    }
+    
+    
+    @Test
+    public void testAnnuitySweepGap() throws FreeLoanException
+    {
+        
+        // The price list has a gap between 999,999 and 1,000,000. With the processing fee, 998,499.50 falls in it.
+        double[] amounts = {500000, 998499.5, 998500.5, 1200000, 2000000};
+        
+        FreeLoan calc = LoanFixtures.twoStepLoan(0, 240, 0, 1500, 50, false, false);
+        calc.setRateThresholds(true);
+        
+        AnnuityLoanResult[] sweep = calc.annuityLoanSweep(amounts);
+        
+        assertNull(sweep[1]);
+        
+        // The amounts after the gap are computed as one by one
+        for(int a : new int[] {0, 2, 3, 4}) {
+            calc.setReceived(amounts[a]);
+            assertEquals(calc.annuityLoan().getEffectiveInterestRate(), sweep[a].getEffectiveInterestRate(), 1e-8);
+        }
+    }
+    
+    
+    @Test
+    public void testLoanRanking() throws FreeLoanException
+    {
+        
+        int size = 10;
+        
+        ArrayList<FreeLoan> candidates = new ArrayList<FreeLoan>();
+        ArrayList<Double> rates = new ArrayList<Double>();
+        
+        for(JsonProduct product : products) {
+            
+            FreeLoan calc = prepareCalc(1500000, 0, 240, null, 12, 0, false, Utils.RoundDirection.NORMAL, false, false, false, true, false, Utils.Accuracy.NORMAL, product);
+            
+            if(calc == null) {
+                continue;
+            }
+            
+            candidates.add(calc);
+            
+            // Brute force on a separate loan
+            FreeLoan check = prepareCalc(1500000, 0, 240, null, 12, 0, false, Utils.RoundDirection.NORMAL, false, false, false, true, false, Utils.Accuracy.NORMAL, product);
+            try {
+                double rate = check.annuityLoan().getEffectiveInterestRate();
+                rates.add(rate);
+                assertTrue(check.effectiveRateLowerBound() <= rate + 0.001);
+            } catch(FreeLoanException e) {
+                continue;
+            }
+        }
+        
+        LoanRankingResult ranking = new LoanRanking(size).rank(candidates.toArray(new FreeLoan[candidates.size()]));
+        
+        java.util.Collections.sort(rates);
+        
+        assertEquals(size, ranking.getResults().length);
+        for(int i = 0; i < size; i++) {
+            assertEquals(rates.get(i), ranking.getResults()[i].getEffectiveInterestRate(), 1e-8);
+        }
+        
+        // Most products are not computed at all
+        assertTrue(ranking.getSkipped() > 0);
+        assertTrue(ranking.getSolved() < rates.size());
+    }
+    
+    
+    @Test
+    public void testMaxRateError() throws FreeLoanException
+    {
+        
+        // Half a basis point is enough when the rate is shown with two decimals
+        double max_rate_error = 0.5;
+        
+        int budget_rounds = 0;
+        int default_rounds = 0;
+        
+        for(JsonProduct product : products) {
+            
+            for(boolean serial : new boolean[] {false, true}) {
+                
+                FreeLoan calc = prepareCalc(1500000, 0, 240, null, 12, 0, false, Utils.RoundDirection.NORMAL, false, false, false, true, false, Utils.Accuracy.EXTREMELY_ACCURATE, product);
+                
+                if(calc == null) {
+                    continue;
+                }
+                
+                FreeLoanResult<?> exact;
+                try {
+                    exact = serial ? calc.serialLoan() : calc.annuityLoan();
+                } catch(FreeLoanException e) {
+                    continue;
+                }
+                
+                calc.setMaxRateError(max_rate_error);
+                FreeLoanResult<?> budget = serial ? calc.serialLoan() : calc.annuityLoan();
+                
+                assertEquals(exact.getEffectiveInterestRate(), budget.getEffectiveInterestRate(), max_rate_error / 100);
+                assertTrue(budget.getRounds() <= exact.getRounds());
+                
+                budget_rounds += budget.getRounds();
+                default_rounds += exact.getRounds();
+            }
+        }
+        
+        assertTrue(budget_rounds < default_rounds);
+    }
+    
+    
+    @Test
+    public void testDeadline() throws FreeLoanException
+    {
+        
+        FreeLoan calc = LoanFixtures.twoStepLoan(1500000, 240, 0, 1500, 50, false, false);
+        
+        Deadline deadline = Deadline.never();
+        calc.setDeadline(deadline);
+        double er = calc.annuityLoan().getEffectiveInterestRate();
+        assertFalse(deadline.isExpired());
+        
+        // Cancelled from another thread, for instance
+        deadline.cancel();
+        
+        for(boolean serial : new boolean[] {false, true}) {
+            try {
+                if(serial) {
+                    calc.serialLoan();
+                } else {
+                    calc.annuityLoan();
+                }
+                fail("The deadline was cancelled");
+            } catch(FreeLoanException e) {
+                assertEquals(FreeLoanException.FreeLoanExceptionType.DEADLINE_EXCEEDED, e.getType());
+            }
+        }
+        
+        assertTrue(Deadline.after(0).isExpired());
+        calc.setDeadline(Deadline.after(60000));
+        assertEquals(er, calc.annuityLoan().getEffectiveInterestRate(), 0);
+        
+        // A payment just above the interest gives a serial loan of hundreds of thousands of years
+        calc = LoanFixtures.twoStepLoan(1000000, 240, 0, 0, 0, false, false);
+        calc.setFirstPayment(1000000 * 3.9 / 1200 + 0.5);
+        try {
+            calc.serialLoan();
+            fail("More periods than the maximum");
+        } catch(FreeLoanException e) {
+            assertEquals(FreeLoanException.FreeLoanExceptionType.TOO_MANY_PERIODS, e.getType());
+        }
+        
+        calc.setMaxCalculationPeriods(Integer.MAX_VALUE);
+        calc.setFirstPayment(1000000 * 3.9 / 1200 + 50);
+        assertTrue(calc.serialLoan().getPaybackPeriodCount() > FreeLoan.DEFAULT_MAX_CALCULATION_PERIODS);
+    }
+    
+    
+    @Test
+    public void testParity()
+    {
+        // The settings of testAnnuityBulk2 and testSerialBulk2, replayed on all processors
+        ParityRunner runner = new ParityRunner(products);
+        
+        ParityRunner.Report annuity = runner.run(new ParityRunner.Engine() {
+            
+            @Override
+            public FreeLoanResult<?> calculate(JsonProduct product) throws FreeLoanException {
+                FreeLoan calc = prepareCalc(4500000, 200, 240, null, 24, 2, false, Utils.RoundDirection.UP, true,
+                        false, false, true, true, Utils.Accuracy.NORMAL, product);
+                return calc == null ? null : calc.annuityLoan();
+            }
+        }, getExpectedResults("annuityLoanJSResultsDiffParams1.json"));
+        
+        assertEquals(0, annuity.getUnmatched());
+        assertEquals(0, annuity.getErrorMismatches());
+        assertTrue(annuity.getCompared() > 0);
+        assertEquals(0, annuity.max(ParityRunner.EFFECTIVE_INTEREST_RATE), 0.00000001);
+        assertEquals(0, annuity.max(ParityRunner.RESIDUE), 0.0000001);
+        assertEquals(0, annuity.max(ParityRunner.PAYMENT), 0.0001);
+        assertTrue(annuity.percentile(ParityRunner.EFFECTIVE_INTEREST_RATE, 50) <= annuity.max(ParityRunner.EFFECTIVE_INTEREST_RATE));
+        
+        ParityRunner.Report serial = runner.run(new ParityRunner.Engine() {
+            
+            @Override
+            public FreeLoanResult<?> calculate(JsonProduct product) throws FreeLoanException {
+                FreeLoan calc = prepareCalc(89967890, 50, 45, null, 10, 2, true, Utils.RoundDirection.UP, true,
+                        false, true, true, false, Utils.Accuracy.EXTREMELY_ACCURATE, product);
+                return calc == null ? null : calc.serialLoan();
+            }
+        }, getExpectedResults("serialLoanJSResultsDiffParams1.json"));
+        
+        assertEquals(0, serial.getUnmatched());
+        assertEquals(0, serial.getErrorMismatches());
+        assertEquals(0, serial.max(ParityRunner.EFFECTIVE_INTEREST_RATE), 0.00000001);
+        assertEquals(0, serial.max(ParityRunner.PAYBACK_PERIOD_COUNT), 0.00000001);
+        assertEquals(0, serial.max(ParityRunner.PAYMENT), 0.0001);
+    }
+    
+    
+    @Test
+    public void testDifferential() throws Exception
+    {
+        DifferentialTester.Engine annuityLoan = new DifferentialTester.Engine() {
+            
+            public String getName() {
+                return "annuityLoan";
+            }
+            
+            public double[] calculate(DifferentialTester.Configuration configuration) throws FreeLoanException {
+                return annuityOutcome(configuration.toFreeLoan().annuityLoan());
+            }
+        };
+        
+        // The amount starts from the solution of a smaller one, when the smaller one has a solution
+        DifferentialTester.Engine annuityLoanSweep = new DifferentialTester.Engine() {
+            
+            public String getName() {
+                return "annuityLoanSweep";
+            }
+            
+            public double[] calculate(DifferentialTester.Configuration configuration) throws FreeLoanException {
+                double received = configuration.getReceived();
+                double[] amounts = {Math.floor(received * 0.9), received};
+                
+                FreeLoan smaller = configuration.toFreeLoan();
+                smaller.setReceived(amounts[0]);
+                try {
+                    smaller.annuityLoan();
+                } catch(FreeLoanException e) {
+                    amounts = new double[] {received};
+                }
+                
+                AnnuityLoanResult result = configuration.toFreeLoan().annuityLoanSweep(amounts)[amounts.length - 1];
+                if(result == null) {
+                    throw new FreeLoanException(FreeLoanException.FreeLoanExceptionType.NO_SEGMENT_FOUND);
+                }
+                return annuityOutcome(result);
+            }
+        };
+        
+        DifferentialTester.Engine maxRateError = new DifferentialTester.Engine() {
+            
+            public String getName() {
+                return "maxRateError";
+            }
+            
+            public double[] calculate(DifferentialTester.Configuration configuration) throws FreeLoanException {
+                FreeLoan calc = configuration.toFreeLoan();
+                calc.setMaxRateError(0.01);
+                return annuityOutcome(calc.annuityLoan());
+            }
+        };
+        
+        // 0.01 basis points is 0.0001 percentage points
+        DifferentialTester annuity = new DifferentialTester(annuityLoan, new DifferentialTester.Engine[] {annuityLoanSweep, maxRateError},
+                new double[] {0.0001, 0.00000001, 0.0000001});
+        
+        assertEquals("[]", annuity.run(1, 3000).toString());
+        assertEquals("[]", annuity.run(DifferentialTester.readSeeds(FreeLoanTest.class.getResourceAsStream("/freeloan/differentialSeeds.txt"))).toString());
+        
+        DifferentialTester.Engine serialLoan = new DifferentialTester.Engine() {
+            
+            public String getName() {
+                return "serialLoan";
+            }
+            
+            public double[] calculate(DifferentialTester.Configuration configuration) throws FreeLoanException {
+                SerialLoanResult result = configuration.toFreeLoan().serialLoan();
+                return new double[] {result.getEffectiveInterestRate(), result.getPaybackPeriodCount(), result.getRemainder()};
+            }
+        };
+        
+        DifferentialTester.Engine streamedSerialLoan = new DifferentialTester.Engine() {
+            
+            public String getName() {
+                return "serialLoan(ScheduleSink)";
+            }
+            
+            public double[] calculate(DifferentialTester.Configuration configuration) throws FreeLoanException {
+                SerialLoanResult result = configuration.toFreeLoan().serialLoan(new ScheduleSink() {
+                    
+                    public void period(int period, double payment, double interest, double installment, double periodicFee, double remainingPrincipal) {
+                    }
+                });
+                return new double[] {result.getEffectiveInterestRate(), result.getPaybackPeriodCount(), result.getRemainder()};
+            }
+        };
+        
+        DifferentialTester serial = new DifferentialTester(serialLoan, new DifferentialTester.Engine[] {streamedSerialLoan},
+                new double[] {0, 0, 0});
+        
+        assertEquals("[]", serial.run(1, 1000).toString());
+        
+        // An engine that is wrong with a balloon: The failures are shrunk to one step and nothing else but the balloon
+        DifferentialTester.Engine wrongBalloon = new DifferentialTester.Engine() {
+            
+            public String getName() {
+                return "wrongBalloon";
+            }
+            
+            public double[] calculate(DifferentialTester.Configuration configuration) throws FreeLoanException {
+                AnnuityLoanResult result = configuration.toFreeLoan().annuityLoan();
+                double wrong = configuration.getBalloon() > 0 ? 1 : 0;
+                return new double[] {result.getEffectiveInterestRate() + wrong, result.getPaybackPeriodCount(), result.getResidue()};
+            }
+        };
+        
+        List<DifferentialTester.Failure> failures = new DifferentialTester(annuityLoan, new DifferentialTester.Engine[] {wrongBalloon},
+                new double[] {0.0001, 0.00000001, 0.0000001}).run(1, 200);
+        
+        assertTrue(failures.size() > 0);
+        for(DifferentialTester.Failure failure : failures) {
+            assertTrue(failure.getShrunk().getBalloon() > 0);
+            assertEquals(1, failure.getShrunk().getSteps());
+        }
+        
+        File seeds = File.createTempFile("differentialSeeds", ".txt");
+        seeds.deleteOnExit();
+        DifferentialTester.writeSeeds(failures, seeds);
+        
+        long[] written = DifferentialTester.readSeeds(new FileInputStream(seeds));
+        assertEquals(failures.size(), written.length);
+        assertEquals(failures.get(0).getSeed(), written[0]);
+    }
+    
+    
+    @Test
+    public void testStartDate() throws FreeLoanException
+    {
+        int start = EpochDays.of(2024, 1, 15);
+        
+        for(boolean serial : new boolean[] {false, true}) {
+            for(boolean annuity_due : new boolean[] {false, true}) {
+                FreeLoan calc = LoanFixtures.twoStepLoan(2000000, 240, 0, 950, 50, annuity_due, false);
+                double undated = serial ? calc.serialLoan().getEffectiveInterestRate() : calc.annuityLoan().getEffectiveInterestRate();
+                
+                // 30/360: Monthly payments on the 15th are exactly 1/12 year apart, as without dates
+                calc.setStartDate(start);
+                calc.setDayCount(DayCount.THIRTY_360);
+                double thirty = serial ? calc.serialLoan().getEffectiveInterestRate() : calc.annuityLoan().getEffectiveInterestRate();
+                
+                assertEquals(undated, thirty, 0.0000001);
+                
+                // Actual days: Close, but not the same
+                calc.setDayCount(DayCount.ACT_365);
+                double actual = serial ? calc.serialLoan().getEffectiveInterestRate() : calc.annuityLoan().getEffectiveInterestRate();
+                
+                assertEquals(undated, actual, 0.01);
+                assertTrue(Math.abs(undated - actual) > 0.0000001);
+            }
+        }
+        
+        // The effective rate on dates discounts the payments to the amount received
+        FreeLoan calc = LoanFixtures.twoStepLoan(2000000, 24, 0, 0, 0, false, false);
+        calc.setStartDate(start);
+        AnnuityLoanResult result = calc.annuityLoan();
+        
+        double payment = LoanFixtures.firstPayment(result.getPeriods());
+        double v = 1 / (1 + result.getEffectiveInterestRate() / 100);
+        double pv = result.getResidue() * Math.pow(v, (EpochDays.of(2026, 1, 15) - start) / 365.0);
+        
+        for(int i = 1; i <= 24; i++) {
+            pv += payment * Math.pow(v, (EpochDays.plusMonths(start, i) - start) / 365.0);
+        }
+        
+        assertEquals(2000000, pv, 0.01);
+    }
+    
+    
+    private static double[] annuityOutcome(AnnuityLoanResult result) {
+        return new double[] {result.getEffectiveInterestRate(), result.getPaybackPeriodCount(), result.getResidue()};
+    }
+    
+    
     private static int emptyToZero(Integer number) {
         return number == null ? 0 : number;
     }
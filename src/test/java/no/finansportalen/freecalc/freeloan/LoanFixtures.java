@@ -0,0 +1,55 @@
+package no.finansportalen.freecalc.freeloan;
+
+import java.util.ArrayList;
+
+import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.PriceStorageStep;
+
+/**
+ * <p>
+ * Loans set up in code, for the tests that do not run over the products of the JSON fixtures.
+ * </p>
+ */
+public class LoanFixtures {
+
+    /**
+     * A loan over a price list of two steps: 3.9% up to 999,999 and 3.6% from 1,000,000, both shifted by 'rate_shift'.
+     * With 'rate_thresholds', the loan also has a balloon of 100,000 and 12 interest-only periods.
+     */
+    public static FreeLoan twoStepLoan(double received, int numberofperiods, double rate_shift, double fee_processing,
+            double periodic_fee, boolean annuity_due, boolean rate_thresholds) {
+
+        ArrayList<PriceStorageStep> price_storage = new ArrayList<PriceStorageStep>();
+        price_storage.add(new PriceStorageStep(3.9 + rate_shift, periodic_fee, 0, 999999));
+        price_storage.add(new PriceStorageStep(3.6 + rate_shift, periodic_fee, 1000000, Double.MAX_VALUE));
+
+        FreeLoan calc = new FreeLoan();
+        calc.setReceived(received);
+        calc.setNumberOfPeriods(numberofperiods);
+        calc.setPeriodsPerYear(12);
+        calc.setAnnuityDue(annuity_due);
+        calc.setRateThresholds(rate_thresholds);
+        calc.setFeeProcessing(fee_processing);
+        calc.setPriceStorage(price_storage);
+        if(rate_thresholds) {
+            calc.setBalloon(100000);
+            calc.setInterestonlyPeriods(12);
+            calc.setInterestonlyPeriodsMax(24);
+        }
+        return calc;
+    }
+
+
+    /**
+     * The first payment, fees included, is in the highest interval with any terms
+     */
+    public static double firstPayment(AnnuityLoanPeriod[] periods) {
+        int i = periods.length - 1;
+        while(periods[i].getNumberOfTerms() == 0) {
+            i--;
+        }
+        return periods[i].getPayment() + periods[i].getPeriodicFee();
+    }
+
+}
@@ -0,0 +1,63 @@
+package no.finansportalen.freecalc.freeloan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.calc.MonteCarloSimulation;
+import no.finansportalen.freecalc.freeloan.calc.RateScenario;
+import no.finansportalen.freecalc.freeloan.calc.RateScenarioEngine;
+import no.finansportalen.freecalc.freeloan.calc.ShortRateModel;
+import no.finansportalen.freecalc.freeloan.result.MonteCarloResult;
+import no.finansportalen.freecalc.freeloan.result.RateScenarioResult;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing MonteCarloSimulation: Paths without volatility, merged ranges of paths and the spread around the unchanged loan.
+ * </p>
+ */
+public class MonteCarloSimulationTest {
+
+    @Test
+    public void testMonteCarlo() throws FreeLoanException
+    {
+        
+        for(boolean serial : new boolean[] {false, true}) {
+            
+            RateScenarioEngine engine = LoanFixtures.twoStepLoan(2000000, 240, 0, 1500, 50, false, false).rateScenarioEngine(serial);
+            RateScenarioResult unchanged = engine.run(new RateScenario[] {RateScenario.parallelShift(0)});
+            
+            // Without volatility, and starting at the mean, all paths are the unchanged loan
+            MonteCarloResult flat = new MonteCarloSimulation(engine, ShortRateModel.vasicek(3, 0.5, 3, 0), 1).run(100);
+            assertEquals(unchanged.getTotalCost()[0], flat.getTotalCost().quantile(0.5), 0.001);
+            assertEquals(unchanged.getEffectiveInterestRate()[0], flat.getEffectiveInterestRate().quantile(0.99), 0.001);
+            
+            for(ShortRateModel model : new ShortRateModel[] {ShortRateModel.vasicek(3, 0.5, 3, 1), ShortRateModel.cir(3, 0.5, 3, 0.5)}) {
+                
+                MonteCarloSimulation simulation = new MonteCarloSimulation(engine, model, 42);
+                MonteCarloResult all = simulation.run(1000);
+                
+                // Ranges of paths simulated separately and merged give the same distribution
+                MonteCarloResult merged = new MonteCarloResult(0.001);
+                simulation.run(0, 300, merged);
+                MonteCarloResult rest = new MonteCarloResult(0.001);
+                simulation.run(300, 1000, rest);
+                merged.merge(rest);
+                
+                assertEquals(1000, merged.getTotalCost().getCount());
+                for(double probability : new double[] {0.05, 0.5, 0.95}) {
+                    assertEquals(all.getTotalCost().quantile(probability), merged.getTotalCost().quantile(probability), 0);
+                }
+                
+                // Symmetric shocks around an unchanged mean
+                double median = all.getTotalInterest().quantile(0.5);
+                assertEquals(unchanged.getTotalInterest()[0], median, median * 0.05);
+                assertTrue(all.getTotalCost().quantile(0.05) < unchanged.getTotalCost()[0]);
+                assertTrue(all.getTotalCost().quantile(0.95) > unchanged.getTotalCost()[0]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+package no.finansportalen.freecalc.freeloan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import no.finansportalen.freecalc.common.AnnuityLoanPeriod;
+import no.finansportalen.freecalc.common.SerialLoanPeriod;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.result.AnnuityLoanResult;
+import no.finansportalen.freecalc.freeloan.result.FreeLoanResult;
+import no.finansportalen.freecalc.freeloan.result.SerialLoanResult;
+
+/**
+ * <p>
+ * Replays a fixture set of reference (JavaScript) results against an engine on all processors, and reports the
+ * deviation per output field instead of stopping at the first difference. A new calculation mode is compared with the
+ * reference by giving the runner an Engine that uses it.
+ * </p>
+ *
+ * <p>
+ * As in FreeLoanTest, the fixtures have one result for each product the engine gives a result for (products below the
+ * lower limit of the loan are skipped), in the order of the products. The products are split into one range per
+ * thread; the results are paired with the fixtures afterwards, on the calling thread.
+ * </p>
+ */
+public class ParityRunner {
+
+    public static final String EFFECTIVE_INTEREST_RATE = "effectiveInterestRate";
+    public static final String PAYBACK_PERIOD_COUNT = "paybackPeriodCount";
+    public static final String RESIDUE = "residue";
+    public static final String PAYMENT = "payment";
+
+    private static final String[] FIELDS = {EFFECTIVE_INTEREST_RATE, PAYBACK_PERIOD_COUNT, RESIDUE, PAYMENT};
+
+
+    /**
+     * One calculation per product. Called from several threads at a time, so every call must make its own FreeLoan.
+     */
+    public interface Engine {
+
+        /**
+         * @return The result, or null when the product does not give a loan (no fixture)
+         */
+        FreeLoanResult<?> calculate(JsonProduct product) throws FreeLoanException;
+    }
+
+
+    private final List<JsonProduct> products;
+
+    private final int threads;
+
+
+    public ParityRunner(List<JsonProduct> products) {
+        this(products, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParityRunner(List<JsonProduct> products, int threads) {
+        this.products = products;
+        this.threads = threads;
+    }
+
+
+    public Report run(final Engine engine, List<JsonResult> expectedResults) {
+
+        final Object[] outcomes = new Object[products.size()];
+
+        long start = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            int range = (products.size() + threads - 1) / threads;
+
+            for(int from = 0; from < products.size(); from += range) {
+                final int first = from;
+                final int last = Math.min(from + range, products.size());
+
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() {
+                        for(int i = first; i < last; i++) {
+                            try {
+                                outcomes[i] = engine.calculate(products.get(i));
+                            } catch(FreeLoanException e) {
+                                outcomes[i] = Integer.valueOf(e.getErrNum());
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for(Future<?> future : futures) {
+                future.get();
+            }
+
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch(ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        long nanos = System.nanoTime() - start;
+
+        return compare(outcomes, expectedResults, nanos);
+    }
+
+
+    private Report compare(Object[] outcomes, List<JsonResult> expectedResults, long nanos) {
+
+        Report report = new Report(nanos);
+
+        int e = 0;
+
+        for(Object outcome : outcomes) {
+
+            if(outcome == null) {
+                continue;
+            }
+
+            report.cases++;
+
+            if(e == expectedResults.size()) {
+                continue;
+            }
+
+            JsonResult expected = expectedResults.get(e++);
+            int error = outcome instanceof Integer ? ((Integer) outcome).intValue() : 0;
+
+            if(error != expected.error) {
+                report.errorMismatches++;
+            } else if(error == 0) {
+                FreeLoanResult<?> result = (FreeLoanResult<?>) outcome;
+
+                report.add(EFFECTIVE_INTEREST_RATE, Math.abs(expected.getEffectiveInterestRate() - result.getEffectiveInterestRate()));
+                report.add(PAYBACK_PERIOD_COUNT, Math.abs(expected.getPaybackPeriodCount() - result.getPaybackPeriodCount()));
+
+                double residue = result instanceof AnnuityLoanResult ? ((AnnuityLoanResult) result).getResidue() : ((SerialLoanResult) result).getRemainder();
+                report.add(RESIDUE, Math.abs(Double.parseDouble(expected.getResitude().replaceFirst(" / .*", "")) - residue));
+
+                report.add(PAYMENT, paymentDeviation(result, expected));
+            }
+        }
+
+        report.unmatched = Math.abs(report.cases - expectedResults.size());
+
+        return report;
+    }
+
+
+    /**
+     * The largest deviation of a payment in the payment plan. 0 when the plan is not in the fixture.
+     */
+    private static double paymentDeviation(FreeLoanResult<?> result, JsonResult expected) {
+
+        JsonResultPeriod[] expectedPeriods = expected.getPeriods();
+        Object[] periods = result.getPeriods();
+
+        if(expectedPeriods == null || periods == null) {
+            return 0;
+        }
+
+        double deviation = 0;
+
+        for(int i = 1; i < Math.min(expectedPeriods.length, periods.length); i++) {
+            if(expectedPeriods[i] == null || periods[i] == null) {
+                continue;
+            }
+
+            double difference;
+
+            if(periods[i] instanceof AnnuityLoanPeriod) {
+                difference = expectedPeriods[i].getAnnPayment() - ((AnnuityLoanPeriod) periods[i]).getPayment();
+            } else {
+                difference = expectedPeriods[i].getSerPayment() - ((SerialLoanPeriod) periods[i]).getPayment();
+            }
+
+            deviation = Math.max(deviation, Math.abs(difference));
+        }
+
+        return deviation;
+    }
+
+
+    /**
+     * The absolute deviations from the fixture, per field, and the throughput of the engine
+     */
+    public static class Report {
+
+        private final long nanos;
+
+        private int cases = 0;
+
+        private int errorMismatches = 0;
+
+        private int unmatched = 0;
+
+        private final double[][] deviations = new double[FIELDS.length][16];
+
+        private int compared = 0;
+
+        private boolean sorted = false;
+
+        private Report(long nanos) {
+            this.nanos = nanos;
+        }
+
+        private void add(String field, double deviation) {
+            int f = field(field);
+
+            // The fields are added in order, one round per case
+            if(f == 0) {
+                if(compared == deviations[0].length) {
+                    for(int i = 0; i < FIELDS.length; i++) {
+                        deviations[i] = Arrays.copyOf(deviations[i], 2 * compared);
+                    }
+                }
+                compared++;
+            }
+
+            deviations[f][compared - 1] = deviation;
+            sorted = false;
+        }
+
+        private static int field(String field) {
+            for(int i = 0; i < FIELDS.length; i++) {
+                if(FIELDS[i].equals(field)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException(field);
+        }
+
+        /**
+         * @return The largest absolute deviation of 'field'
+         */
+        public double max(String field) {
+            return percentile(field, 100);
+        }
+
+        /**
+         * @param percent
+         *            0 - 100
+         * @return The absolute deviation of 'field' that 'percent' percent of the cases are within (nearest rank)
+         */
+        public double percentile(String field, double percent) {
+            if(compared == 0) {
+                return 0;
+            }
+
+            if(!sorted) {
+                for(int i = 0; i < FIELDS.length; i++) {
+                    Arrays.sort(deviations[i], 0, compared);
+                }
+                sorted = true;
+            }
+
+            int rank = (int) Math.ceil(percent / 100 * compared);
+            return deviations[field(field)][Math.max(rank, 1) - 1];
+        }
+
+        /**
+         * @return The number of products the engine gave a result or an error for
+         */
+        public int getCases() {
+            return cases;
+        }
+
+        /**
+         * @return The number of results compared field by field (no error in either)
+         */
+        public int getCompared() {
+            return compared;
+        }
+
+        /**
+         * @return The number of cases where the engine and the fixture disagree on the error
+         */
+        public int getErrorMismatches() {
+            return errorMismatches;
+        }
+
+        /**
+         * @return The difference between the number of cases and the number of fixtures. Should be 0.
+         */
+        public int getUnmatched() {
+            return unmatched;
+        }
+
+        /**
+         * @return Cases per second, all threads together
+         */
+        public double getThroughput() {
+            return cases / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(cases).append(" cases, ").append(errorMismatches).append(" error mismatches, ")
+                    .append(unmatched).append(" unmatched, ").append(Math.round(getThroughput())).append(" cases/s\n");
+            for(String field : FIELDS) {
+                text.append(field).append(": max ").append(max(field)).append(", p50 ").append(percentile(field, 50))
+                        .append(", p99 ").append(percentile(field, 99)).append("\n");
+            }
+            return text.toString();
+        }
+    }
+
+}
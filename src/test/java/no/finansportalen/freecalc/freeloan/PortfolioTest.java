@@ -0,0 +1,143 @@
+package no.finansportalen.freecalc.freeloan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import no.finansportalen.freecalc.common.Deadline;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.calc.Portfolio;
+import no.finansportalen.freecalc.freeloan.calc.PriceStorageStep;
+import no.finansportalen.freecalc.freeloan.calc.RateScenario;
+import no.finansportalen.freecalc.freeloan.result.PortfolioResult;
+import no.finansportalen.freecalc.freeloan.result.RateScenarioResult;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the aggregates of Portfolio against the same loans computed one by one.
+ * </p>
+ */
+public class PortfolioTest {
+
+    @Test
+    public void testPortfolio() throws FreeLoanException
+    {
+        
+        double[] limits = {0, 1000000};
+        double[] rates = {3.9, 3.6};
+        
+        Portfolio portfolio = new Portfolio(12);
+        portfolio.add(1200000, new double[] {0}, new double[] {6}, 120, false);
+        portfolio.add(2000000, limits, rates, 240, false);
+        portfolio.add(600000, limits, rates, 60, true);
+        
+        PortfolioResult result = portfolio.aggregate();
+        
+        // The same loans computed by the scenario engine, with the price list unchanged and no fees
+        double total_interest = 0;
+        double weighted_rates = 0;
+        double first_payments = 0;
+        
+        double[][] loans = {{1200000, 120, 0}, {2000000, 240, 0}, {600000, 60, 1}};
+        
+        for(int l = 0; l < loans.length; l++) {
+            
+            ArrayList<PriceStorageStep> price_storage = new ArrayList<PriceStorageStep>();
+            if(l == 0) {
+                price_storage.add(new PriceStorageStep(6, 0, 0, Double.MAX_VALUE));
+            } else {
+                price_storage.add(new PriceStorageStep(3.9, 0, 0, 999999));
+                price_storage.add(new PriceStorageStep(3.6, 0, 1000000, Double.MAX_VALUE));
+            }
+            
+            FreeLoan calc = new FreeLoan();
+            calc.setReceived(loans[l][0]);
+            calc.setNumberOfPeriods((int) loans[l][1]);
+            calc.setPeriodsPerYear(12);
+            calc.setRateThresholds(true);
+            calc.setPriceStorage(price_storage);
+            
+            RateScenarioResult loan = calc.rateScenarioEngine(loans[l][2] == 1).run(new RateScenario[] {RateScenario.parallelShift(0)});
+            
+            total_interest += loan.getTotalInterest()[0];
+            weighted_rates += loan.getEffectiveInterestRate()[0] * loans[l][0];
+            first_payments += loan.getFirstPayment()[0];
+        }
+        
+        assertEquals(3, result.getLoans());
+        assertEquals(3800000, result.getPrincipal(), 0.000001);
+        assertEquals(total_interest, result.getTotalInterest(), 10);
+        assertEquals(weighted_rates / 3800000, result.getWeightedEffectiveRate(), 0.0001);
+        assertEquals(first_payments, result.getCashFlow()[1], 0.02);
+        
+        double cash_flow = 0;
+        for(int i = 1; i <= portfolio.getMaxPeriods(); i++) {
+            cash_flow += result.getCashFlow()[i];
+        }
+        assertEquals(3800000 + result.getTotalInterest(), cash_flow, 0.0001);
+        
+        // Ranges of loans aggregated separately and merged
+        PortfolioResult merged = new PortfolioResult(portfolio.getMaxPeriods());
+        portfolio.aggregate(0, 2, merged);
+        PortfolioResult rest = new PortfolioResult(portfolio.getMaxPeriods());
+        portfolio.aggregate(2, 3, rest);
+        merged.merge(rest);
+        
+        assertEquals(result.getTotalInterest(), merged.getTotalInterest(), 0.000001);
+        assertEquals(result.getWeightedEffectiveRate(), merged.getWeightedEffectiveRate(), 0.000001);
+        assertEquals(result.getCashFlow()[100], merged.getCashFlow()[100], 0.000001);
+    }
+
+
+    @Test
+    public void testInvalidLoans() throws FreeLoanException
+    {
+        Portfolio portfolio = new Portfolio(12);
+        
+        try {
+            portfolio.add(1000000, new double[] {0, 1000000}, new double[] {3.9}, 120, false);
+            fail("A limit without a rate");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+        
+        try {
+            portfolio.add(1000000, new double[] {0}, new double[] {3.9}, 0, false);
+            fail("No periods");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+        
+        assertEquals(0, portfolio.aggregate().getLoans());
+    }
+
+
+    @Test
+    public void testDeadline() throws FreeLoanException
+    {
+        Portfolio portfolio = new Portfolio(12);
+        portfolio.add(2000000, new double[] {0, 1000000}, new double[] {3.9, 3.6}, 240, false);
+        
+        PortfolioResult exact = portfolio.aggregate();
+        
+        // Half a basis point is enough for a rate shown with two decimals
+        portfolio.setMaxRateError(0.5);
+        assertEquals(exact.getWeightedEffectiveRate(), portfolio.aggregate().getWeightedEffectiveRate(), 0.005);
+        
+        Deadline deadline = Deadline.never();
+        deadline.cancel();
+        portfolio.setDeadline(deadline);
+        
+        try {
+            portfolio.aggregate();
+            fail("The deadline was cancelled");
+        } catch(FreeLoanException e) {
+            assertEquals(FreeLoanException.FreeLoanExceptionType.DEADLINE_EXCEEDED, e.getType());
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package no.finansportalen.freecalc.freeloan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import no.finansportalen.freecalc.freeloan.calc.FreeLoan;
+import no.finansportalen.freecalc.freeloan.calc.FreeLoanException;
+import no.finansportalen.freecalc.freeloan.calc.RateScenario;
+import no.finansportalen.freecalc.freeloan.result.RateScenarioResult;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Testing the rate scenarios of RateScenarioEngine against the ordinary annuity and serial loans.
+ * </p>
+ */
+public class RateScenarioEngineTest {
+
+    @Test
+    public void testRateScenarios() throws FreeLoanException
+    {
+        
+        for(boolean serial : new boolean[] {false, true}) {
+            
+            FreeLoan calc = LoanFixtures.twoStepLoan(2000000, 240, 0, 1500, 50, false, false);
+            
+            RateScenario[] scenarios = {
+                    RateScenario.parallelShift(0),
+                    RateScenario.parallelShift(1),
+                    RateScenario.ramp(2, 36),
+                    RateScenario.shifts(new double[] {0, 0, 0, 0, 0, 0, -0.5}),
+                    RateScenario.rates(new double[] {3.6})
+            };
+            
+            RateScenarioResult result = calc.rateScenarioEngine(serial).run(scenarios);
+            
+            // The unchanged path is the ordinary loan
+            double effective_rate = serial ? calc.serialLoan().getEffectiveInterestRate() : calc.annuityLoan().getEffectiveInterestRate();
+            assertEquals(effective_rate, result.getEffectiveInterestRate()[0], 0.001);
+            assertEquals(effective_rate, result.getEffectiveInterestRate()[4], 0.001);
+            if(!serial) {
+                assertEquals(LoanFixtures.firstPayment(calc.annuityLoan().getPeriods()), result.getFirstPayment()[0], 0.01);
+            }
+            
+            assertEquals(1, result.getEffectiveInterestRate()[1] - result.getEffectiveInterestRate()[0], 0.05);
+            assertTrue(result.getTotalCost()[2] > result.getTotalCost()[1]);
+            assertTrue(result.getTotalCost()[1] > result.getTotalCost()[0]);
+            assertTrue(result.getTotalCost()[3] < result.getTotalCost()[0]);
+            assertTrue(result.getMaxPayment()[2] > result.getFirstPayment()[2]);
+            
+            // Ranges of paths give the same results
+            RateScenarioResult ranges = new RateScenarioResult(scenarios.length);
+            calc.rateScenarioEngine(serial).run(scenarios, 3, 5, ranges);
+            calc.rateScenarioEngine(serial).run(scenarios, 0, 3, ranges);
+            for(int i = 0; i < scenarios.length; i++) {
+                assertEquals(result.getTotalCost()[i], ranges.getTotalCost()[i], 0);
+            }
+            
+            assertEquals(result.getTotalCost()[0], RateScenarioResult.quantile(result.getTotalCost(), 0.25), 0);
+            assertEquals(result.getTotalCost()[2], RateScenarioResult.quantile(result.getTotalCost(), 1), 0);
+        }
+    }
+
+
+    @Test
+    public void testSegmentLimit() throws FreeLoanException
+    {
+        RateScenario[] unchanged = {RateScenario.parallelShift(0)};
+        
+        // 1,000,000 is the lower limit of the second step: The loan starts in the first one, as the ordinary loans do
+        for(double received : new double[] {999999, 1000000, 1000001}) {
+            FreeLoan calc = LoanFixtures.twoStepLoan(received, 240, 0, 0, 0, false, false);
+            calc.setRateThresholds(true);
+            
+            assertEquals(calc.annuityLoan().getEffectiveInterestRate(), calc.rateScenarioEngine(false).run(unchanged).getEffectiveInterestRate()[0], 0.000001);
+            assertEquals(calc.serialLoan().getEffectiveInterestRate(), calc.rateScenarioEngine(true).run(unchanged).getEffectiveInterestRate()[0], 0.000001);
+        }
+        
+        // A serial loan of 1,200,000 over 12 periods pays down 100,000 a period, and reaches the limit after two. The
+        // third period has the rate of the first step, as the first period of a loan of 1,000,000.
+        FreeLoan calc = LoanFixtures.twoStepLoan(1200000, 12, 0, 0, 0, false, false);
+        calc.setRateThresholds(true);
+        RateScenarioResult result = calc.rateScenarioEngine(true).run(unchanged);
+        
+        double interest = 1200000 * 0.036 / 12 + 1100000 * 0.036 / 12;
+        for(int i = 10; i >= 1; i--) {
+            interest += i * 100000 * 0.039 / 12;
+        }
+        assertEquals(interest, result.getTotalInterest()[0], 0.01);
+    }
+
+
+    @Test
+    public void testForwardOnlyPath() throws FreeLoanException
+    {
+        for(boolean serial : new boolean[] {false, true}) {
+            FreeLoan calc = LoanFixtures.twoStepLoan(2000000, 240, 0, 1500, 50, false, false);
+
+            // A path that, like ShortRateModel.Path, can only go forward. The start of the search for the effective
+            // rate is taken in period 1, not asked for after the last period.
+            RateScenario forward = new RateScenario() {
+                int reached = 0;
+
+                @Override
+                public double rate(int period, double rate) {
+                    assertTrue(period >= reached);
+                    reached = period;
+                    return rate + (period == 1 ? 0 : 1);
+                }
+            };
+            RateScenario shifted = RateScenario.shifts(new double[] {0, 1});
+
+            RateScenarioResult result = calc.rateScenarioEngine(serial).run(new RateScenario[] {forward, shifted});
+            assertEquals(result.getTotalCost()[1], result.getTotalCost()[0], 0);
+            assertEquals(result.getEffectiveInterestRate()[1], result.getEffectiveInterestRate()[0], 0.000001);
+        }
+    }
+
+}